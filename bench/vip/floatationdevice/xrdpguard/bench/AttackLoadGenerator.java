@@ -0,0 +1,238 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 以指定的速率向文件追加模拟暴力破解攻击的XRDP日志。
+ * 登录来自两类来源：攻击者的登录总是失败；正常用户的登录大多成功，偶尔输错一次密码，但在时间跨度内的失败次数不会达到封禁阈值。
+ * 可以定期写入日志开始标志来模拟XRDP重启。
+ * 生成日志的同时按照与XRDPGuard相同的规则（时间跨度内失败次数达到阈值，XRDP重启后重新计数）计算每个攻击者应该被封禁的时刻，
+ * 即导致失败次数达到阈值的连入记录被写入文件的时刻，作为评估检测延迟、漏封和误封的基准。
+ * <pre>
+ * java -cp out vip.floatationdevice.xrdpguard.bench.AttackLoadGenerator --out=xrdp.log --rate=1000 --duration=60
+ * </pre>
+ */
+public class AttackLoadGenerator
+{
+    private final File file;
+    private final double loginsPerSecond;
+    private final long durationMs;
+    private final double attackRatio;
+    private final long restartEveryMs;
+    private final int maxFails;
+    private final long periodMs;
+    private final Random rnd = new Random(42);
+    private final SyntheticXrdpLog gen;
+    private final String[] attackers;
+    private final String[] benign;
+    private final Map<String, Deque<Long>> failures = new HashMap<>(); // 自上次重启以来的登录失败时间
+    private final Map<String, Long> expectedAt = new LinkedHashMap<>(); // 攻击者 -> 应该被封禁的时刻
+    private long lines = 0, logins = 0;
+
+    /**
+     * @param file 要追加写入的日志文件。
+     * @param loginsPerSecond 每秒的登录次数。
+     * @param durationMs 持续时间（毫秒）。
+     * @param attackerCount 攻击者IP的数量。
+     * @param benignCount 正常用户IP的数量。
+     * @param ipv6Ratio IPv6地址所占的比例。
+     * @param attackRatio 来自攻击者的登录所占的比例。
+     * @param restartEveryMs 模拟XRDP重启的间隔（毫秒），小于等于0时不重启。
+     * @param maxFails XRDPGuard的最多失败次数。
+     * @param periodMs XRDPGuard的时间跨度（毫秒）。
+     */
+    public AttackLoadGenerator(File file, double loginsPerSecond, long durationMs, int attackerCount, int benignCount,
+                               double ipv6Ratio, double attackRatio, long restartEveryMs, int maxFails, long periodMs)
+    {
+        this.file = file;
+        this.loginsPerSecond = loginsPerSecond;
+        this.durationMs = durationMs;
+        this.attackRatio = attackRatio;
+        this.restartEveryMs = restartEveryMs;
+        this.maxFails = maxFails;
+        this.periodMs = periodMs;
+        this.gen = new SyntheticXrdpLog(42, 0, 0, 0, 1, System.currentTimeMillis(), 0);
+        // 两类来源的地址不能重复
+        Set<String> used = new HashSet<>();
+        attackers = new String[attackerCount];
+        benign = new String[benignCount];
+        for(String[] addrs : new String[][]{attackers, benign})
+            for(int i = 0; i < addrs.length; i++)
+            {
+                String a;
+                do
+                    a = gen.randomAddr(rnd.nextDouble() < ipv6Ratio);
+                while(!used.add(a));
+                addrs[i] = a;
+            }
+    }
+
+    /**
+     * 开始写入日志，持续时间结束后返回。
+     * @throws IOException 写入文件失败时抛出。
+     * @throws InterruptedException 等待时线程被中断时抛出。
+     */
+    public void run() throws IOException, InterruptedException
+    {
+        try(OutputStream out = new FileOutputStream(file, true))
+        {
+            long start = System.currentTimeMillis();
+            long lastRestart = start;
+            StringBuilder sb = new StringBuilder();
+            List<String> crossed = new ArrayList<>();
+            long now;
+            while((now = System.currentTimeMillis()) - start < durationMs)
+            {
+                gen.setTimeMs(now);
+                if(restartEveryMs > 0 && now - lastRestart >= restartEveryMs)
+                {
+                    lines += gen.appendStart(sb);
+                    failures.clear();
+                    lastRestart = now;
+                }
+                long due = (long) ((now - start) * loginsPerSecond / 1000);
+                for(; logins < due; logins++)
+                {
+                    if(attackers.length != 0 && (benign.length == 0 || rnd.nextDouble() < attackRatio))
+                    {
+                        String addr = attackers[rnd.nextInt(attackers.length)];
+                        lines += gen.appendLogin(sb, addr, false);
+                        if(recordFailure(addr, now) >= maxFails && !expectedAt.containsKey(addr) && !crossed.contains(addr))
+                            crossed.add(addr);
+                    }
+                    else
+                    {
+                        // 正常用户偶尔输错密码，但失败次数加上下一次连入不会达到阈值
+                        String addr = benign[rnd.nextInt(benign.length)];
+                        boolean fail = rnd.nextDouble() < 0.1 && countFailures(addr, now) + 2 < maxFails;
+                        lines += gen.appendLogin(sb, addr, !fail);
+                        if(fail)
+                            recordFailure(addr, now);
+                    }
+                }
+                if(sb.length() != 0)
+                {
+                    // 以开始写入的时刻为准，检测延迟包含写入文件的时间
+                    long written = System.currentTimeMillis();
+                    out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    sb.setLength(0);
+                    for(String addr : crossed)
+                        expectedAt.put(addr, written);
+                    crossed.clear();
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private int recordFailure(String addr, long now)
+    {
+        Deque<Long> d = failures.get(addr);
+        if(d == null)
+            failures.put(addr, d = new ArrayDeque<>());
+        d.addLast(now);
+        return countFailures(addr, now);
+    }
+
+    private int countFailures(String addr, long now)
+    {
+        Deque<Long> d = failures.get(addr);
+        if(d == null)
+            return 0;
+        while(!d.isEmpty() && d.peekFirst() < now - periodMs)
+            d.removeFirst();
+        return d.size();
+    }
+
+    /**
+     * 获取每个应该被封禁的攻击者及其应该被封禁的时刻。
+     */
+    public Map<String, Long> getExpectedAt()
+    {
+        return expectedAt;
+    }
+
+    /**
+     * 获取已写入的日志行数。
+     */
+    public long getLines()
+    {
+        return lines;
+    }
+
+    /**
+     * 获取已写入的登录次数。
+     */
+    public long getLogins()
+    {
+        return logins;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Options o = Options.parse(args);
+        AttackLoadGenerator g = o.create(new File(o.out));
+        g.run();
+        System.out.println("Wrote " + g.getLines() + " lines (" + g.getLogins() + " logins), " + g.getExpectedAt().size() + " attackers should be banned");
+    }
+
+    /**
+     * 负载生成器和压力测试工具共用的命令行参数。
+     */
+    static final class Options
+    {
+        String out = "xrdp.log";
+        double rate = 1000;
+        long durationMs = 30000;
+        int attackers = 500;
+        int benign = 2000;
+        double ipv6 = 0.2;
+        double attackRatio = 0.5;
+        long restartMs = 0;
+        int maxFails = 3;
+        long periodMs = 10 * 60 * 1000;
+        long graceMs = 5000;
+        String firewall = RecordingFirewall.class.getName();
+
+        static Options parse(String[] args)
+        {
+            Options o = new Options();
+            for(String a : args)
+            {
+                if(a.startsWith("--out="))
+                    o.out = a.substring(6);
+                else if(a.startsWith("--rate=")) // 每秒的登录次数
+                    o.rate = Double.parseDouble(a.substring(7));
+                else if(a.startsWith("--duration=")) // 持续时间（秒）
+                    o.durationMs = Long.parseLong(a.substring(11)) * 1000;
+                else if(a.startsWith("--attackers="))
+                    o.attackers = Integer.parseInt(a.substring(12));
+                else if(a.startsWith("--benign="))
+                    o.benign = Integer.parseInt(a.substring(9));
+                else if(a.startsWith("--ipv6="))
+                    o.ipv6 = Double.parseDouble(a.substring(7));
+                else if(a.startsWith("--attackratio="))
+                    o.attackRatio = Double.parseDouble(a.substring(14));
+                else if(a.startsWith("--restart=")) // 模拟XRDP重启的间隔（秒）
+                    o.restartMs = Long.parseLong(a.substring(10)) * 1000;
+                else if(a.startsWith("--maxfail="))
+                    o.maxFails = Integer.parseInt(a.substring(10));
+                else if(a.startsWith("--period="))
+                    o.periodMs = Long.parseLong(a.substring(9));
+                else if(a.startsWith("--grace=")) // 写入结束后等待XRDPGuard处理的时间（毫秒）
+                    o.graceMs = Long.parseLong(a.substring(8));
+                else if(a.startsWith("--firewall="))
+                    o.firewall = a.substring(11);
+            }
+            return o;
+        }
+
+        AttackLoadGenerator create(File f)
+        {
+            return new AttackLoadGenerator(f, rate, durationMs, attackers, benign, ipv6, attackRatio, restartMs, maxFails, periodMs);
+        }
+    }
+}
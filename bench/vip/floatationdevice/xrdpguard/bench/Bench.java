@@ -0,0 +1,107 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * 不依赖第三方库的微基准测试工具，用法与JMH类似：先预热若干轮，再测量若干轮，每轮运行固定的时长。
+ * 每次调用被测代码执行opsPerCall次操作，返回值累加到sink中，防止被JIT当作无用代码消除。
+ * 输出每次操作的平均耗时（纳秒）、各轮之间的标准差和每秒操作数。
+ */
+public class Bench
+{
+    private static volatile long sink; // 防止被测代码的结果被优化掉
+
+    private final Pattern filter;
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationMs;
+
+    /**
+     * 被测代码。
+     */
+    public interface Op
+    {
+        /**
+         * 执行一批操作。
+         * @return 任意与操作结果有关的值，用于防止被测代码被优化掉。
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * @param filter 只运行名称匹配此正则表达式的基准测试，为null时运行全部。
+     * @param warmupIterations 预热轮数。
+     * @param iterations 测量轮数。
+     * @param iterationMs 每轮的时长（毫秒）。
+     */
+    public Bench(String filter, int warmupIterations, int iterations, long iterationMs)
+    {
+        this.filter = filter == null ? null : Pattern.compile(filter);
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationMs = iterationMs;
+    }
+
+    /**
+     * 检查名称是否匹配过滤条件。用于跳过准备数据开销较大的基准测试。
+     */
+    public boolean enabled(String name)
+    {
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /**
+     * 运行一个基准测试并输出结果。
+     * @param name 名称。
+     * @param opsPerCall 每次调用op执行的操作数。
+     * @param op 被测代码。
+     */
+    public void run(String name, long opsPerCall, Op op)
+    {
+        if(!enabled(name))
+            return;
+        try
+        {
+            for(int i = 0; i < warmupIterations; i++)
+                iteration(opsPerCall, op);
+            double[] nsPerOp = new double[iterations];
+            for(int i = 0; i < iterations; i++)
+                nsPerOp[i] = iteration(opsPerCall, op);
+            double mean = 0;
+            for(double v : nsPerOp)
+                mean += v;
+            mean /= iterations;
+            double var = 0;
+            for(double v : nsPerOp)
+                var += (v - mean) * (v - mean);
+            double stddev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+            System.out.println(String.format(Locale.ROOT, "%-48s %14.1f ns/op  +- %8.1f  %16.0f ops/s", name, mean, stddev, 1e9 / mean));
+        }
+        catch(Exception e)
+        {
+            System.out.println(String.format(Locale.ROOT, "%-48s FAILED: %s", name, e));
+        }
+    }
+
+    /**
+     * 运行一轮，返回每次操作的平均耗时（纳秒）。
+     */
+    private double iteration(long opsPerCall, Op op) throws Exception
+    {
+        long deadline = System.nanoTime() + iterationMs * 1000000L;
+        long calls = 0;
+        long acc = 0;
+        long start = System.nanoTime();
+        long now;
+        do
+        {
+            acc += op.run();
+            calls++;
+            now = System.nanoTime();
+        }
+        while(now < deadline);
+        sink += acc;
+        return (double) (now - start) / (calls * opsPerCall);
+    }
+}
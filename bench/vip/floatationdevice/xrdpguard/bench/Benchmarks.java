@@ -0,0 +1,244 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import vip.floatationdevice.xrdpguard.*;
+import vip.floatationdevice.xrdpguard.firewall.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * XRDPGuard的基准测试，覆盖日志解析、时间解析、失败计数、白名单查询和防火墙管理器的调用开销。
+ * <pre>
+ * javac -encoding UTF-8 -d out $(find src bench -name '*.java')
+ * java -cp out vip.floatationdevice.xrdpguard.bench.Benchmarks [--filter=正则表达式] [--lines=1000000] [--warmup=3] [--iterations=5] [--time=1000]
+ * </pre>
+ */
+public class Benchmarks
+{
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws Exception
+    {
+        String filter = null;
+        int lines = 1000000, warmup = 3, iterations = 5;
+        long timeMs = 1000;
+        for(String a : args)
+        {
+            if(a.startsWith("--filter="))
+                filter = a.substring(9);
+            else if(a.startsWith("--lines="))
+                lines = Integer.parseInt(a.substring(8));
+            else if(a.startsWith("--warmup="))
+                warmup = Integer.parseInt(a.substring(9));
+            else if(a.startsWith("--iterations="))
+                iterations = Integer.parseInt(a.substring(13));
+            else if(a.startsWith("--time="))
+                timeMs = Long.parseLong(a.substring(7));
+        }
+        Bench b = new Bench(filter, warmup, iterations, timeMs);
+        System.out.println("XRDPGuard " + getVersion() + " benchmarks, " + lines + " log lines, " +
+                warmup + " warmup + " + iterations + " iterations of " + timeMs + " ms");
+        parser(b, lines);
+        reader(b, lines);
+        time(b);
+        tracker(b);
+        whitelist(b);
+        firewall(b);
+    }
+
+    /**
+     * 逐行解析内存中的日志。
+     */
+    private static void parser(Bench b, int lines)
+    {
+        if(!b.enabled("parser."))
+            return;
+        byte[] log = new SyntheticXrdpLog(SEED, 10000, 0.2, 0.1, 2, System.currentTimeMillis(), 200).generate(lines);
+        int[] starts = new int[lines + 1024];
+        int n = 0, lineStart = 0;
+        for(int i = 0; i < log.length; i++)
+            if(log[i] == '\n')
+            {
+                if(n == starts.length - 1)
+                    starts = Arrays.copyOf(starts, n * 2);
+                starts[n++] = lineStart;
+                lineStart = i + 1;
+            }
+        starts[n] = log.length;
+        final int lineCount = n;
+        final int[] lineStarts = starts;
+        XrdpLogParser parser = new XrdpLogParser();
+        b.run("parser.parse", lineCount, () ->
+        {
+            long types = 0;
+            for(int i = 0; i < lineCount; i++)
+                types += parser.parse(log, lineStarts[i], lineStarts[i + 1] - lineStarts[i] - 1);
+            return types;
+        });
+    }
+
+    /**
+     * 从文件读取整个日志（包括冷启动扫描和连入/登录成功记录的配对）。
+     */
+    private static void reader(Bench b, int lines) throws Exception
+    {
+        if(!b.enabled("reader."))
+            return;
+        File f = File.createTempFile("xrdpguard-bench", ".log");
+        f.deleteOnExit();
+        new SyntheticXrdpLog(SEED, 10000, 0.2, 0.1, 2, System.currentTimeMillis() - lines * 200L, 200).write(f, lines);
+        long[] count = new long[1];
+        XrdpLogReader.Listener listener = new XrdpLogReader.Listener()
+        {
+            @Override
+            public void onLogin(long timeMs, String addr, boolean fail)
+            {
+                count[0]++;
+            }
+
+            @Override
+            public void onRestart()
+            {
+            }
+        };
+        b.run("reader.update (" + f.length() / 1024 / 1024 + " MiB)", lines, () ->
+        {
+            XrdpLogReader r = new XrdpLogReader(f.getPath(), false);
+            r.setListener(listener);
+            r.update();
+            r.close();
+            return count[0];
+        });
+        b.run("reader.update keepLogins", lines, () ->
+        {
+            XrdpLogReader r = new XrdpLogReader(f.getPath(), true);
+            r.update();
+            r.close();
+            return r.getLogins().size();
+        });
+    }
+
+    /**
+     * 解析XRDP日志的时间格式。
+     */
+    private static void time(Bench b)
+    {
+        String s = "20261017-01:02:03";
+        byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        XrdpLogParser parser = new XrdpLogParser();
+        b.run("time.parseXRDPTime", 1, () -> parseXRDPTime(s).getTime());
+        b.run("time.XrdpLogParser.parseTime", 1, () -> parser.parseTime(bytes, 0, bytes.length));
+    }
+
+    /**
+     * 失败计数器在不同的记录数量和IP数量下的开销（送入所有记录并检查一次）。
+     */
+    private static void tracker(Bench b)
+    {
+        for(int records : new int[]{10000, 100000, 1000000})
+            for(int ips : new int[]{100, 10000, 100000})
+            {
+                String name = "tracker.record+poll " + records + " records, " + ips + " IPs";
+                if(!b.enabled(name) || ips > records)
+                    continue;
+                SyntheticXrdpLog gen = new SyntheticXrdpLog(SEED, ips, 0.2, 0, 0, 0, 0);
+                String[] addrs = gen.getAddrs();
+                Random rnd = new Random(SEED);
+                String[] recAddrs = new String[records];
+                long[] recTimes = new long[records];
+                long t = System.currentTimeMillis() - records * 10L;
+                for(int i = 0; i < records; i++)
+                {
+                    recAddrs[i] = addrs[rnd.nextInt(addrs.length)];
+                    recTimes[i] = t += rnd.nextInt(20);
+                }
+                long nowMs = t;
+                b.run(name, records, () ->
+                {
+                    FailureTracker tracker = new FailureTracker(10 * 60 * 1000, 3);
+                    for(int i = 0; i < records; i++)
+                        tracker.record(recTimes[i], recAddrs[i], true);
+                    return tracker.poll(nowMs).size();
+                });
+            }
+    }
+
+    /**
+     * 白名单查询。白名单中有1000个IPv4和IPv6地址段。
+     */
+    private static void whitelist(Bench b)
+    {
+        if(!b.enabled("whitelist."))
+            return;
+        Random rnd = new Random(SEED);
+        IpPrefixTrie trie = new IpPrefixTrie();
+        for(int i = 0; i < 800; i++)
+            trie.add(ipv4ToString(rnd.nextInt()) + "/" + (8 + rnd.nextInt(25)));
+        for(int i = 0; i < 200; i++)
+            trie.add(ipv6ToString(rnd.nextLong(), rnd.nextLong()) + "/" + (16 + rnd.nextInt(113)));
+        SyntheticXrdpLog gen = new SyntheticXrdpLog(SEED, 1024, 0.2, 0, 0, 0, 0);
+        String[] ips = gen.getAddrs();
+        int[] v4 = new int[1024];
+        for(int i = 0; i < v4.length; i++)
+            v4[i] = rnd.nextInt();
+        b.run("whitelist.contains(String)", ips.length, () ->
+        {
+            long hits = 0;
+            for(String ip : ips)
+                if(trie.contains(ip))
+                    hits++;
+            return hits;
+        });
+        b.run("whitelist.containsIpv4(int)", v4.length, () ->
+        {
+            long hits = 0;
+            for(int ip : v4)
+                if(trie.containsIpv4(ip))
+                    hits++;
+            return hits;
+        });
+    }
+
+    /**
+     * 防火墙管理器的调用开销。外部命令由不做任何事的CommandRunner代替，只测量XRDPGuard自身的开销。
+     */
+    private static void firewall(Bench b)
+    {
+        if(!b.enabled("firewall."))
+            return;
+        List<String> batch = Arrays.asList(new SyntheticXrdpLog(SEED, 100, 0.2, 0, 0, 0, 0).getAddrs());
+        FirewallManager none = new NoFirewall();
+        b.run("firewall.NoFirewall.banAll x100", batch.size(), () -> none.banAll(batch).size());
+        b.run("firewall.NoFirewall.isBannedAll x100", batch.size(), () -> none.isBannedAll(batch).size());
+        FirewallManager cached = new CachingFirewallManager(new NoFirewall(), Long.MAX_VALUE);
+        b.run("firewall.Caching(NoFirewall).isBannedAll x100", batch.size(), () -> cached.isBannedAll(batch).size());
+
+        // 假的nft：记录脚本长度，list set时返回10000个元素
+        List<String> listOutput = new ArrayList<>();
+        listOutput.add("table inet xrdpguard {");
+        listOutput.add("\tset banned4 {");
+        StringBuilder sb = new StringBuilder("\t\telements = { ");
+        Random rnd = new Random(SEED);
+        for(int i = 0; i < 10000; i++)
+            sb.append(i == 0 ? "" : ", ").append(ipv4ToString(rnd.nextInt()));
+        listOutput.add(sb.append(" }").toString());
+        listOutput.add("\t}");
+        listOutput.add("}");
+        long[] scriptBytes = new long[1];
+        CommandRunner fake = (cmd, input, output) ->
+        {
+            if(input != null)
+                scriptBytes[0] += input.length();
+            if(output != null && cmd.contains("list"))
+                output.addAll(listOutput);
+            return 0;
+        };
+        FirewallManager nft = new Nftables(fake);
+        b.run("firewall.Nftables(fake).banAll x100", batch.size(), () -> nft.banAll(batch).size() + scriptBytes[0]);
+        b.run("firewall.Nftables(fake).listBanned 10000", 10000, () -> nft.listBanned().size());
+        b.run("firewall.Nftables(fake).isBannedAll x100", batch.size(), () -> nft.isBannedAll(batch).size());
+    }
+}
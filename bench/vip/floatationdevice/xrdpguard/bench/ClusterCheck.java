@@ -0,0 +1,353 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import vip.floatationdevice.xrdpguard.ClusterSync;
+import vip.floatationdevice.xrdpguard.Metrics;
+import vip.floatationdevice.xrdpguard.XrdpGuard;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 封禁事件传播的检查工具，所有实例都在本机回环地址上运行：
+ * 先直接向ClusterSync发送自行构造的数据包，检查签名校验、地址校验、按事件时间和节点ID排序、重放和过期事件的丢弃，
+ * 以及大量事件被拆分为不超过最大长度的多个数据包；
+ * 再在同一进程中以监视模式运行XRDPGuard，由另一个节点发出封禁事件，检查RecordingFirewall恰好执行了一次封禁，
+ * 之后的解除封禁事件也被执行。
+ * 所有检查都通过时返回0，否则返回1。
+ * <pre>
+ * java -cp out vip.floatationdevice.xrdpguard.bench.ClusterCheck
+ * </pre>
+ */
+public class ClusterCheck
+{
+    private static final String KEY = "cluster-check-key";
+    private static final int MAX_PACKET_SIZE = 1400; // 与ClusterSync一致
+    private static final long SENTINEL_NODE = 0x5e17e1L; // 发送哨兵事件的节点ID
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static int failures = 0;
+    private static int sentinels = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+        // 只输出警告和错误
+        Logger.getLogger("XrdpGuard").setLevel(Level.WARNING);
+        InetSocketAddress to = new InetSocketAddress(LOOPBACK, freePort());
+        try(DatagramSocket raw = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+            ClusterSync b = new ClusterSync(to, Collections.emptyList(), KEY))
+        {
+            signature(b, raw, to);
+            addresses(b, raw, to);
+            ordering(b, raw, to);
+            splitting(b, to);
+        }
+        endToEnd();
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * 密钥不同或内容被篡改的数据包被拒绝。
+     */
+    private static void signature(ClusterSync b, DatagramSocket raw, InetSocketAddress to) throws IOException
+    {
+        long rejected = Metrics.CLUSTER_PACKETS_REJECTED.get();
+        long now = System.currentTimeMillis();
+        byte[] tampered = packet(KEY, 9, new Ev(ClusterSync.BAN, "203.0.113.1", now));
+        tampered[tampered.length - 40] ^= 1;
+        check("packets signed with another key or modified are rejected",
+                ips(exchange(b, raw, to, packet("another-key", 9, new Ev(ClusterSync.BAN, "203.0.113.1", now)), tampered)),
+                Collections.emptyList());
+        check("rejected packets are counted", Metrics.CLUSTER_PACKETS_REJECTED.get() - rejected, 2L);
+    }
+
+    /**
+     * 地址不合法的事件被丢弃，同一数据包中的其他事件仍被接受。
+     */
+    private static void addresses(ClusterSync b, DatagramSocket raw, InetSocketAddress to) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        check("events with invalid addresses are dropped",
+                ips(exchange(b, raw, to, packet(KEY, 9,
+                        new Ev(ClusterSync.BAN, "1.2.3.4; reboot", now),
+                        new Ev(ClusterSync.BAN, "$(reboot)", now),
+                        new Ev(ClusterSync.BAN, "10.0.0.0/33", now),
+                        new Ev(ClusterSync.BAN, "203.0.113.2", now),
+                        new Ev(ClusterSync.BAN, "2001:db8::/32", now)))),
+                Arrays.asList("203.0.113.2", "2001:db8::/32"));
+    }
+
+    /**
+     * 同一个IP的事件只有比已知版本更新时才被接受：事件时间更晚，或时间相同而节点ID更大。
+     */
+    private static void ordering(ClusterSync b, DatagramSocket raw, InetSocketAddress to) throws IOException
+    {
+        String ip = "203.0.113.3";
+        long t = System.currentTimeMillis();
+        check("the first event for an IP is accepted",
+                ips(exchange(b, raw, to, packet(KEY, 9, new Ev(ClusterSync.BAN, ip, t)))), Collections.singletonList(ip));
+        check("an event with the same time from a lower node ID is dropped",
+                ips(exchange(b, raw, to, packet(KEY, 5, new Ev(ClusterSync.UNBAN, ip, t)))), Collections.emptyList());
+        check("an event with the same time from a higher node ID is accepted",
+                types(exchange(b, raw, to, packet(KEY, 12, new Ev(ClusterSync.UNBAN, ip, t)))), Collections.singletonList(ClusterSync.UNBAN));
+        check("an older event is dropped",
+                ips(exchange(b, raw, to, packet(KEY, 12, new Ev(ClusterSync.BAN, ip, t - 1)))), Collections.emptyList());
+        byte[] newer = packet(KEY, 5, new Ev(ClusterSync.BAN, ip, t + 1));
+        check("a newer event from any node is accepted",
+                types(exchange(b, raw, to, newer)), Collections.singletonList(ClusterSync.BAN));
+        check("a replayed packet is dropped",
+                ips(exchange(b, raw, to, newer)), Collections.emptyList());
+        long now = System.currentTimeMillis();
+        check("events too far in the past or future are dropped",
+                ips(exchange(b, raw, to, packet(KEY, 9,
+                        new Ev(ClusterSync.BAN, "203.0.113.4", now - 11 * 60 * 1000),
+                        new Ev(ClusterSync.BAN, "203.0.113.5", now + 11 * 60 * 1000)))),
+                Collections.emptyList());
+    }
+
+    /**
+     * 一次发布的大量事件被拆分为多个不超过最大长度的数据包，每个事件恰好被接收一次。
+     */
+    private static void splitting(ClusterSync b, InetSocketAddress to) throws IOException
+    {
+        List<String> ips = new ArrayList<>();
+        for(int i = 0; i < 300; i++)
+            ips.add("2001:db8:" + Integer.toHexString(i) + "::/48");
+        try(DatagramSocket capture = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+            ClusterSync a = new ClusterSync(new InetSocketAddress(LOOPBACK, freePort()),
+                    Arrays.asList(to, (InetSocketAddress) capture.getLocalSocketAddress()), KEY))
+        {
+            a.publish(ClusterSync.BAN, ips);
+            List<Integer> sizes = new ArrayList<>();
+            byte[] buf = new byte[65536];
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            capture.setSoTimeout(500);
+            try
+            {
+                while(true)
+                {
+                    p.setLength(buf.length);
+                    capture.receive(p);
+                    sizes.add(p.getLength());
+                }
+            }
+            catch(SocketTimeoutException ignored)
+            {
+            }
+            check("300 events are split into several packets", sizes.size() > 1, true);
+            check("no packet exceeds " + MAX_PACKET_SIZE + " bytes: " + sizes, Collections.max(sizes) <= MAX_PACKET_SIZE, true);
+            List<String> received = new ArrayList<>();
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(received.size() < ips.size() && System.currentTimeMillis() < deadline)
+            {
+                received.addAll(ips(b.poll()));
+                sleep(20);
+            }
+            check("every event is received exactly once", received, ips);
+        }
+    }
+
+    /**
+     * 在同一进程中运行XRDPGuard作为节点B，由节点A发出封禁事件，检查只封禁一次，之后按解除封禁事件解除封禁。
+     */
+    private static void endToEnd() throws Exception
+    {
+        File dir = Files.createTempDirectory("xrdpguard-clustercheck").toFile();
+        File log = new File(dir, "xrdp.log");
+        File key = new File(dir, "cluster.key");
+        File whitelist = new File(dir, "whitelist.txt");
+        Files.write(key.toPath(), KEY.getBytes(StandardCharsets.UTF_8));
+        if(!log.createNewFile())
+            throw new IllegalStateException("Failed to create " + log);
+        for(File f : new File[]{whitelist, key, log, dir})
+            f.deleteOnExit();
+        int portA = freePort(), portB = freePort();
+        String[] guardArgs = {
+                "--log=" + log,
+                "--watch",
+                "--firewall=" + RecordingFirewall.class.getName(),
+                "--whitelist=" + whitelist,
+                "--nobanlog",
+                "--cluster=127.0.0.1:" + portB,
+                "--peer=127.0.0.1:" + portA,
+                "--clusterkey=" + key,
+        };
+        Thread guard = new Thread(() -> XrdpGuard.main(guardArgs), "XrdpGuard");
+        guard.setDaemon(true);
+        guard.start();
+        Thread.sleep(1000);
+
+        RecordingFirewall firewall = new RecordingFirewall();
+        String ip = "203.0.113.50", next = "203.0.113.51";
+        try(DatagramSocket capture = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+            ClusterSync a = new ClusterSync(new InetSocketAddress(LOOPBACK, portA),
+                    Arrays.asList(new InetSocketAddress(LOOPBACK, portB), (InetSocketAddress) capture.getLocalSocketAddress()), KEY))
+        {
+            a.publish(ClusterSync.BAN, Collections.singletonList(ip));
+            check("a ban from a peer is applied", waitFor(() -> RecordingFirewall.getBanCount(ip) > 0), true);
+            // 再次发布同一个封禁，并重放第一次的数据包
+            byte[] buf = new byte[65536];
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            capture.setSoTimeout((int) TIMEOUT_MS);
+            capture.receive(p);
+            a.publish(ClusterSync.BAN, Collections.singletonList(ip));
+            capture.send(new DatagramPacket(buf, p.getLength(), new InetSocketAddress(LOOPBACK, portB)));
+            // 之后的封禁被执行时，之前的数据包都已处理
+            a.publish(ClusterSync.BAN, Collections.singletonList(next));
+            check("a later ban from the same peer is applied", waitFor(() -> RecordingFirewall.getBanCount(next) > 0), true);
+            check("a repeated and replayed ban is applied exactly once", RecordingFirewall.getBanCount(ip), 1);
+            a.publish(ClusterSync.UNBAN, Collections.singletonList(ip));
+            check("an unban from a peer is applied", waitFor(() -> !firewall.isBannedIpv4(ip)), true);
+            check("bans from peers are not sent back", ips(a.poll()), Collections.emptyList());
+        }
+        if(!guard.isAlive())
+        {
+            failures++;
+            System.out.println("FAIL XRDPGuard exited during the check");
+        }
+    }
+
+    /**
+     * 发送数据包，再发送一个哨兵事件，等待哨兵事件被接收后返回之前收到的事件。
+     * 回环地址上的数据包按发送的顺序到达，哨兵事件被接收时之前的数据包都已处理。
+     * @return 哨兵事件之前收到的事件。超时时返回null。
+     */
+    private static List<ClusterSync.Event> exchange(ClusterSync b, DatagramSocket raw, InetSocketAddress to, byte[]... packets) throws IOException
+    {
+        String sentinel = "198.51.100." + ++sentinels;
+        for(byte[] p : packets)
+            raw.send(new DatagramPacket(p, p.length, to));
+        byte[] s = packet(KEY, SENTINEL_NODE, new Ev(ClusterSync.BAN, sentinel, System.currentTimeMillis()));
+        raw.send(new DatagramPacket(s, s.length, to));
+        List<ClusterSync.Event> events = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(System.currentTimeMillis() < deadline)
+        {
+            for(ClusterSync.Event e : b.poll())
+            {
+                if(e.ip.equals(sentinel))
+                    return events;
+                events.add(e);
+            }
+            sleep(10);
+        }
+        return null;
+    }
+
+    /**
+     * 按ClusterSync的格式构造一个数据包。
+     */
+    private static byte[] packet(String key, long nodeId, Ev... events) throws IOException
+    {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(packet);
+        out.writeShort(0x5847);
+        out.writeByte(1);
+        out.writeLong(nodeId);
+        out.writeShort(events.length);
+        for(Ev e : events)
+        {
+            out.writeByte(e.type);
+            out.writeLong(e.timeMs);
+            out.writeUTF(e.ip);
+        }
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            out.write(mac.doFinal(packet.toByteArray()));
+        }
+        catch(GeneralSecurityException e)
+        {
+            throw new IOException(e);
+        }
+        return packet.toByteArray();
+    }
+
+    private static List<String> ips(List<ClusterSync.Event> events)
+    {
+        if(events == null)
+            return null;
+        List<String> ips = new ArrayList<>(events.size());
+        for(ClusterSync.Event e : events)
+            ips.add(e.ip);
+        return ips;
+    }
+
+    private static List<Byte> types(List<ClusterSync.Event> events)
+    {
+        if(events == null)
+            return null;
+        List<Byte> types = new ArrayList<>(events.size());
+        for(ClusterSync.Event e : events)
+            types.add(e.type);
+        return types;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition)
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(!condition.getAsBoolean())
+        {
+            if(System.currentTimeMillis() > deadline)
+                return false;
+            sleep(20);
+        }
+        return true;
+    }
+
+    private static int freePort() throws IOException
+    {
+        try(DatagramSocket s = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0)))
+        {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void sleep(long ms)
+    {
+        try
+        {
+            Thread.sleep(ms);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(String name, Object actual, Object expected)
+    {
+        boolean ok = Objects.equals(actual, expected);
+        if(!ok)
+            failures++;
+        System.out.println((ok ? "PASS " : "FAIL ") + name + (ok ? "" : ": expected " + expected + ", got " + actual));
+    }
+
+    /**
+     * 构造数据包用的事件。
+     */
+    private static final class Ev
+    {
+        final byte type;
+        final String ip;
+        final long timeMs;
+
+        Ev(byte type, String ip, long timeMs)
+        {
+            this.type = type;
+            this.ip = ip;
+            this.timeMs = timeMs;
+        }
+    }
+}
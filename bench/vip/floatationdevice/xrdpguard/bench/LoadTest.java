@@ -0,0 +1,95 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import vip.floatationdevice.xrdpguard.XrdpGuard;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 压力测试工具：在同一进程中以监视模式运行XRDPGuard，同时用AttackLoadGenerator向日志写入模拟攻击，
+ * 最后报告检测延迟的百分位数、日志写入吞吐量、漏封和误封的IP数量。
+ * 检测延迟是从导致失败次数达到阈值的连入记录被写入文件，到RecordingFirewall收到封禁请求之间的时间。
+ * 使用其他防火墙管理器（如NoFirewall）时无法得知封禁时刻，只报告吞吐量。
+ * <pre>
+ * java -cp out vip.floatationdevice.xrdpguard.bench.LoadTest --rate=2000 --duration=30 --attackers=500 --benign=2000 [--restart=10]
+ * </pre>
+ */
+public class LoadTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        AttackLoadGenerator.Options o = AttackLoadGenerator.Options.parse(args);
+        File dir = Files.createTempDirectory("xrdpguard-loadtest").toFile();
+        File log = new File(dir, "xrdp.log");
+        if(!log.createNewFile())
+            throw new IllegalStateException("Failed to create " + log);
+        dir.deleteOnExit();
+        log.deleteOnExit();
+        new File(dir, "whitelist.txt").deleteOnExit();
+        boolean recording = o.firewall.equals(RecordingFirewall.class.getName());
+
+        // 只输出警告和错误，避免大量的封禁日志影响测试结果
+        Logger.getLogger("XrdpGuard").setLevel(Level.WARNING);
+        String[] guardArgs = {
+                "--log=" + log,
+                "--watch",
+                "--firewall=" + o.firewall,
+                "--maxfail=" + o.maxFails,
+                "--period=" + o.periodMs,
+                "--whitelist=" + new File(dir, "whitelist.txt"),
+                "--nobanlog",
+        };
+        Thread guard = new Thread(() -> XrdpGuard.main(guardArgs), "XrdpGuard");
+        guard.setDaemon(true);
+        guard.start();
+        Thread.sleep(1000);
+
+        System.out.println("Writing " + o.rate + " logins/s for " + o.durationMs / 1000 + " s to " + log);
+        AttackLoadGenerator g = o.create(log);
+        long start = System.currentTimeMillis();
+        g.run();
+        long writeMs = System.currentTimeMillis() - start;
+        Thread.sleep(o.graceMs);
+        if(!guard.isAlive())
+            System.out.println("WARNING: XRDPGuard exited during the test");
+
+        System.out.println(String.format(Locale.ROOT, "Wrote %d lines (%d logins) in %.1f s: %.0f lines/s, %.0f logins/s, log size %d KiB",
+                g.getLines(), g.getLogins(), writeMs / 1000.0, g.getLines() * 1000.0 / writeMs, g.getLogins() * 1000.0 / writeMs, log.length() / 1024));
+        if(!recording)
+        {
+            System.out.println("Firewall manager is not " + RecordingFirewall.class.getSimpleName() + ", ban latency is not measured");
+            System.exit(0);
+        }
+        Map<String, Long> expected = g.getExpectedAt();
+        Map<String, Long> banned = RecordingFirewall.getBannedAt();
+        List<Long> latencies = new ArrayList<>();
+        int missed = 0, falseBans = 0;
+        for(Map.Entry<String, Long> e : expected.entrySet())
+        {
+            Long t = banned.get(e.getKey());
+            if(t == null)
+                missed++;
+            else
+                latencies.add(Math.max(0, t - e.getValue()));
+        }
+        for(String ip : banned.keySet())
+            if(!expected.containsKey(ip))
+                falseBans++;
+        Collections.sort(latencies);
+        System.out.println("Attackers that should be banned: " + expected.size() + ", banned: " + banned.size() +
+                ", missed: " + missed + ", false bans: " + falseBans);
+        if(!latencies.isEmpty())
+            System.out.println("Detection latency (ms): p50=" + percentile(latencies, 50) + " p90=" + percentile(latencies, 90) +
+                    " p99=" + percentile(latencies, 99) + " max=" + latencies.get(latencies.size() - 1));
+        System.exit(missed == 0 && falseBans == 0 ? 0 : 1);
+    }
+
+    private static long percentile(List<Long> sorted, int p)
+    {
+        int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1)));
+    }
+}
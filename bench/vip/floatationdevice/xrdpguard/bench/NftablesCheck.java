@@ -0,0 +1,141 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import vip.floatationdevice.xrdpguard.firewall.CommandRunner;
+import vip.floatationdevice.xrdpguard.firewall.Nftables;
+
+import java.util.*;
+
+/**
+ * nftables防火墙管理器的检查工具：不执行nft命令，而是用记录命令并返回预先录制的输出的命令执行器代替，
+ * 检查集合元素的解析（多行的元素列表、附带timeout和expires属性的元素、空集合）和批量操作失败后逐个重试的行为。
+ * 所有检查都通过时返回0，否则返回1。
+ * <pre>
+ * java -cp out vip.floatationdevice.xrdpguard.bench.NftablesCheck
+ * </pre>
+ */
+public class NftablesCheck
+{
+    // 录制的"nft list set inet xrdpguard banned4"的输出，元素列表跨越多行，部分元素带有属性
+    private static final String LIST_V4 = "table inet xrdpguard {\n" +
+            "\tset banned4 {\n" +
+            "\t\ttype ipv4_addr\n" +
+            "\t\tflags interval,timeout\n" +
+            "\t\telements = { 1.2.3.4, 5.6.7.0/24,\n" +
+            "\t\t\t     10.0.0.1 timeout 1h expires 59m58s480ms,\n" +
+            "\t\t\t     192.168.1.0/24 expires 10m }\n" +
+            "\t}\n" +
+            "}";
+    // 录制的"nft list set inet xrdpguard banned6"的输出，元素列表只有一行
+    private static final String LIST_V6 = "table inet xrdpguard {\n" +
+            "\tset banned6 {\n" +
+            "\t\ttype ipv6_addr\n" +
+            "\t\tflags interval\n" +
+            "\t\telements = { 2001:db8::1, 2001:db8:1::/48 }\n" +
+            "\t}\n" +
+            "}";
+    // 录制的空集合的输出，没有元素列表
+    private static final String LIST_EMPTY = "table inet xrdpguard {\n" +
+            "\tset banned6 {\n" +
+            "\t\ttype ipv6_addr\n" +
+            "\t\tflags interval\n" +
+            "\t}\n" +
+            "}";
+
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        listBanned();
+        emptySet();
+        batchFallback();
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * 解析两个集合的元素，并据此回答批量查询。
+     */
+    private static void listBanned()
+    {
+        FakeRunner r = new FakeRunner();
+        r.lists.put("banned4", LIST_V4);
+        r.lists.put("banned6", LIST_V6);
+        Nftables nft = new Nftables(r);
+        check("listBanned() parses multi-line elements with attributes", nft.listBanned(),
+                new HashSet<>(Arrays.asList("1.2.3.4", "5.6.7.0/24", "10.0.0.1", "192.168.1.0/24", "2001:db8::1", "2001:db8:1::/48")));
+        check("isBannedAll() matches mapped IPv4 and IPv6 addresses",
+                nft.isBannedAll(Arrays.asList("::ffff:1.2.3.4", "10.0.0.1", "10.0.0.2", "2001:db8::1", "2001:db8::2")),
+                new HashSet<>(Arrays.asList("::ffff:1.2.3.4", "10.0.0.1", "2001:db8::1")));
+    }
+
+    private static void emptySet()
+    {
+        FakeRunner r = new FakeRunner();
+        r.lists.put("banned4", LIST_V4.replace("1.2.3.4, ", ""));
+        r.lists.put("banned6", LIST_EMPTY);
+        check("listBanned() accepts a set without elements", new Nftables(r).listBanned(),
+                new HashSet<>(Arrays.asList("5.6.7.0/24", "10.0.0.1", "192.168.1.0/24")));
+        r.lists.remove("banned6");
+        check("listBanned() returns null when nft fails", new Nftables(r).listBanned(), null);
+    }
+
+    /**
+     * 批量事务失败时逐个重试，只返回实际成功的IP。
+     */
+    private static void batchFallback()
+    {
+        FakeRunner r = new FakeRunner();
+        Nftables nft = new Nftables(r);
+        r.scripts.clear();
+        List<String> ips = Arrays.asList("1.1.1.1", "::ffff:2.2.2.2", "2001:db8::3");
+        check("banAll() applies a batch in one transaction", nft.banAll(ips), ips);
+        check("banAll() sends one script for the batch", r.scripts,
+                Collections.singletonList("add element inet xrdpguard banned4 { 1.1.1.1, 2.2.2.2 }\n" +
+                        "add element inet xrdpguard banned6 { 2001:db8::3 }\n"));
+        r.failing.add("2.2.2.2");
+        r.scripts.clear();
+        check("banAll() falls back to single elements", nft.banAll(ips), Arrays.asList("1.1.1.1", "2001:db8::3"));
+        check("banAll() retries each element after the batch fails", r.scripts.size(), 4);
+        r.scripts.clear();
+        check("unbanAll() falls back to single elements", nft.unbanAll(ips), Arrays.asList("1.1.1.1", "2001:db8::3"));
+        check("unbanAll() retries each element after the batch fails", r.scripts.get(1),
+                "delete element inet xrdpguard banned4 { 1.1.1.1 }\n");
+    }
+
+    private static void check(String name, Object actual, Object expected)
+    {
+        boolean ok = Objects.equals(actual, expected);
+        if(!ok)
+            failures++;
+        System.out.println((ok ? "PASS " : "FAIL ") + name + (ok ? "" : ": expected " + expected + ", got " + actual));
+    }
+
+    /**
+     * 记录执行的nft脚本，对"nft list set"返回录制的输出；脚本中包含指定的地址时模拟事务失败。
+     */
+    private static final class FakeRunner implements CommandRunner
+    {
+        final Map<String, String> lists = new HashMap<>(); // 集合名 -> 录制的输出
+        final Set<String> failing = new HashSet<>(); // 无法添加或删除的地址
+        final List<String> scripts = new ArrayList<>(); // 执行过的nft脚本
+
+        @Override
+        public int run(List<String> cmd, String input, List<String> outputLines)
+        {
+            if(cmd.size() == 6 && cmd.get(1).equals("list"))
+            {
+                String out = lists.get(cmd.get(5));
+                if(out == null)
+                    return 1;
+                if(outputLines != null)
+                    outputLines.addAll(Arrays.asList(out.split("\n")));
+                return 0;
+            }
+            scripts.add(input);
+            for(String ip : failing)
+                if(input.contains(" " + ip + " ") || input.contains(" " + ip + ","))
+                    return 1;
+            return 0;
+        }
+    }
+}
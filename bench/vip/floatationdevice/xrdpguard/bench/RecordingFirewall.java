@@ -0,0 +1,99 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import vip.floatationdevice.xrdpguard.firewall.FirewallManager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 只记录封禁操作的防火墙管理器，用于压力测试。
+ * XRDPGuard通过无参构造函数创建防火墙管理器的实例，因此封禁记录保存在静态字段中，供测试工具读取。
+ */
+public class RecordingFirewall implements FirewallManager
+{
+    // IP -> 第一次被封禁的时间
+    private static final Map<String, Long> BANNED_AT = new ConcurrentHashMap<>();
+    private static final Set<String> BANNED = ConcurrentHashMap.newKeySet();
+    // IP -> 被封禁的次数
+    private static final Map<String, AtomicInteger> BAN_COUNT = new ConcurrentHashMap<>();
+
+    /**
+     * 获取所有被封禁过的IP及其第一次被封禁的时间。
+     */
+    public static Map<String, Long> getBannedAt()
+    {
+        return BANNED_AT;
+    }
+
+    /**
+     * 获取IP被封禁的次数（包括解除封禁后再次封禁）。
+     */
+    public static int getBanCount(String ip)
+    {
+        AtomicInteger n = BAN_COUNT.get(ip);
+        return n == null ? 0 : n.get();
+    }
+
+    private static boolean ban(String ip)
+    {
+        BANNED_AT.putIfAbsent(ip, System.currentTimeMillis());
+        BANNED.add(ip);
+        BAN_COUNT.computeIfAbsent(ip, k -> new AtomicInteger()).incrementAndGet();
+        return true;
+    }
+
+    private static boolean unban(String ip)
+    {
+        BANNED.remove(ip);
+        return true;
+    }
+
+    @Override
+    public boolean banIpv4(String ip)
+    {
+        return ban(ip);
+    }
+
+    @Override
+    public boolean banIpv6(String ip)
+    {
+        return ban(ip);
+    }
+
+    @Override
+    public boolean unbanIpv4(String ip)
+    {
+        return unban(ip);
+    }
+
+    @Override
+    public boolean unbanIpv6(String ip)
+    {
+        return unban(ip);
+    }
+
+    @Override
+    public boolean isBannedIpv4(String ip)
+    {
+        return BANNED.contains(ip);
+    }
+
+    @Override
+    public boolean isBannedIpv6(String ip)
+    {
+        return BANNED.contains(ip);
+    }
+
+    @Override
+    public boolean apply()
+    {
+        return true;
+    }
+
+    @Override
+    public Set<String> listBanned()
+    {
+        return new HashSet<>(BANNED);
+    }
+}
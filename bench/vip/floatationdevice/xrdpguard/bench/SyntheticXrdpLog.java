@@ -0,0 +1,192 @@
+package vip.floatationdevice.xrdpguard.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 生成格式与真实XRDP日志相同的合成日志，用于基准测试和压力测试。
+ * 每次登录由一条连入记录、若干条无关的日志行和（登录成功时）一条登录成功记录组成。
+ * 来源IP从固定数量的地址中随机选取，其中一部分为IPv6地址，IPv4地址有时以IPv4映射地址（::ffff:a.b.c.d）的形式出现。
+ * 相同的参数和随机数种子总是生成相同的日志。
+ * <pre>
+ * java -cp out vip.floatationdevice.xrdpguard.bench.SyntheticXrdpLog --lines=1000000 --ips=10000 --out=xrdp.log
+ * </pre>
+ */
+public class SyntheticXrdpLog
+{
+    private static final String[] NOISE = {
+            "[INFO ] Using default X.509 certificate: /etc/xrdp/cert.pem",
+            "[INFO ] Using default X.509 key file: /etc/xrdp/key.pem",
+            "[DEBUG] Security protocol: configured [SSL|RDP], requested [SSL|HYBRID|RDP], selected [SSL]",
+            "[DEBUG] Closed socket 12 (AF_INET6 :: port 3389)",
+            "[INFO ] xrdp_wm_log_msg: connection problem, giving up",
+            "[ERROR] xrdp_sec_recv: xrdp_mcs_recv failed",
+    };
+
+    private final Random rnd;
+    private final String[] addrs;
+    private final double successRatio;
+    private final int noisePerLogin;
+    private long timeMs;
+    private final long stepMs;
+
+    /**
+     * @param seed 随机数种子。
+     * @param ipCount 来源IP的数量。
+     * @param ipv6Ratio IPv6地址所占的比例。
+     * @param successRatio 登录成功的比例。
+     * @param noisePerLogin 每次登录附带的无关日志行数。
+     * @param startMs 第一条记录的时间。
+     * @param stepMs 相邻两次登录的平均间隔（毫秒）。
+     */
+    public SyntheticXrdpLog(long seed, int ipCount, double ipv6Ratio, double successRatio, int noisePerLogin, long startMs, long stepMs)
+    {
+        this.rnd = new Random(seed);
+        this.addrs = new String[Math.max(ipCount, 1)];
+        for(int i = 0; i < addrs.length; i++)
+            addrs[i] = randomAddr(rnd.nextDouble() < ipv6Ratio);
+        this.successRatio = successRatio;
+        this.noisePerLogin = noisePerLogin;
+        this.timeMs = startMs;
+        this.stepMs = Math.max(stepMs, 0);
+    }
+
+    /**
+     * 生成一个随机的公网地址。
+     */
+    public String randomAddr(boolean ipv6)
+    {
+        if(ipv6)
+            return ipv6ToString(0x2001_0db8_0000_0000L | (rnd.nextLong() & 0xffff_ffffL), rnd.nextLong());
+        int v4 = (rnd.nextInt(223) + 1) << 24 | rnd.nextInt(1 << 24);
+        String s = ipv4ToString(v4);
+        return rnd.nextBoolean() ? "::ffff:" + s : s;
+    }
+
+    /**
+     * 获取来源IP列表。
+     */
+    public String[] getAddrs()
+    {
+        return addrs;
+    }
+
+    /**
+     * 获取下一条记录的时间。
+     */
+    public long getTimeMs()
+    {
+        return timeMs;
+    }
+
+    /**
+     * 设置下一条记录的时间。
+     */
+    public void setTimeMs(long timeMs)
+    {
+        this.timeMs = timeMs;
+    }
+
+    /**
+     * 追加一次随机来源、随机结果的登录。
+     * @return 追加的行数。
+     */
+    public int appendLogin(StringBuilder sb)
+    {
+        return appendLogin(sb, addrs[rnd.nextInt(addrs.length)], rnd.nextDouble() < successRatio);
+    }
+
+    /**
+     * 追加一次指定来源和结果的登录。
+     * @param addr 来源IP。
+     * @param success 登录是否成功。
+     * @return 追加的行数。
+     */
+    public int appendLogin(StringBuilder sb, String addr, boolean success)
+    {
+        line(sb, "[INFO ] Socket 12: AF_INET6 connection received from " + addr + " port " + (1024 + rnd.nextInt(64000)));
+        for(int i = 0; i < noisePerLogin; i++)
+            line(sb, NOISE[rnd.nextInt(NOISE.length)]);
+        if(success)
+            line(sb, "[INFO ] login successful for user admin on display 10");
+        if(stepMs != 0)
+            timeMs += rnd.nextInt((int) Math.min(stepMs * 2 + 1, Integer.MAX_VALUE));
+        return 1 + noisePerLogin + (success ? 1 : 0);
+    }
+
+    /**
+     * 追加一条日志开始标志。
+     * @return 追加的行数。
+     */
+    public int appendStart(StringBuilder sb)
+    {
+        line(sb, "[INFO ] starting xrdp with pid " + (1000 + rnd.nextInt(30000)));
+        return 1;
+    }
+
+    /**
+     * 生成至少指定行数的日志，第一行为日志开始标志。
+     */
+    public byte[] generate(int lines)
+    {
+        StringBuilder sb = new StringBuilder(lines * 80);
+        int n = appendStart(sb);
+        while(n < lines)
+            n += appendLogin(sb);
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 将至少指定行数的日志写入文件，第一行为日志开始标志。
+     */
+    public void write(File f, long lines) throws IOException
+    {
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16))
+        {
+            StringBuilder sb = new StringBuilder(1 << 16);
+            long n = appendStart(sb);
+            while(n < lines)
+            {
+                n += appendLogin(sb);
+                if(sb.length() >= 60000)
+                {
+                    out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+                    sb.setLength(0);
+                }
+            }
+            out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private void line(StringBuilder sb, String msg)
+    {
+        sb.append('[').append(toXRDPTime(timeMs)).append("] ").append(msg).append('\n');
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        long lines = 1000000;
+        int ips = 10000;
+        double ipv6 = 0.2, success = 0.1;
+        String out = "xrdp.log";
+        for(String a : args)
+        {
+            if(a.startsWith("--lines="))
+                lines = Long.parseLong(a.substring(8));
+            else if(a.startsWith("--ips="))
+                ips = Integer.parseInt(a.substring(6));
+            else if(a.startsWith("--ipv6="))
+                ipv6 = Double.parseDouble(a.substring(7));
+            else if(a.startsWith("--success="))
+                success = Double.parseDouble(a.substring(10));
+            else if(a.startsWith("--out="))
+                out = a.substring(6);
+        }
+        long startMs = System.currentTimeMillis() - lines * 200;
+        new SyntheticXrdpLog(42, ips, ipv6, success, 2, startMs, 200).write(new File(out), lines);
+        System.out.println("Wrote " + lines + " lines to " + out);
+    }
+}
@@ -0,0 +1,354 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.logging.Logger;
+
+/**
+ * 封禁日志。每个封禁、解除封禁和到期解封事件保存为一行以制表符分隔的记录：
+ * <pre>
+ * 事件时间（毫秒时间戳）	BAN	IP	到期时间（毫秒时间戳，0为永久）	累计封禁次数
+ * 事件时间（毫秒时间戳）	UNBAN	IP
+ * 事件时间（毫秒时间戳）	EXPIRE	IP
+ * </pre>
+ * 日志文件在整个运行期间保持打开，记录先写入缓冲区，调用commit()时一次性提交。
+ * 写入和同步到磁盘在单独的写入线程中进行，调用者不必等待磁盘；提交的记录经有界队列交给写入线程，
+ * 写入线程每次取出队列中所有的提交一起写入，只同步一次（成组提交）。队列满时commit()等待写入线程，不会丢弃记录。
+ * 启动时重放日志即可恢复封禁状态；日志中过时的记录过多时，用当前的封禁状态重写日志（压缩）。
+ * 除写入线程外，此类只能在一个线程中调用。
+ */
+public class BanJournal
+{
+    public static final String BAN = "BAN";
+    public static final String UNBAN = "UNBAN";
+    public static final String EXPIRE = "EXPIRE";
+    private static final int COMPACT_MIN_RECORDS = 1000; // 记录数少于此值时不压缩
+    private static final int QUEUE_CAPACITY = 256;
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final Path path;
+    private final StringBuilder pending = new StringBuilder(); // 尚未提交的记录
+    private final SpscQueue<Write> writes = new SpscQueue<>(QUEUE_CAPACITY); // 等待写入线程写入的提交
+    private FileChannel channel; // 只在写入线程中访问
+    private final StringBuilder unwritten = new StringBuilder(); // 写入失败、等待重试的记录，只在写入线程中访问
+    private int records = 0; // 日志文件中的记录数（包括尚未写入的）
+    private boolean compacting = false; // 是否有已交给写入线程、尚未得知结果的压缩
+    private int compactBase; // 提交压缩时的记录数
+    private int compactRecords; // 压缩后的日志中的记录数
+    private Boolean compactResult = null; // 写入线程压缩日志的结果，尚未压缩时为null，由this保护
+    private long submitted = 0; // 已提交的次数
+    private long completed = 0; // 写入线程已处理的提交次数，由this保护
+
+    public BanJournal(String path)
+    {
+        this.path = Paths.get(path);
+        Thread t = new Thread(this::work, "XrdpGuard-journal");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 重放封禁日志，将封禁状态恢复到BanStore中。文件不存在时不做任何事。
+     * 无法识别的行（如旧版本的封禁记录或写入中途退出留下的不完整的行）会被跳过。
+     * @param store 要恢复到的BanStore。
+     * @throws IOException 读取文件失败时抛出。
+     */
+    public void replay(BanStore store) throws IOException
+    {
+        if(!Files.exists(path))
+            return;
+        int skipped = 0;
+        try(BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+        {
+            String line;
+            while((line = br.readLine()) != null)
+            {
+                records++;
+                String[] f = line.split("\t");
+                try
+                {
+                    if(f.length == 5 && f[1].equals(BAN))
+                        store.restore(f[2], Long.parseLong(f[0]), Long.parseLong(f[3]), Integer.parseInt(f[4]));
+                    else if(f.length == 3 && (f[1].equals(UNBAN) || f[1].equals(EXPIRE)))
+                        store.unban(f[2]);
+                    else
+                        skipped++;
+                }
+                catch(NumberFormatException e)
+                {
+                    skipped++;
+                }
+            }
+        }
+        int r = records, s = skipped;
+        l.fine(() -> "Replayed " + r + " ban journal records (" + s + " skipped)");
+    }
+
+    /**
+     * 添加一条封禁记录。记录在调用commit()后才会写入文件。
+     */
+    public void logBan(BanStore.Ban b)
+    {
+        pending.append(b.bannedAt).append('\t').append(BAN).append('\t').append(b.ip).append('\t')
+                .append(b.expiresAt).append('\t').append(b.count).append('\n');
+    }
+
+    /**
+     * 添加一条解除封禁记录。记录在调用commit()后才会写入文件。
+     * @param timeMs 解除封禁的时间。
+     * @param ip 被解除封禁的IP。
+     * @param expired 是否是因为封禁到期而解除。
+     */
+    public void logUnban(long timeMs, String ip, boolean expired)
+    {
+        pending.append(timeMs).append('\t').append(expired ? EXPIRE : UNBAN).append('\t').append(ip).append('\n');
+    }
+
+    /**
+     * 将所有尚未提交的记录交给写入线程写入文件并同步到磁盘。写入失败时由写入线程输出错误。
+     */
+    public void commit()
+    {
+        if(pending.length() == 0)
+            return;
+        for(int i = 0; i < pending.length(); i++)
+            if(pending.charAt(i) == '\n')
+                records++;
+        submit(new Write(pending.toString(), false));
+        pending.setLength(0);
+    }
+
+    /**
+     * 如果日志中的记录数远多于当前的封禁记录数，用当前的封禁状态重写日志。
+     * 新日志由写入线程先写入临时文件，再替换原文件。压缩成功后记录数才会减少，压缩失败时之后会再次尝试。
+     * @param bans 当前的所有封禁记录。
+     */
+    public void compactIfNeeded(Collection<BanStore.Ban> bans)
+    {
+        if(compacting)
+        {
+            Boolean ok;
+            synchronized(this)
+            {
+                ok = compactResult;
+                compactResult = null;
+            }
+            // 上次的压缩尚未完成
+            if(ok == null)
+                return;
+            compacting = false;
+            // 压缩后的日志只包含压缩时的封禁状态，之后追加的记录不受影响
+            if(ok)
+                records = records - compactBase + compactRecords;
+        }
+        if(records < COMPACT_MIN_RECORDS || records < bans.size() * 4)
+            return;
+        commit();
+        StringBuilder sb = new StringBuilder();
+        for(BanStore.Ban b : bans)
+        {
+            sb.append(b.bannedAt).append('\t').append(BAN).append('\t').append(b.ip).append('\t')
+                    .append(b.expiresAt).append('\t').append(b.count).append('\n');
+            if(!b.active)
+                sb.append(b.bannedAt).append('\t').append(UNBAN).append('\t').append(b.ip).append('\n');
+        }
+        int before = records;
+        compactRecords = 0;
+        for(BanStore.Ban b : bans)
+            compactRecords += b.active ? 1 : 2;
+        int after = compactRecords;
+        compacting = true;
+        compactBase = before;
+        submit(new Write(sb.toString(), true));
+        l.fine(() -> "Compacting ban journal from " + before + " to " + after + " records");
+    }
+
+    /**
+     * 等待写入线程写入所有已提交的记录。在退出之前调用。
+     * @param timeoutMs 最长等待时间（毫秒）。
+     * @return 如果所有记录都已处理，返回true；如果超时，返回false。
+     */
+    public synchronized boolean flush(long timeoutMs)
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining;
+        while(completed < submitted && (remaining = deadline - System.currentTimeMillis()) > 0)
+        {
+            try
+            {
+                wait(remaining);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return completed >= submitted;
+    }
+
+    /**
+     * 获取连接调用者和写入线程的队列，用于统计。
+     */
+    public SpscQueue<?> getQueue()
+    {
+        return writes;
+    }
+
+    private void submit(Write w)
+    {
+        synchronized(this)
+        {
+            submitted++;
+        }
+        writes.put(w);
+    }
+
+    private void work()
+    {
+        while(true)
+        {
+            Write w;
+            try
+            {
+                w = writes.take(Long.MAX_VALUE);
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+            if(w == null)
+                continue;
+            // 取出队列中所有的提交一起写入，最后只同步一次
+            int n = 0;
+            try
+            {
+                do
+                {
+                    n++;
+                    if(w.compact)
+                    {
+                        // 压缩后的日志已包含之前所有的记录
+                        try
+                        {
+                            compact(w.text);
+                        }
+                        catch(IOException e)
+                        {
+                            compacted(false);
+                            throw e;
+                        }
+                        unwritten.setLength(0);
+                        compacted(true);
+                    }
+                    else
+                        unwritten.append(w.text);
+                }
+                while((w = writes.poll()) != null);
+                if(unwritten.length() != 0)
+                {
+                    append(unwritten.toString());
+                    channel.force(false);
+                    unwritten.setLength(0);
+                }
+                l.fine("Ban log write success");
+            }
+            catch(IOException e)
+            {
+                // 未写入的记录保留到下次提交时重试
+                l.severe("Failed to write ban log: " + e);
+                closeChannel();
+            }
+            synchronized(this)
+            {
+                completed += n;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 通知调用者压缩的结果。在写入线程中调用。
+     */
+    private synchronized void compacted(boolean ok)
+    {
+        compactResult = ok;
+    }
+
+    private void append(String text) throws IOException
+    {
+        if(channel == null)
+        {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            // 上次退出时可能留下了不完整的行，先换行，避免新记录与其连在一起
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if(channel.size() != 0 && channel.read(last, channel.size() - 1) == 1 && last.get(0) != '\n')
+                text = "\n" + text;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while(buf.hasRemaining())
+            channel.write(buf);
+    }
+
+    private void compact(String text) throws IOException
+    {
+        Path tmp = path.toAbsolutePath().getParent().resolve(path.getFileName() + ".tmp");
+        try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer buf = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            while(buf.hasRemaining())
+                out.write(buf);
+            out.force(false);
+        }
+        closeChannel();
+        try
+        {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        l.fine("Compacted ban journal");
+    }
+
+    /**
+     * 关闭日志文件。下次写入时会重新打开。
+     */
+    private void closeChannel()
+    {
+        if(channel == null)
+            return;
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+            l.warning("Failed to close ban journal: " + e);
+        }
+        channel = null;
+    }
+
+    /**
+     * 一次提交：追加的记录，或压缩后的完整日志。
+     */
+    private static final class Write
+    {
+        final String text;
+        final boolean compact;
+
+        Write(String text, boolean compact)
+        {
+            this.text = text;
+            this.compact = compact;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.util.*;
+
+/**
+ * 保存封禁状态并安排到期解封。
+ * 每个IP记录封禁时间、到期时间和累计被封禁的次数，同一IP再次被封禁时封禁时长按倍数递增。
+ * 到期时间保存在以到期时间排序的优先队列中，每次只需检查队首即可找出所有到期的封禁。
+ * 封禁状态通过BanJournal持久化，重启后重放封禁日志即可恢复，未到期的封禁仍会按时解除。
+ * 已解除的封禁记录只用于计算再次封禁的时长，在最近一次封禁结束后超过最长封禁时长的FORGET_FACTOR倍
+ * （不设上限时为首次封禁时长的FORGET_FACTOR倍，永久封禁时立即）仍未再次被封禁的IP会被忘记，
+ * 下次封禁重新从首次封禁的时长开始。这样记录数量不会随着见过的攻击者数量无限增长。
+ */
+public class BanStore
+{
+    private final long banTimeMs; // 首次封禁的时长，小于0表示永久封禁
+    private final double factor; // 再次封禁时时长的倍数
+    private final long maxBanTimeMs; // 封禁时长的上限，小于0表示不设上限
+    private static final int FORGET_FACTOR = 10;
+    private final long forgetMs; // 已解除的封禁在结束多久之后被忘记
+    private final Map<String, Ban> bans = new HashMap<>();
+    private int activeCount = 0; // 处于封禁状态的记录数量
+    // 按到期时间排序的待解封队列。封禁被更新时旧的队列项不会被移除，出队时与bans中的记录比较来识别
+    private final PriorityQueue<Ban> expiryQueue = new PriorityQueue<>(Comparator.comparingLong(b -> b.expiresAt));
+    // 按结束时间排序的已解除封禁的队列，同样在出队时识别已被更新的记录
+    private final PriorityQueue<Ban> forgetQueue = new PriorityQueue<>(Comparator.comparingLong(Ban::endedAt));
+
+    /**
+     * 一个IP的封禁记录。
+     */
+    public static final class Ban
+    {
+        public final String ip;
+        public final long bannedAt; // 最近一次被封禁的时间
+        public final long expiresAt; // 到期时间，0表示永久封禁
+        public final int count; // 累计被封禁的次数
+        public final boolean active; // 当前是否处于封禁状态
+
+        Ban(String ip, long bannedAt, long expiresAt, int count, boolean active)
+        {
+            this.ip = ip;
+            this.bannedAt = bannedAt;
+            this.expiresAt = expiresAt;
+            this.count = count;
+            this.active = active;
+        }
+
+        /**
+         * 封禁结束的时间。提前解除的封禁以原定的到期时间为准，永久封禁以封禁时间为准。
+         */
+        long endedAt()
+        {
+            return Math.max(bannedAt, expiresAt);
+        }
+    }
+
+    /**
+     * @param banTimeMs 首次封禁的时长（毫秒），小于0表示永久封禁。
+     * @param factor 同一IP再次被封禁时，封禁时长相对上一次的倍数。
+     * @param maxBanTimeMs 封禁时长的上限（毫秒），小于0表示不设上限。
+     */
+    public BanStore(long banTimeMs, double factor, long maxBanTimeMs)
+    {
+        this.banTimeMs = banTimeMs;
+        this.factor = factor;
+        this.maxBanTimeMs = maxBanTimeMs;
+        long longest = banTimeMs < 0 ? 0 : maxBanTimeMs >= 0 ? maxBanTimeMs : banTimeMs;
+        this.forgetMs = longest > Long.MAX_VALUE / FORGET_FACTOR ? Long.MAX_VALUE : longest * FORGET_FACTOR;
+    }
+
+    /**
+     * 恢复一条封禁记录。用于重放封禁日志。
+     * @param ip 被封禁的IP。
+     * @param bannedAt 封禁时间。
+     * @param expiresAt 到期时间，0表示永久封禁。
+     * @param count 累计被封禁的次数。
+     */
+    public void restore(String ip, long bannedAt, long expiresAt, int count)
+    {
+        put(new Ban(ip, bannedAt, expiresAt, count, true));
+    }
+
+    /**
+     * 记录一次封禁，并根据此IP以往被封禁的次数计算到期时间。
+     * @param ip 被封禁的IP。
+     * @param nowMs 封禁时间。
+     * @return 新的封禁记录。
+     */
+    public Ban ban(String ip, long nowMs)
+    {
+        Ban old = bans.get(ip);
+        int count = old == null ? 1 : old.count + 1;
+        long expiresAt = 0;
+        if(banTimeMs >= 0)
+        {
+            double duration = banTimeMs * Math.pow(factor, count - 1);
+            if(maxBanTimeMs >= 0 && duration > maxBanTimeMs)
+                duration = maxBanTimeMs;
+            expiresAt = nowMs + (long) Math.min(duration, Long.MAX_VALUE - nowMs);
+        }
+        Ban b = new Ban(ip, nowMs, expiresAt, count, true);
+        put(b);
+        return b;
+    }
+
+    /**
+     * 记录一次解除封禁。保留此IP被封禁的次数，用于计算下次封禁的时长。
+     * @param ip 被解除封禁的IP。
+     */
+    public void unban(String ip)
+    {
+        Ban old = bans.get(ip);
+        if(old != null && old.active)
+            put(new Ban(ip, old.bannedAt, old.expiresAt, old.count, false));
+    }
+
+    /**
+     * 推迟一个封禁的到期时间。用于到期后解除封禁失败，需要稍后重试的情况。
+     * @param ip IP地址。
+     * @param expiresAt 新的到期时间。
+     */
+    public void postpone(String ip, long expiresAt)
+    {
+        Ban old = bans.get(ip);
+        if(old != null && old.active)
+            put(new Ban(ip, old.bannedAt, expiresAt, old.count, true));
+    }
+
+    /**
+     * 获取所有已到期但尚未解除的封禁。返回的IP需要由调用者解除封禁后再调用unban()。
+     * @param nowMs 当前时间。
+     * @return 已到期的IP。
+     */
+    public List<String> pollExpired(long nowMs)
+    {
+        forget(nowMs);
+        List<String> expired = new ArrayList<>();
+        while(!expiryQueue.isEmpty() && expiryQueue.peek().expiresAt <= nowMs)
+        {
+            Ban b = expiryQueue.poll();
+            if(bans.get(b.ip) == b) // 跳过已被更新或已解除的封禁
+                expired.add(b.ip);
+        }
+        return expired;
+    }
+
+    /**
+     * 忘记结束时间早于忘记期限的已解除封禁。在压缩封禁日志之前调用，使压缩后的日志也不再包含它们。
+     * @param nowMs 当前时间。
+     */
+    public void forget(long nowMs)
+    {
+        while(!forgetQueue.isEmpty() && forgetQueue.peek().endedAt() < nowMs - forgetMs)
+        {
+            Ban b = forgetQueue.poll();
+            if(bans.get(b.ip) == b) // 跳过已再次被封禁的记录
+                bans.remove(b.ip);
+        }
+    }
+
+    /**
+     * 获取距离下一个封禁到期的时间。
+     * @param nowMs 当前时间。
+     * @return 毫秒数。如果没有待到期的封禁，返回Long.MAX_VALUE。
+     */
+    public long msUntilNextExpiry(long nowMs)
+    {
+        // 先丢弃队首已失效的队列项
+        while(!expiryQueue.isEmpty() && bans.get(expiryQueue.peek().ip) != expiryQueue.peek())
+            expiryQueue.poll();
+        return expiryQueue.isEmpty() ? Long.MAX_VALUE : Math.max(0, expiryQueue.peek().expiresAt - nowMs);
+    }
+
+    /**
+     * 获取一个IP的封禁记录。
+     * @return 封禁记录，如果此IP从未被封禁过，返回null。
+     */
+    public Ban get(String ip)
+    {
+        return bans.get(ip);
+    }
+
+    /**
+     * 获取所有封禁记录（包括已解除但尚未被忘记的）。
+     */
+    public Collection<Ban> getAll()
+    {
+        return Collections.unmodifiableCollection(bans.values());
+    }
+
+    /**
+     * 获取处于封禁状态的记录数量。
+     */
+    public int getActiveCount()
+    {
+        return activeCount;
+    }
+
+    private void put(Ban b)
+    {
+        Ban old = bans.put(b.ip, b);
+        if(old != null && old.active)
+            activeCount--;
+        if(b.active)
+            activeCount++;
+        if(b.active && b.expiresAt != 0)
+            expiryQueue.add(b);
+        if(!b.active)
+            forgetQueue.add(b);
+    }
+}
@@ -0,0 +1,335 @@
+package vip.floatationdevice.xrdpguard;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * 在多个XRDPGuard实例之间通过UDP传播封禁和解除封禁事件，使在一台主机上被封禁的攻击者在其他主机上也被封禁。
+ * 每个实例既发送自己产生的事件，也接收其他实例的事件，事件由接收方通过本地的防火墙管理器执行。
+ * 同一次检查中产生的事件合并到尽量少的数据包中发送，每个数据包的格式为：
+ * <pre>
+ * 魔数 "XG"	版本	节点ID	事件数量
+ * 事件类型（BAN/UNBAN）	事件时间（毫秒时间戳）	IP或地址段
+ * ...
+ * HMAC-SHA256（使用共享密钥计算，不正确的数据包会被丢弃）
+ * </pre>
+ * 每个IP记录最近一次事件的版本（事件时间，时间相同时比较节点ID），只接受比已知版本更新的事件，
+ * 因此重复收到的事件会被丢弃，同一个IP的封禁和解除封禁事件在所有实例上按相同的顺序生效。
+ * 太旧（或时间远在未来）的事件也会被丢弃，防止截获的数据包被重放。
+ * 事件中的地址必须是合法的IP地址或CIDR地址段，否则会被丢弃：即使数据包来自持有密钥的实例，其中的文本也不会原样交给防火墙命令。
+ * UDP不保证送达，丢失的事件不会重发；各个实例仍然独立检测，不依赖其他实例的事件。
+ * 接收在后台线程中进行，收到的事件由主线程调用poll()取出处理。
+ */
+public class ClusterSync implements Closeable
+{
+    public static final byte BAN = 1;
+    public static final byte UNBAN = 2;
+    private static final short MAGIC = 0x5847; // "XG"
+    private static final byte VERSION = 1;
+    private static final int MAX_PACKET_SIZE = 1400; // 避免IP分片
+    private static final int HEADER_SIZE = 2 + 1 + 8 + 2;
+    private static final int MAC_SIZE = 32;
+    private static final long MAX_EVENT_AGE_MS = 10 * 60 * 1000; // 事件时间与本机时间最多相差10分钟
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final SecretKeySpec key;
+    private final Mac sendMac; // Mac不是线程安全的，发送和接收各用一个
+    private final long nodeId = new SecureRandom().nextLong();
+    private final Queue<Event> received = new ConcurrentLinkedQueue<>();
+    private final Map<String, Event> versions = new HashMap<>(); // IP -> 最近一次事件，只在主线程中访问
+    private long lastPruneMs = System.currentTimeMillis();
+    private volatile Runnable wakeup;
+
+    /**
+     * @param bind 接收事件的本地地址。
+     * @param peers 其他实例的地址。
+     * @param secret 所有实例共享的密钥。
+     * @throws IOException 无法监听本地地址时抛出。
+     */
+    public ClusterSync(InetSocketAddress bind, List<InetSocketAddress> peers, String secret) throws IOException
+    {
+        this.peers = new ArrayList<>(peers);
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.sendMac = newMac();
+        socket = new DatagramSocket(bind);
+        Thread t = new Thread(this::receive, "XrdpGuard-cluster");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 设置收到事件时调用的函数，用于唤醒正在等待的主线程。
+     */
+    public void setWakeup(Runnable wakeup)
+    {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * 向所有其他实例发送本实例产生的事件。
+     * @param type 事件类型（BAN或UNBAN）。
+     * @param ips 被封禁或解除封禁的IP或地址段。
+     */
+    public void publish(byte type, Collection<String> ips)
+    {
+        if(ips.isEmpty())
+            return;
+        long nowMs = System.currentTimeMillis();
+        List<Event> events = new ArrayList<>(ips.size());
+        for(String ip : ips)
+        {
+            // 保证本实例的事件比已知的事件更新，即使本机时间比其他实例慢
+            Event last = versions.get(ip);
+            Event e = new Event(type, ip, last == null ? nowMs : Math.max(nowMs, last.timeMs + 1), nodeId);
+            versions.put(ip, e);
+            events.add(e);
+        }
+        try
+        {
+            for(byte[] packet : encode(events))
+                for(InetSocketAddress peer : peers)
+                    socket.send(new DatagramPacket(packet, packet.length, peer));
+            Metrics.CLUSTER_EVENTS_SENT.add(events.size());
+            l.fine(() -> "Sent " + events.size() + " events to " + peers.size() + " peers");
+        }
+        catch(IOException e)
+        {
+            l.warning("Failed to send ban events to peers: " + e);
+        }
+    }
+
+    /**
+     * 取出所有收到的、比已知版本更新的事件。
+     * @return 按收到的顺序排列的事件。
+     */
+    public List<Event> poll()
+    {
+        long nowMs = System.currentTimeMillis();
+        // 超过最大时间差的版本不再需要：比它更旧的事件都会因为太旧被丢弃
+        if(nowMs - lastPruneMs > MAX_EVENT_AGE_MS)
+        {
+            versions.values().removeIf(e -> e.timeMs < nowMs - MAX_EVENT_AGE_MS);
+            lastPruneMs = nowMs;
+        }
+        List<Event> events = new ArrayList<>();
+        Event e;
+        while((e = received.poll()) != null)
+        {
+            if(Math.abs(nowMs - e.timeMs) > MAX_EVENT_AGE_MS)
+            {
+                Metrics.CLUSTER_EVENTS_DROPPED.inc();
+                continue;
+            }
+            Event last = versions.get(e.ip);
+            if(last != null && !e.isNewerThan(last))
+            {
+                Metrics.CLUSTER_EVENTS_DROPPED.inc();
+                continue;
+            }
+            versions.put(e.ip, e);
+            events.add(e);
+        }
+        Metrics.CLUSTER_EVENTS_RECEIVED.add(events.size());
+        return events;
+    }
+
+    @Override
+    public void close()
+    {
+        socket.close();
+    }
+
+    private void receive()
+    {
+        Mac mac;
+        try
+        {
+            mac = newMac();
+        }
+        catch(IOException e)
+        {
+            l.severe(e.toString());
+            return;
+        }
+        byte[] buf = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while(!socket.isClosed())
+        {
+            try
+            {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                List<Event> events = decode(mac, buf, packet.getLength());
+                if(events == null)
+                {
+                    Metrics.CLUSTER_PACKETS_REJECTED.inc();
+                    l.fine(() -> "Rejected invalid packet from " + packet.getSocketAddress());
+                    continue;
+                }
+                if(events.isEmpty())
+                    continue;
+                received.addAll(events);
+                l.fine(() -> "Received " + events.size() + " events from " + packet.getSocketAddress());
+                Runnable w = wakeup;
+                if(w != null)
+                    w.run();
+            }
+            catch(IOException e)
+            {
+                if(!socket.isClosed())
+                    l.warning("Failed to receive ban events: " + e);
+            }
+        }
+    }
+
+    /**
+     * 将事件编码为一个或多个数据包。
+     */
+    private List<byte[]> encode(List<Event> events) throws IOException
+    {
+        List<byte[]> packets = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        int count = 0;
+        for(Event e : events)
+        {
+            int before = body.size();
+            out.writeByte(e.type);
+            out.writeLong(e.timeMs);
+            out.writeUTF(e.ip);
+            if(HEADER_SIZE + body.size() + MAC_SIZE > MAX_PACKET_SIZE && count != 0)
+            {
+                // 放不下，之前的事件先组成一个数据包
+                byte[] b = body.toByteArray();
+                packets.add(seal(Arrays.copyOf(b, before), count));
+                body.reset();
+                body.write(b, before, b.length - before);
+                count = 0;
+            }
+            count++;
+        }
+        packets.add(seal(body.toByteArray(), count));
+        return packets;
+    }
+
+    private byte[] seal(byte[] events, int count) throws IOException
+    {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream(HEADER_SIZE + events.length + MAC_SIZE);
+        DataOutputStream out = new DataOutputStream(packet);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(nodeId);
+        out.writeShort(count);
+        out.write(events);
+        out.write(sendMac.doFinal(packet.toByteArray()));
+        return packet.toByteArray();
+    }
+
+    /**
+     * 校验并解码一个数据包。
+     * @return 事件列表。如果数据包无效，返回null；如果是本实例发出的数据包，返回空列表。
+     */
+    private List<Event> decode(Mac mac, byte[] b, int len)
+    {
+        if(len < HEADER_SIZE + MAC_SIZE)
+            return null;
+        mac.update(b, 0, len - MAC_SIZE);
+        if(!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(b, len - MAC_SIZE, len)))
+            return null;
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, 0, len - MAC_SIZE));
+            if(in.readShort() != MAGIC || in.readByte() != VERSION)
+                return null;
+            long node = in.readLong();
+            if(node == nodeId)
+                return Collections.emptyList();
+            int count = in.readUnsignedShort();
+            List<Event> events = new ArrayList<>(count);
+            for(int i = 0; i < count; i++)
+            {
+                byte type = in.readByte();
+                long timeMs = in.readLong();
+                String ip = in.readUTF();
+                if(type != BAN && type != UNBAN)
+                    return null;
+                if(!IpPrefixTrie.isValid(ip))
+                {
+                    Metrics.CLUSTER_EVENTS_DROPPED.inc();
+                    l.warning("Dropped event with invalid address from peer " + Long.toHexString(node));
+                    continue;
+                }
+                events.add(new Event(type, ip, timeMs, node));
+            }
+            return events;
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+
+    private Mac newMac() throws IOException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        }
+        catch(GeneralSecurityException e)
+        {
+            throw new IOException("Failed to initialize HMAC-SHA256: " + e, e);
+        }
+    }
+
+    /**
+     * 解析"主机:端口"或"端口"形式的地址，IPv6地址需要用方括号括起来（如"[::1]:7000"）。
+     * @param s 地址。
+     * @param defaultHost 只有端口时使用的主机。
+     * @return 套接字地址。
+     */
+    public static InetSocketAddress parseAddress(String s, String defaultHost)
+    {
+        int i = s.lastIndexOf(':');
+        String host = i == -1 ? defaultHost : s.substring(0, i);
+        if(host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        return new InetSocketAddress(host, Integer.parseInt(s.substring(i + 1)));
+    }
+
+    /**
+     * 封禁或解除封禁事件。
+     */
+    public static final class Event
+    {
+        public final byte type;
+        public final String ip;
+        public final long timeMs;
+        public final long nodeId;
+
+        Event(byte type, String ip, long timeMs, long nodeId)
+        {
+            this.type = type;
+            this.ip = ip;
+            this.timeMs = timeMs;
+            this.nodeId = nodeId;
+        }
+
+        boolean isNewerThan(Event e)
+        {
+            return timeMs > e.timeMs || timeMs == e.timeMs && nodeId > e.nodeId;
+        }
+    }
+}
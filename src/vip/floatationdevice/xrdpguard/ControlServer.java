@@ -0,0 +1,273 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * 守护进程模式下的控制接口，只监听本机回环地址的TCP端口。
+ * 客户端每行发送一条命令（命令名和以空白分隔的参数），服务器对每条命令回复：
+ * <pre>
+ * OK 或 ERR 错误信息
+ * 零到多行结果
+ * 空行
+ * </pre>
+ * 命令不会在连接线程中执行，而是排队等待主线程调用runRequests()时执行，因此命令可以直接访问检测和封禁状态。
+ * 命令可以在之后（例如防火墙操作完成时）才给出回复，连接线程会一直等待到超时。
+ * 回环地址上的任何本机用户都可以连接（XRDP主机上通常有很多本地桌面用户），因此修改状态的命令（如解除封禁、添加白名单）需要令牌：
+ * 设置了令牌时，每个连接的第一行必须是令牌，否则连接被关闭；没有设置令牌时，只能执行只读的命令。
+ * 例如：printf 'bans\n' | nc 127.0.0.1 端口
+ * 或：(cat 令牌文件; printf 'unban 1.2.3.4\n') | nc 127.0.0.1 端口
+ */
+public class ControlServer implements Closeable
+{
+    private static final int MAX_CONNECTIONS = 4; // 同时处理的连接数
+    private static final int IDLE_TIMEOUT_MS = 60 * 1000; // 连接空闲超时
+    private static final long REPLY_TIMEOUT_MS = 5 * 60 * 1000; // 等待命令回复的超时
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final Map<String, Command> commands = new LinkedHashMap<>();
+    private final Map<String, String> usages = new LinkedHashMap<>();
+    private final Set<String> privileged = new HashSet<>(); // 修改状态、需要令牌才能执行的命令
+    private final byte[] token; // 没有设置令牌时为null
+    private final Queue<Runnable> requests = new ConcurrentLinkedQueue<>();
+    private final Runnable wakeup;
+
+    /**
+     * @param port 监听的端口。
+     * @param token 连接时需要首先发送的令牌。为null时不需要令牌，但不能执行修改状态的命令。
+     * @param wakeup 有新命令时调用，用于唤醒正在等待的主线程。
+     * @throws IOException 无法监听端口时抛出。
+     */
+    public ControlServer(int port, String token, Runnable wakeup) throws IOException
+    {
+        this.token = token == null ? null : token.getBytes(StandardCharsets.UTF_8);
+        this.wakeup = wakeup;
+        server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        connections = Executors.newFixedThreadPool(MAX_CONNECTIONS, r ->
+        {
+            Thread t = new Thread(r, "XrdpGuard-control");
+            t.setDaemon(true);
+            return t;
+        });
+        register("help", "help", false, (args, reply) ->
+        {
+            for(String usage : usages.values())
+                reply.line(usage);
+            reply.ok();
+        });
+        Thread t = new Thread(this::accept, "XrdpGuard-control-accept");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 注册一条命令。
+     * @param name 命令名。
+     * @param usage 用法说明，由help命令输出。
+     * @param modifies 命令是否修改状态。修改状态的命令只能在设置了令牌时执行。
+     * @param command 在主线程中执行的命令。
+     */
+    public synchronized void register(String name, String usage, boolean modifies, Command command)
+    {
+        commands.put(name, command);
+        usages.put(name, usage);
+        if(modifies)
+            privileged.add(name);
+    }
+
+    /**
+     * 在当前线程中执行所有排队的命令。
+     * @return 执行的命令数量。
+     */
+    public int runRequests()
+    {
+        int n = 0;
+        Runnable r;
+        while((r = requests.poll()) != null)
+        {
+            r.run();
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            server.close();
+        }
+        catch(IOException e)
+        {
+            l.warning("Failed to close control socket: " + e);
+        }
+        connections.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while(!server.isClosed())
+        {
+            try
+            {
+                Socket s = server.accept();
+                connections.execute(() -> serve(s));
+            }
+            catch(IOException e)
+            {
+                if(!server.isClosed())
+                    l.warning("Failed to accept control connection: " + e);
+            }
+            catch(RejectedExecutionException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s)
+    {
+        try(Socket socket = s;
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))
+        {
+            socket.setSoTimeout(IDLE_TIMEOUT_MS);
+            String line;
+            if(token != null)
+            {
+                // 第一行必须是令牌，比较时间与令牌内容无关
+                line = in.readLine();
+                if(line == null || !MessageDigest.isEqual(line.trim().getBytes(StandardCharsets.UTF_8), token))
+                {
+                    l.warning("Rejected control connection with a wrong token");
+                    out.write("ERR Authentication failed\n\n");
+                    out.flush();
+                    return;
+                }
+                out.write("OK\n\n");
+                out.flush();
+            }
+            while((line = in.readLine()) != null)
+            {
+                line = line.trim();
+                if(line.isEmpty())
+                    continue;
+                out.write(execute(line));
+                out.write('\n');
+                out.flush();
+            }
+        }
+        catch(SocketException e)
+        {
+            // 客户端断开连接
+        }
+        catch(IOException e)
+        {
+            l.fine(() -> "Control connection closed: " + e);
+        }
+    }
+
+    /**
+     * 将命令交给主线程执行并等待回复。
+     */
+    private String execute(String line)
+    {
+        List<String> args = new ArrayList<>(Arrays.asList(line.split("\\s+")));
+        String name = args.remove(0);
+        Command command;
+        synchronized(this)
+        {
+            command = commands.get(name);
+        }
+        if(command == null)
+            return "ERR Unknown command: " + name + " (try \"help\")\n";
+        if(token == null && privileged.contains(name))
+            return "ERR \"" + name + "\" requires a control token (\"--controltoken={}\")\n";
+        l.fine(() -> "Control command: " + line);
+        Reply reply = new Reply();
+        requests.add(() ->
+        {
+            try
+            {
+                command.run(args, reply);
+            }
+            catch(RuntimeException e)
+            {
+                l.warning("Control command \"" + line + "\" failed: " + e);
+                reply.error(e.toString());
+            }
+        });
+        wakeup.run();
+        try
+        {
+            return reply.result.get(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            return "ERR Timed out\n";
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            return "ERR " + e + "\n";
+        }
+    }
+
+    /**
+     * 控制命令。
+     */
+    public interface Command
+    {
+        /**
+         * 在主线程中执行命令。执行完毕时（可以在之后的任意时刻）必须调用reply.ok()或reply.error()。
+         * @param args 命令参数。
+         * @param reply 回复。
+         */
+        void run(List<String> args, Reply reply);
+    }
+
+    /**
+     * 命令的回复。先添加结果行，最后调用ok()或error()发送。
+     */
+    public static final class Reply
+    {
+        private final StringBuilder lines = new StringBuilder();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        /**
+         * 添加一行结果。
+         */
+        public Reply line(String s)
+        {
+            lines.append(s).append('\n');
+            return this;
+        }
+
+        /**
+         * 以成功状态发送回复。
+         */
+        public void ok()
+        {
+            result.complete("OK\n" + lines);
+        }
+
+        /**
+         * 以失败状态发送回复，已添加的结果行也会被发送。
+         * @param message 错误信息。
+         */
+        public void error(String message)
+        {
+            result.complete("ERR " + message + "\n" + lines);
+        }
+    }
+}
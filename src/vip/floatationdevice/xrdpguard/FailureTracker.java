@@ -0,0 +1,236 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 增量统计每个IP在时间跨度内的登录失败次数。
+ * 每个IP只保存最近maxFails次登录失败的时间（环形缓冲区），登录记录在被解析出来时就送入统计，
+ * IP的失败次数达到maxFails的时刻会被记录下来，下次检查时报告。
+ * 因此每次检查的开销只与新增的登录记录数量有关，与XRDP运行了多长时间无关。
+ * 注意：登录记录需要按时间顺序送入。
+ */
+public class FailureTracker
+{
+    private final long periodMs;
+    private final int maxFails;
+    // 按最后一次登录失败的先后排序，过期的IP总是在前面
+    private final LinkedHashMap<String, Window> windows = new LinkedHashMap<>();
+    // 自上次检查以来失败次数达到maxFails的IP
+    private final LinkedHashMap<String, Window> crossed = new LinkedHashMap<>();
+
+    public FailureTracker(long periodMs, int maxFails)
+    {
+        this.periodMs = periodMs;
+        this.maxFails = Math.max(maxFails, 1);
+    }
+
+    /**
+     * 送入一条登录记录。
+     * @param timeMs 登录时间。
+     * @param addr IP地址。
+     * @param fail 登录是否失败。
+     */
+    public void record(long timeMs, String addr, boolean fail)
+    {
+        if(!fail)
+            return;
+        Window w = windows.remove(addr);
+        if(w == null)
+            w = new Window(maxFails);
+        windows.put(addr, w);
+        w.push(timeMs);
+        if(w.size == maxFails && w.oldest() >= timeMs - periodMs)
+            crossed.put(addr, w);
+    }
+
+    /**
+     * 清除一个IP的统计数据。在IP被封禁后调用，封禁之前的登录失败不再计入。
+     * @param addr IP地址。
+     */
+    public void forget(String addr)
+    {
+        windows.remove(addr);
+        crossed.remove(addr);
+    }
+
+    /**
+     * 清除所有统计数据。在检测到新的日志开始标志时调用。
+     */
+    public void reset()
+    {
+        windows.clear();
+        crossed.clear();
+    }
+
+    /**
+     * 获取自上次调用以来失败次数达到maxFails，并且在当前时间看来仍处于时间跨度内的IP，同时清除过期的统计数据。
+     * @param nowMs 当前时间。
+     * @return 可疑IP列表。
+     */
+    public List<String> poll(long nowMs)
+    {
+        long since = nowMs - periodMs;
+        Iterator<Window> it = windows.values().iterator();
+        while(it.hasNext())
+        {
+            if(it.next().newest() >= since)
+                break;
+            it.remove();
+        }
+        List<String> suspiciousIPs = new ArrayList<>(crossed.size());
+        for(Map.Entry<String, Window> e : crossed.entrySet())
+            if(e.getValue().countSince(since) >= maxFails)
+                suspiciousIPs.add(e.getKey());
+        crossed.clear();
+        return suspiciousIPs;
+    }
+
+    /**
+     * 检查一个IP如果再增加一次登录失败，是否会达到maxFails。
+     * 用于处理日志末尾还没有匹配到登录成功记录的连入记录。
+     * @param addr IP地址。
+     * @param timeMs 假定的登录失败时间。
+     * @param nowMs 当前时间。
+     * @return 如果会达到maxFails，返回true，否则返回false。
+     */
+    public boolean wouldCross(String addr, long timeMs, long nowMs)
+    {
+        long since = nowMs - periodMs;
+        if(timeMs < since)
+            return false;
+        Window w = windows.get(addr);
+        return (w == null ? 0 : w.countSince(since)) + 1 >= maxFails;
+    }
+
+    /**
+     * 获取一个IP在时间跨度内的登录失败次数。
+     * @param addr IP地址。
+     * @param nowMs 当前时间。
+     * @return 登录失败次数（最多为maxFails）。
+     */
+    public int getFailCount(String addr, long nowMs)
+    {
+        Window w = windows.get(addr);
+        return w == null ? 0 : w.countSince(nowMs - periodMs);
+    }
+
+    /**
+     * 获取所有IP在时间跨度内的登录失败次数，按最后一次登录失败的先后排序。
+     * @param nowMs 当前时间。
+     * @return IP到登录失败次数（最多为maxFails）的映射，不包含次数为0的IP。
+     */
+    public LinkedHashMap<String, Integer> getFailCounts(long nowMs)
+    {
+        long since = nowMs - periodMs;
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap<>();
+        for(Map.Entry<String, Window> e : windows.entrySet())
+        {
+            int n = e.getValue().countSince(since);
+            if(n > 0)
+                counts.put(e.getKey(), n);
+        }
+        return counts;
+    }
+
+    /**
+     * 保存所有IP最近的登录失败时间。
+     * @param out 输出。
+     * @throws IOException 写入失败时抛出。
+     */
+    public void saveState(DataOutput out) throws IOException
+    {
+        out.writeInt(windows.size());
+        for(Map.Entry<String, Window> e : windows.entrySet())
+        {
+            Window w = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeInt(w.size);
+            for(int i = 0; i < w.size; i++)
+                out.writeLong(w.times[(w.head + i) % w.times.length]);
+        }
+    }
+
+    /**
+     * 恢复saveState()保存的登录失败时间，原有的统计数据会被清除。
+     * 失败次数已经达到maxFails的IP（如保存时正在被封禁的IP）会在下次检查时再次报告。
+     * @param in 输入。
+     * @throws IOException 读取失败时抛出。
+     */
+    public void restoreState(DataInput in) throws IOException
+    {
+        reset();
+        int n = in.readInt();
+        for(int i = 0; i < n; i++)
+        {
+            String addr = in.readUTF();
+            Window w = new Window(maxFails);
+            int size = in.readInt();
+            for(int j = 0; j < size; j++)
+                w.push(in.readLong());
+            if(w.size == 0)
+                continue;
+            windows.put(addr, w);
+            if(w.size == maxFails && w.oldest() >= w.newest() - periodMs)
+                crossed.put(addr, w);
+        }
+    }
+
+    /**
+     * 获取当前有统计数据的IP数量。
+     */
+    public int size()
+    {
+        return windows.size();
+    }
+
+    /**
+     * 保存最近若干次登录失败时间的环形缓冲区。
+     */
+    private static final class Window
+    {
+        final long[] times;
+        int head = 0; // 最早的一次登录失败的位置
+        int size = 0;
+
+        Window(int capacity)
+        {
+            times = new long[capacity];
+        }
+
+        void push(long t)
+        {
+            if(size < times.length)
+                times[(head + size++) % times.length] = t;
+            else
+            {
+                times[head] = t;
+                head = (head + 1) % times.length;
+            }
+        }
+
+        long oldest()
+        {
+            return times[head];
+        }
+
+        long newest()
+        {
+            return times[(head + size - 1) % times.length];
+        }
+
+        int countSince(long since)
+        {
+            int n = 0;
+            for(int i = size - 1; i >= 0; i--)
+            {
+                if(times[(head + i) % times.length] < since)
+                    break;
+                n++;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * IP黑名单（如从威胁情报源镜像到本地的IP列表），其中的IP一旦连入就会被立即封禁，不需要等到登录失败次数达到上限。
+ * 黑名单文件每行一个IP地址、CIDR地址段（如"10.0.0.0/8"）或地址范围（如"1.2.3.4-1.2.3.99"），
+ * "#"或";"之后的内容为注释，每行第一个空白之后的内容被忽略，因此可以直接使用大多数常见格式的情报源。
+ * 所有黑名单被合并为按起始地址排序、互不重叠的地址区间，编译为一个索引文件后以内存映射的方式读取：
+ * <pre>
+ * 魔数 "XGBL"	版本	黑名单文件的大小和修改时间
+ * IPv4区间数量	IPv6区间数量
+ * IPv4区间（起始地址、结束地址，各4字节）...
+ * IPv6区间（起始地址、结束地址，各16字节）...
+ * </pre>
+ * 区间数据不占用Java堆，数百万条记录也只需要几十MB的页缓存；查询在映射的区间上二分查找，不创建任何对象。
+ * 黑名单文件没有变化时，重新启动后直接映射已有的索引文件，不需要重新解析。
+ * IPv4映射地址（::ffff:a.b.c.d）与对应的IPv4地址视为相同。
+ */
+public class IpBlocklist
+{
+    private static final int MAGIC = 0x5847424c; // "XGBL"
+    private static final int VERSION = 1;
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final List<Path> paths = new ArrayList<>();
+    private final Path indexPath;
+    private String fingerprint; // 当前索引对应的黑名单文件状态
+    private ByteBuffer v4 = ByteBuffer.allocate(0); // IPv4区间，每个区间8字节
+    private ByteBuffer v6 = ByteBuffer.allocate(0); // IPv6区间，每个区间32字节
+    private int v4Count = 0;
+    private int v6Count = 0;
+    private final long[] ipv6Buf = new long[2];
+
+    /**
+     * @param paths 黑名单文件路径。
+     * @param indexPath 索引文件路径。
+     */
+    public IpBlocklist(List<String> paths, String indexPath)
+    {
+        for(String p : paths)
+            this.paths.add(Paths.get(p));
+        this.indexPath = Paths.get(indexPath);
+    }
+
+    /**
+     * 如果黑名单文件自上次加载后被修改过，重新加载。
+     * 第一次加载时，如果索引文件与黑名单文件一致，直接映射索引文件；否则重新解析黑名单文件并生成索引文件。
+     * @return 如果重新加载了，返回true，否则返回false。
+     * @throws IOException 读取或写入文件失败时抛出。
+     */
+    public boolean reloadIfChanged() throws IOException
+    {
+        String fp = getFingerprint();
+        if(fp.equals(fingerprint))
+            return false;
+        if(fingerprint == null && map(fp))
+        {
+            fingerprint = fp;
+            return true;
+        }
+        long t = System.currentTimeMillis();
+        build(fp);
+        if(!map(fp))
+            throw new IOException("Blocklist index " + indexPath + " is invalid after rebuilding");
+        fingerprint = fp;
+        long ms = System.currentTimeMillis() - t;
+        l.fine(() -> "Compiled blocklist index in " + ms + " ms");
+        return true;
+    }
+
+    /**
+     * 检查IP是否在黑名单中。此函数不是线程安全的。
+     * @param ip IP地址。
+     * @return 如果在，返回true；如果不在或不是合法的IP地址，返回false。
+     */
+    public boolean contains(String ip)
+    {
+        long a = parseIpv4(ip, 0, ip.length());
+        if(a >= 0)
+            return containsIpv4((int) a);
+        if(!parseIpv6(ip, ipv6Buf))
+            return false;
+        if(ipv6Buf[0] == 0 && ipv6Buf[1] >>> 32 == 0xffffL)
+            return containsIpv4((int) ipv6Buf[1]);
+        return containsIpv6(ipv6Buf[0], ipv6Buf[1]);
+    }
+
+    /**
+     * 检查IPv4地址是否在黑名单中。
+     * @param a 整数形式的IPv4地址。
+     */
+    public boolean containsIpv4(int a)
+    {
+        // 找到最后一个起始地址不大于a的区间
+        int lo = 0, hi = v4Count - 1, found = -1;
+        while(lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(Integer.compareUnsigned(v4.getInt(mid * 8), a) <= 0)
+            {
+                found = mid;
+                lo = mid + 1;
+            }
+            else
+                hi = mid - 1;
+        }
+        return found != -1 && Integer.compareUnsigned(a, v4.getInt(found * 8 + 4)) <= 0;
+    }
+
+    /**
+     * 检查IPv6地址是否在黑名单中。
+     * @param ah 地址的高64位。
+     * @param al 地址的低64位。
+     */
+    public boolean containsIpv6(long ah, long al)
+    {
+        int lo = 0, hi = v6Count - 1, found = -1;
+        while(lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(compare(v6.getLong(mid * 32), v6.getLong(mid * 32 + 8), ah, al) <= 0)
+            {
+                found = mid;
+                lo = mid + 1;
+            }
+            else
+                hi = mid - 1;
+        }
+        return found != -1 && compare(ah, al, v6.getLong(found * 32 + 16), v6.getLong(found * 32 + 24)) <= 0;
+    }
+
+    /**
+     * 获取合并后的地址区间数量。
+     */
+    public int size()
+    {
+        return v4Count + v6Count;
+    }
+
+    /**
+     * 黑名单文件的路径、大小和修改时间，用于判断黑名单文件是否被修改过以及索引文件是否仍然适用。
+     */
+    private String getFingerprint() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Path p : paths)
+        {
+            sb.append(p.toAbsolutePath()).append('\t');
+            if(Files.exists(p))
+                sb.append(Files.size(p)).append('\t').append(Files.getLastModifiedTime(p).toMillis());
+            else
+                sb.append("missing");
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 映射索引文件。
+     * @return 如果索引文件存在且与黑名单文件一致，返回true，否则返回false。
+     */
+    private boolean map(String fp) throws IOException
+    {
+        if(!Files.exists(indexPath))
+            return false;
+        try(FileChannel ch = FileChannel.open(indexPath, StandardOpenOption.READ))
+        {
+            // 映射在通道关闭后仍然有效
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buf.duplicate()));
+            String savedFp;
+            int n4, n6;
+            try
+            {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return false;
+                savedFp = in.readUTF();
+                n4 = in.readInt();
+                n6 = in.readInt();
+            }
+            catch(EOFException e)
+            {
+                return false;
+            }
+            int header = (int) ch.size() - in.available();
+            if(!savedFp.equals(fp) || (long) header + n4 * 8L + n6 * 32L != ch.size())
+                return false;
+            buf.position(header);
+            v4 = buf.slice();
+            v4.limit(n4 * 8);
+            buf.position(header + n4 * 8);
+            v6 = buf.slice();
+            v4Count = n4;
+            v6Count = n6;
+            return true;
+        }
+    }
+
+    /**
+     * 解析所有黑名单文件，合并地址区间后写入索引文件。索引文件先写入临时文件再替换，因此正在映射的旧索引不受影响。
+     */
+    private void build(String fp) throws IOException
+    {
+        long[] ranges4 = new long[1024]; // 高32位为起始地址（最高位取反以便按有符号数排序），低32位为结束地址
+        int n4 = 0;
+        List<long[]> ranges6 = new ArrayList<>();
+        long[] range = new long[4];
+        for(Path p : paths)
+        {
+            if(!Files.exists(p))
+            {
+                l.warning("Blocklist not found: " + p);
+                continue;
+            }
+            int invalid = 0;
+            try(BufferedReader br = Files.newBufferedReader(p, StandardCharsets.ISO_8859_1))
+            {
+                String line;
+                while((line = br.readLine()) != null)
+                {
+                    String entry = getEntry(line);
+                    if(entry == null)
+                        continue;
+                    switch(parseRange(entry, range))
+                    {
+                        case 4:
+                            if(n4 == ranges4.length)
+                                ranges4 = Arrays.copyOf(ranges4, n4 * 2);
+                            ranges4[n4++] = (range[1] ^ 0x80000000L) << 32 | range[3];
+                            break;
+                        case 6:
+                            ranges6.add(range.clone());
+                            // 与IPv4映射地址段（::ffff:0:0/96）重叠的部分同时作为IPv4区间保存
+                            if(compare(range[0], range[1], 0, 0xffffffffffffL) <= 0 && compare(range[2], range[3], 0, 0xffff00000000L) >= 0)
+                            {
+                                long start = compare(range[0], range[1], 0, 0xffff00000000L) < 0 ? 0 : range[1] & 0xffffffffL;
+                                long end = compare(range[2], range[3], 0, 0xffffffffffffL) > 0 ? 0xffffffffL : range[3] & 0xffffffffL;
+                                if(n4 == ranges4.length)
+                                    ranges4 = Arrays.copyOf(ranges4, n4 * 2);
+                                ranges4[n4++] = (start ^ 0x80000000L) << 32 | end;
+                            }
+                            break;
+                        default:
+                            invalid++;
+                    }
+                }
+            }
+            if(invalid != 0)
+                l.warning("Skipped " + invalid + " invalid entries in blocklist " + p);
+        }
+        // 排序后合并重叠和相邻的区间
+        Arrays.sort(ranges4, 0, n4);
+        int m4 = 0;
+        for(int i = 0; i < n4; i++)
+        {
+            long start = (ranges4[i] >>> 32) ^ 0x80000000L, end = ranges4[i] & 0xffffffffL;
+            if(m4 != 0)
+            {
+                long lastEnd = ranges4[m4 - 1] & 0xffffffffL;
+                if(start <= lastEnd + 1)
+                {
+                    if(end > lastEnd)
+                        ranges4[m4 - 1] = ranges4[m4 - 1] & 0xffffffff00000000L | end;
+                    continue;
+                }
+            }
+            ranges4[m4++] = ranges4[i];
+        }
+        ranges6.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+        List<long[]> merged6 = new ArrayList<>(ranges6.size());
+        for(long[] r : ranges6)
+        {
+            long[] last = merged6.isEmpty() ? null : merged6.get(merged6.size() - 1);
+            // 与上一个区间重叠或相邻：起始地址不大于上一个区间的结束地址+1（结束地址为全1时总是重叠）
+            if(last != null && (last[2] == -1 && last[3] == -1 ||
+                    compare(r[0], r[1], last[3] == -1 ? last[2] + 1 : last[2], last[3] + 1) <= 0))
+            {
+                if(compare(r[2], r[3], last[2], last[3]) > 0)
+                {
+                    last[2] = r[2];
+                    last[3] = r[3];
+                }
+                continue;
+            }
+            merged6.add(r);
+        }
+        Path dir = indexPath.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(indexPath.getFileName() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile()), 64 * 1024)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fp);
+            out.writeInt(m4);
+            out.writeInt(merged6.size());
+            for(int i = 0; i < m4; i++)
+            {
+                out.writeInt((int) (ranges4[i] >>> 32) ^ 0x80000000);
+                out.writeInt((int) ranges4[i]);
+            }
+            for(long[] r : merged6)
+                for(long v : r)
+                    out.writeLong(v);
+        }
+        try
+        {
+            Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        int entries = n4 + ranges6.size(), ranges = m4 + merged6.size();
+        l.fine(() -> "Parsed " + entries + " blocklist entries into " + ranges + " ranges");
+    }
+
+    /**
+     * 去掉注释和第一个空白之后的内容。
+     * @return 条目，如果是空行或注释行，返回null。
+     */
+    private static String getEntry(String line)
+    {
+        int end = line.length();
+        for(int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if(c == '#' || c == ';')
+            {
+                end = i;
+                break;
+            }
+        }
+        String s = line.substring(0, end).trim();
+        if(s.isEmpty())
+            return null;
+        for(int i = 0; i < s.length(); i++)
+            if(Character.isWhitespace(s.charAt(i)))
+                return s.substring(0, i);
+        return s;
+    }
+
+    /**
+     * 将地址、地址段或地址范围解析为区间。
+     * @param entry 条目。
+     * @param out 长度为4的数组，保存起始地址的高、低64位和结束地址的高、低64位。IPv4区间只使用out[1]和out[3]。
+     * @return IPv4区间返回4，IPv6区间返回6，格式不正确时返回0。
+     */
+    private int parseRange(String entry, long[] out)
+    {
+        int dash = entry.indexOf('-');
+        if(dash != -1)
+        {
+            int a = parseAddr(entry.substring(0, dash), out, 0, true);
+            int b = parseAddr(entry.substring(dash + 1), out, 2, true);
+            if(a == 0 || a != b || compare(out[0], out[1], out[2], out[3]) > 0)
+                return 0;
+            return a;
+        }
+        int slash = entry.indexOf('/');
+        int type = parseAddr(slash == -1 ? entry : entry.substring(0, slash), out, 0, false);
+        if(type == 0)
+            return 0;
+        int maxLen = type == 4 ? 32 : 128;
+        int prefixLen = maxLen;
+        if(slash != -1)
+        {
+            try
+            {
+                prefixLen = Integer.parseInt(entry.substring(slash + 1));
+            }
+            catch(NumberFormatException e)
+            {
+                return 0;
+            }
+            if(prefixLen < 0 || prefixLen > maxLen)
+                return 0;
+        }
+        if(type == 4)
+        {
+            long mask = prefixLen == 0 ? 0 : 0xffffffffL << (32 - prefixLen) & 0xffffffffL;
+            out[1] &= mask;
+            out[3] = out[1] | ~mask & 0xffffffffL;
+            return 4;
+        }
+        long maskHi = prefixLen == 0 ? 0 : prefixLen >= 64 ? -1 : -1L << (64 - prefixLen);
+        long maskLo = prefixLen <= 64 ? 0 : prefixLen == 128 ? -1 : -1L << (128 - prefixLen);
+        out[0] &= maskHi;
+        out[1] &= maskLo;
+        out[2] = out[0] | ~maskHi;
+        out[3] = out[1] | ~maskLo;
+        // IPv4映射地址段按IPv4区间保存
+        if(out[0] == 0 && out[1] >>> 32 == 0xffffL && out[2] == 0 && out[3] >>> 32 == 0xffffL)
+        {
+            out[1] &= 0xffffffffL;
+            out[3] &= 0xffffffffL;
+            return 4;
+        }
+        return 6;
+    }
+
+    /**
+     * 解析单个地址，保存到out[i]和out[i + 1]中。IPv4地址保存在out[i + 1]中。
+     * @param mapped 是否将IPv4映射地址按IPv4地址处理。
+     * @return IPv4地址返回4，IPv6地址返回6，格式不正确时返回0。
+     */
+    private int parseAddr(String s, long[] out, int i, boolean mapped)
+    {
+        long a = parseIpv4(s, 0, s.length());
+        if(a < 0)
+        {
+            if(!parseIpv6(s, ipv6Buf))
+                return 0;
+            out[i] = ipv6Buf[0];
+            out[i + 1] = ipv6Buf[1];
+            if(!mapped || ipv6Buf[0] != 0 || ipv6Buf[1] >>> 32 != 0xffffL)
+                return 6;
+            a = ipv6Buf[1] & 0xffffffffL;
+        }
+        out[i] = 0;
+        out[i + 1] = a;
+        return 4;
+    }
+
+    /**
+     * 按无符号数比较两个128位地址。
+     */
+    private static int compare(long ah, long al, long bh, long bl)
+    {
+        int c = Long.compareUnsigned(ah, bh);
+        return c != 0 ? c : Long.compareUnsigned(al, bl);
+    }
+
+    /**
+     * 读取ByteBuffer的输入流，用于解析索引文件的文件头。
+     */
+    private static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read()
+        {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if(!buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available()
+        {
+            return buf.remaining();
+        }
+    }
+}
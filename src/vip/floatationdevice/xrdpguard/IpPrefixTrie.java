@@ -0,0 +1,213 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.util.Arrays;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 保存IP地址段（CIDR）的二叉前缀树，同时支持IPv4和IPv6。
+ * IPv4地址按IPv4映射地址（::ffff:a.b.c.d）保存在同一棵树中，因此a.b.c.d和::ffff:a.b.c.d总是得到相同的结果。
+ * 节点保存在int数组中，查询的时间复杂度为O(前缀长度)，查询过程不创建任何对象。
+ */
+public class IpPrefixTrie
+{
+    private static final long IPV4_MAPPED_PREFIX = 0xffff00000000L;
+
+    // children[2 * node + bit]为子节点的下标，0表示没有子节点（0号节点是根节点，不会是任何节点的子节点）
+    private int[] children = new int[256];
+    private boolean[] terminal = new boolean[128]; // 节点是否是某个地址段的末端
+    private int nodes = 1;
+    private int size = 0;
+    private final long[] ipv6Buf = new long[2];
+
+    /**
+     * 添加一个地址段。
+     * @param hi 地址的高64位。
+     * @param lo 地址的低64位。
+     * @param prefixLen 前缀长度（0~128）。
+     */
+    public void add(long hi, long lo, int prefixLen)
+    {
+        int node = 0;
+        for(int i = 0; i < prefixLen; i++)
+        {
+            if(terminal[node]) // 已被更短的地址段覆盖
+                return;
+            int slot = 2 * node + bit(hi, lo, i);
+            if(children[slot] == 0)
+            {
+                if(nodes == terminal.length)
+                {
+                    terminal = Arrays.copyOf(terminal, nodes * 2);
+                    children = Arrays.copyOf(children, nodes * 4);
+                }
+                children[slot] = nodes++;
+            }
+            node = children[slot];
+        }
+        if(!terminal[node])
+        {
+            terminal[node] = true;
+            size++;
+        }
+    }
+
+    /**
+     * 添加一个以文本表示的地址或地址段，如"10.0.0.0/8"、"2001:db8::/32"或"1.2.3.4"（视为/32）。
+     * 此函数不是线程安全的。
+     * @param cidr 地址或地址段。
+     * @return 如果格式正确并已添加，返回true，否则返回false。
+     */
+    public boolean add(String cidr)
+    {
+        int prefixLen = parseCidr(cidr, ipv6Buf);
+        if(prefixLen < 0)
+            return false;
+        add(ipv6Buf[0], ipv6Buf[1], prefixLen);
+        return true;
+    }
+
+    /**
+     * 检查地址是否在任意一个地址段中。
+     * @param hi 地址的高64位。
+     * @param lo 地址的低64位。
+     * @return 如果在，返回true，否则返回false。
+     */
+    public boolean contains(long hi, long lo)
+    {
+        int node = 0;
+        for(int i = 0; i < 128; i++)
+        {
+            if(terminal[node])
+                return true;
+            node = children[2 * node + bit(hi, lo, i)];
+            if(node == 0)
+                return false;
+        }
+        return terminal[node];
+    }
+
+    /**
+     * 检查IPv4地址是否在任意一个地址段中。
+     * @param v4 整数形式的IPv4地址。
+     */
+    public boolean containsIpv4(int v4)
+    {
+        return contains(0, IPV4_MAPPED_PREFIX | (v4 & 0xffffffffL));
+    }
+
+    /**
+     * 检查以文本表示的IPv4或IPv6地址是否在任意一个地址段中。
+     * 此函数不是线程安全的。
+     * @param ip IP地址。
+     * @return 如果在，返回true；如果不在或不是合法的IP地址，返回false。
+     */
+    public boolean contains(String ip)
+    {
+        long v4 = parseIpv4(ip, 0, ip.length());
+        if(v4 >= 0)
+            return containsIpv4((int) v4);
+        return parseIpv6(ip, ipv6Buf) && contains(ipv6Buf[0], ipv6Buf[1]);
+    }
+
+    /**
+     * 检查地址段是否与任意一个地址段有重叠（包含或被包含）。
+     * @param hi 地址的高64位。
+     * @param lo 地址的低64位。
+     * @param prefixLen 前缀长度（0~128）。
+     */
+    public boolean overlaps(long hi, long lo, int prefixLen)
+    {
+        int node = 0;
+        for(int i = 0; i < prefixLen; i++)
+        {
+            if(terminal[node])
+                return true;
+            node = children[2 * node + bit(hi, lo, i)];
+            if(node == 0)
+                return false;
+        }
+        // 走到了地址段的末端，下面的任何地址段都被它包含
+        return true;
+    }
+
+    /**
+     * 检查以文本表示的地址或地址段是否与任意一个地址段有重叠。
+     * 此函数不是线程安全的。
+     * @param cidr 地址或地址段。
+     * @return 如果有重叠，返回true；如果没有或格式不正确，返回false。
+     */
+    public boolean overlaps(String cidr)
+    {
+        int prefixLen = parseCidr(cidr, ipv6Buf);
+        return prefixLen >= 0 && overlaps(ipv6Buf[0], ipv6Buf[1], prefixLen);
+    }
+
+    /**
+     * 获取地址段的数量（不含被其他地址段覆盖的）。
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * 检查文本是否是合法的IP地址或CIDR地址段（如"1.2.3.4"、"10.0.0.0/8"、"2001:db8::/32"）。
+     * 只允许十六进制数字、"."、":"和"/"，因此通过检查的文本可以安全地用于防火墙命令。
+     * @param cidr 地址或地址段。
+     * @return 如果合法，返回true，否则返回false。
+     */
+    public static boolean isValid(String cidr)
+    {
+        int slash = cidr.indexOf('/');
+        for(int i = 0; i < cidr.length(); i++)
+        {
+            char c = cidr.charAt(i);
+            boolean ok = i > slash && slash != -1 ? c >= '0' && c <= '9' :
+                    c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == '.' || c == ':';
+            if(!ok && i != slash)
+                return false;
+        }
+        return slash != cidr.length() - 1 && parseCidr(cidr, new long[2]) >= 0;
+    }
+
+    /**
+     * 解析以文本表示的地址或地址段。IPv4地址段转换为对应的IPv4映射地址段。
+     * @param cidr 地址或地址段。
+     * @param out 用于保存地址高64位和低64位的数组。
+     * @return 前缀长度（0~128）；格式不正确时返回-1。
+     */
+    private static int parseCidr(String cidr, long[] out)
+    {
+        int slash = cidr.indexOf('/');
+        String addr = slash == -1 ? cidr : cidr.substring(0, slash);
+        long v4 = parseIpv4(addr, 0, addr.length());
+        int maxLen = v4 >= 0 ? 32 : 128;
+        int prefixLen = maxLen;
+        if(slash != -1)
+        {
+            try
+            {
+                prefixLen = Integer.parseInt(cidr.substring(slash + 1));
+            }
+            catch(NumberFormatException e)
+            {
+                return -1;
+            }
+            if(prefixLen < 0 || prefixLen > maxLen)
+                return -1;
+        }
+        if(v4 >= 0)
+        {
+            out[0] = 0;
+            out[1] = IPV4_MAPPED_PREFIX | v4;
+            return 96 + prefixLen;
+        }
+        return parseIpv6(addr, out) ? prefixLen : -1;
+    }
+
+    private static int bit(long hi, long lo, int i)
+    {
+        return (int) (i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1;
+    }
+}
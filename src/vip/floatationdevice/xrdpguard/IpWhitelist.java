@@ -0,0 +1,118 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.logging.Logger;
+
+/**
+ * IP白名单。
+ * 白名单文件每行一个IP地址或CIDR地址段（如"10.0.0.0/8"、"2001:db8::/64"），以"#"开头的行为注释。
+ * 地址段保存在IpPrefixTrie中，IPv4映射地址（::ffff:a.b.c.d）与对应的IPv4地址视为相同。
+ * 只有文件的修改时间改变时才会重新加载。
+ */
+public class IpWhitelist
+{
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final Path path;
+    private FileTime lastModified;
+    private IpPrefixTrie trie = new IpPrefixTrie();
+
+    public IpWhitelist(String path)
+    {
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * 如果白名单文件自上次加载后被修改过，重新加载。文件不存在时会创建一个空文件。
+     * @return 如果重新加载了，返回true，否则返回false。
+     * @throws IOException 读取文件失败时抛出。
+     */
+    public boolean reloadIfChanged() throws IOException
+    {
+        if(!Files.exists(path))
+        {
+            Path parent = path.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Files.createFile(path);
+        }
+        FileTime mtime = Files.getLastModifiedTime(path);
+        if(mtime.equals(lastModified))
+            return false;
+        IpPrefixTrie t = new IpPrefixTrie();
+        try(BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+        {
+            String line;
+            while((line = br.readLine()) != null)
+            {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if(!t.add(line))
+                    l.warning("Invalid whitelist entry: " + line);
+            }
+        }
+        trie = t;
+        lastModified = mtime;
+        return true;
+    }
+
+    /**
+     * 将一个IP或地址段添加到白名单中，并追加到白名单文件末尾。
+     * @param entry IP地址或CIDR地址段。
+     * @return 如果格式正确并已添加，返回true，否则返回false。
+     * @throws IOException 写入文件失败时抛出。
+     */
+    public boolean add(String entry) throws IOException
+    {
+        IpPrefixTrie t = new IpPrefixTrie();
+        if(!t.add(entry))
+            return false;
+        reloadIfChanged();
+        // 文件末尾没有换行时先换行，避免新条目与最后一行连在一起
+        String line = entry + "\n";
+        try(SeekableByteChannel ch = Files.newByteChannel(path, StandardOpenOption.READ))
+        {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if(ch.size() != 0 && ch.position(ch.size() - 1).read(last) == 1 && last.get(0) != '\n')
+                line = "\n" + line;
+        }
+        Files.write(path, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        trie.add(entry);
+        // 新条目已在内存中添加，记录新的修改时间，下次检查时不必重新加载
+        lastModified = Files.getLastModifiedTime(path);
+        return true;
+    }
+
+    /**
+     * 检查IP是否在白名单中。
+     * @param ip IP地址。
+     * @return 如果在，返回true，否则返回false。
+     */
+    public boolean contains(String ip)
+    {
+        return trie.contains(ip);
+    }
+
+    /**
+     * 检查地址段中是否有任何地址在白名单中。
+     * @param cidr 地址段。
+     * @return 如果有，返回true，否则返回false。
+     */
+    public boolean overlaps(String cidr)
+    {
+        return trie.overlaps(cidr);
+    }
+
+    /**
+     * 获取白名单中地址段的数量。
+     */
+    public int size()
+    {
+        return trie.size();
+    }
+}
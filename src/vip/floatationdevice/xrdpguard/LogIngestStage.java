@@ -0,0 +1,204 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * 连接处理流程的读取阶段：在单独的线程中读取并解析XRDP日志，与检测阶段（主线程）通过有界队列连接。
+ * 解析出的登录记录每BATCH_SIZE条组成一批放入队列，检测阶段一边取出处理，一边继续读取后面的内容，
+ * 因此读取大量日志时，可以在读取完成之前就统计失败次数并封禁已达到上限的IP。
+ * 检测阶段处理不过来时队列会被填满，读取阶段随之暂停（日志本身就是缓冲区），不会丢失记录。
+ * 处理过的批次通过另一个队列还给读取阶段重复使用，稳定运行时不再分配新的批次。
+ * 每次读取都由检测阶段通过read()发起，并在取出结束标志后才算完成：
+ * 在两次读取之间读取阶段是空闲的，检测阶段可以安全地访问日志读取器（如保存读取位置、检查末尾的连入记录）。
+ */
+public class LogIngestStage implements XrdpLogReader.Listener
+{
+    private static final int BATCH_SIZE = 1024;
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final SpscQueue<XrdpLogSources> requests = new SpscQueue<>(2);
+    private final SpscQueue<Batch> queue;
+    private final SpscQueue<Batch> free; // 已处理过、可以重复使用的批次
+    private Batch current; // 读取阶段正在填充的批次
+    private boolean reading = false; // 是否有尚未取出结束标志的读取，只在检测阶段中访问
+    private long lastRead = 0; // 最近一次完成的读取读取到的字节数
+
+    /**
+     * @param capacity 队列中最多容纳的批次数量。
+     */
+    public LogIngestStage(int capacity)
+    {
+        queue = new SpscQueue<>(capacity);
+        free = new SpscQueue<>(capacity * 2 + 2);
+        Thread t = new Thread(this::work, "XrdpGuard-ingest");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 开始读取日志自上次读取以来新增的内容。登录记录需要通过drain()取出。
+     * 日志读取器的监听器会被替换为此阶段。
+     * @param sources 日志读取器。在drain()返回true之前不能在其他线程中使用。
+     */
+    public void read(XrdpLogSources sources)
+    {
+        if(reading)
+            throw new IllegalStateException("Previous read has not been drained");
+        reading = true;
+        requests.put(sources);
+    }
+
+    /**
+     * 取出读取阶段放入队列的登录记录并送给监听器，直到本次读取完成或超时。
+     * @param target 接收登录记录的监听器。
+     * @param timeoutNs 最长等待时间（纳秒）。
+     * @return 如果本次读取已完成，返回true；如果超时，返回false，需要再次调用。
+     * @throws IOException 读取日志失败时抛出，此时本次读取也已完成。
+     * @throws InterruptedException 等待时被中断时抛出。
+     */
+    public boolean drain(XrdpLogReader.Listener target, long timeoutNs) throws IOException, InterruptedException
+    {
+        long deadline = System.nanoTime() + timeoutNs;
+        while(reading)
+        {
+            long remaining = deadline - System.nanoTime();
+            Batch b = remaining > 0 ? queue.take(remaining) : queue.poll();
+            if(b == null)
+                return false;
+            for(int i = 0; i < b.size; i++)
+            {
+                target.onLogin(b.times[i], b.addrs[i], b.fails[i]);
+                b.addrs[i] = null;
+            }
+            b.size = 0;
+            if(b.restart)
+                target.onRestart();
+            if(b.end)
+            {
+                reading = false;
+                lastRead = b.read;
+                Throwable error = b.error;
+                recycle(b);
+                if(error instanceof IOException)
+                    throw (IOException) error;
+                if(error instanceof RuntimeException)
+                    throw (RuntimeException) error;
+                if(error != null)
+                    throw (Error) error;
+                return true;
+            }
+            recycle(b);
+        }
+        return true;
+    }
+
+    /**
+     * 获取最近一次完成的读取读取到的字节数。
+     */
+    public long getLastRead()
+    {
+        return lastRead;
+    }
+
+    /**
+     * 获取连接读取阶段和检测阶段的队列，用于统计。
+     */
+    public SpscQueue<?> getQueue()
+    {
+        return queue;
+    }
+
+    @Override
+    public void onLogin(long timeMs, String addr, boolean fail)
+    {
+        Batch b = current;
+        b.times[b.size] = timeMs;
+        b.addrs[b.size] = addr;
+        b.fails[b.size] = fail;
+        if(++b.size == BATCH_SIZE)
+            flush();
+    }
+
+    @Override
+    public void onRestart()
+    {
+        current.restart = true;
+        flush();
+    }
+
+    private void work()
+    {
+        while(true)
+        {
+            XrdpLogSources sources;
+            try
+            {
+                sources = requests.take(Long.MAX_VALUE);
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+            if(sources == null)
+                continue;
+            current = obtain();
+            long read = 0;
+            Throwable error = null;
+            try
+            {
+                sources.setListener(this);
+                read = sources.update();
+            }
+            catch(IOException | RuntimeException | Error e)
+            {
+                error = e;
+            }
+            current.end = true;
+            current.read = read;
+            current.error = error;
+            flush();
+            current = null;
+            Throwable e = error;
+            if(e != null)
+                l.fine(() -> "Log read failed: " + e);
+        }
+    }
+
+    private void flush()
+    {
+        queue.put(current);
+        if(!current.end)
+            current = obtain();
+    }
+
+    private Batch obtain()
+    {
+        Batch b = free.poll();
+        return b == null ? new Batch() : b;
+    }
+
+    private void recycle(Batch b)
+    {
+        b.restart = false;
+        b.end = false;
+        b.read = 0;
+        b.error = null;
+        free.offer(b);
+    }
+
+    /**
+     * 一批登录记录，以及紧随其后的日志开始标志或本次读取的结束标志。
+     */
+    private static final class Batch
+    {
+        final long[] times = new long[BATCH_SIZE];
+        final String[] addrs = new String[BATCH_SIZE];
+        final boolean[] fails = new boolean[BATCH_SIZE];
+        int size = 0;
+        boolean restart = false; // 这批记录之后遇到了日志开始标志
+        boolean end = false; // 这是本次读取的最后一批
+        long read = 0; // 本次读取读取到的字节数，只在最后一批中有效
+        Throwable error; // 读取失败的原因，只在最后一批中有效
+    }
+}
@@ -0,0 +1,279 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * 识别日志行的规则，编译为一个Aho-Corasick自动机，一次扫描即可找出一行中优先级最高的规则。
+ * 规则文件每行一条规则，以"#"开头的行为注释：
+ * <pre>
+ * 类型 "匹配字符串" [提取器="分隔字符串"]...
+ * </pre>
+ * 类型为以下之一：
+ * <ul>
+ * <li>start：日志开始标志（XRDP重新启动），之前的记录作废</li>
+ * <li>connection：客户端连入，需要之后的登录成功记录才能判定登录是否成功</li>
+ * <li>login：客户端登录成功，与上一条连入记录配对</li>
+ * <li>fail：直接表示登录失败的记录（如xrdp-sesman的认证失败记录）</li>
+ * </ul>
+ * connection和fail规则可以使用以下提取器（分隔字符串在匹配字符串之后查找）：
+ * <ul>
+ * <li>ip-after：IP地址从此字符串之后开始，未指定时从匹配字符串之后开始</li>
+ * <li>ip-until：IP地址在此字符串之前结束，未指定时在下一个空白字符或行尾结束</li>
+ * <li>time-after：时间（"yyyyMMdd-HH:mm:ss"格式）从此字符串之后开始（从行首查找），未指定时从行的第二个字符开始</li>
+ * </ul>
+ * 一行匹配多条规则时，规则文件中靠前的规则优先。字符串中可以使用\"和\\转义。
+ * 自动机的状态转移表在编译后不再改变，可以被多个线程中的解析器共享。
+ */
+public final class LogRules
+{
+    private static final String[] TYPE_NAMES = {null, "start", "connection", "login", "fail"};
+    private static final String DEFAULT_RULES =
+            "start \"starting xrdp\"\n" +
+            "connection \"connection received from \" ip-until=\" port\"\n" +
+            "login \"] login succ\"\n";
+    private static volatile LogRules defaultRules;
+
+    final int[] types; // 每条规则的类型（XrdpLogParser中的常量）
+    final byte[][] markers;
+    final byte[][] ipAfter; // 未指定时为null，下同
+    final byte[][] ipUntil;
+    final byte[][] timeAfter;
+    final int[] delta; // 状态转移表：delta[状态 * 256 + 字节] = 下一个状态
+    final int[] output; // 到达此状态时匹配到的优先级最高的规则，没有时为Integer.MAX_VALUE
+
+    private LogRules(List<Integer> typeList, List<byte[][]> ruleList)
+    {
+        int n = ruleList.size();
+        types = new int[n];
+        markers = new byte[n][];
+        ipAfter = new byte[n][];
+        ipUntil = new byte[n][];
+        timeAfter = new byte[n][];
+        for(int i = 0; i < n; i++)
+        {
+            types[i] = typeList.get(i);
+            byte[][] r = ruleList.get(i);
+            markers[i] = r[0];
+            ipAfter[i] = r[1];
+            ipUntil[i] = r[2];
+            timeAfter[i] = r[3];
+        }
+        // 构建字典树
+        List<int[]> next = new ArrayList<>();
+        List<Integer> out = new ArrayList<>();
+        next.add(newNode());
+        out.add(Integer.MAX_VALUE);
+        for(int i = 0; i < n; i++)
+        {
+            int s = 0;
+            for(byte c : markers[i])
+            {
+                int t = next.get(s)[c & 0xff];
+                if(t == -1)
+                {
+                    t = next.size();
+                    next.get(s)[c & 0xff] = t;
+                    next.add(newNode());
+                    out.add(Integer.MAX_VALUE);
+                }
+                s = t;
+            }
+            out.set(s, Math.min(out.get(s), i));
+        }
+        // 按广度优先顺序计算失败指针，并将字典树补全为确定的状态转移表
+        int states = next.size();
+        delta = new int[states * 256];
+        output = new int[states];
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0, tail = 0;
+        output[0] = out.get(0);
+        for(int c = 0; c < 256; c++)
+        {
+            int t = next.get(0)[c];
+            if(t == -1)
+                delta[c] = 0;
+            else
+            {
+                delta[c] = t;
+                fail[t] = 0;
+                queue[tail++] = t;
+            }
+        }
+        while(head < tail)
+        {
+            int s = queue[head++];
+            output[s] = Math.min(out.get(s), output[fail[s]]);
+            for(int c = 0; c < 256; c++)
+            {
+                int t = next.get(s)[c];
+                if(t == -1)
+                    delta[s * 256 + c] = delta[fail[s] * 256 + c];
+                else
+                {
+                    delta[s * 256 + c] = t;
+                    fail[t] = delta[fail[s] * 256 + c];
+                    queue[tail++] = t;
+                }
+            }
+        }
+    }
+
+    private static int[] newNode()
+    {
+        int[] node = new int[256];
+        Arrays.fill(node, -1);
+        return node;
+    }
+
+    /**
+     * 获取默认的规则。未通过setDefault()设置时，为识别XRDP日志的内置规则。
+     */
+    public static LogRules getDefault()
+    {
+        LogRules r = defaultRules;
+        if(r == null)
+        {
+            try
+            {
+                defaultRules = r = parse(new BufferedReader(new StringReader(DEFAULT_RULES)));
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 设置之后创建的解析器使用的规则。
+     * 解析器由各个日志读取器和扫描线程自行创建，因此由XRDPGuard在开始读取日志之前调用此函数。
+     */
+    public static void setDefault(LogRules rules)
+    {
+        defaultRules = rules;
+    }
+
+    /**
+     * 从文件加载规则。
+     * @param path 规则文件路径。
+     * @return 编译后的规则。
+     * @throws IOException 读取文件失败或规则格式不正确时抛出。
+     */
+    public static LogRules load(String path) throws IOException
+    {
+        try(BufferedReader br = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8))
+        {
+            return parse(br);
+        }
+    }
+
+    private static LogRules parse(BufferedReader br) throws IOException
+    {
+        List<Integer> typeList = new ArrayList<>();
+        List<byte[][]> ruleList = new ArrayList<>();
+        String line;
+        int lineNo = 0;
+        while((line = br.readLine()) != null)
+        {
+            lineNo++;
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+            List<String> tokens = tokenize(line, lineNo);
+            int type = Arrays.asList(TYPE_NAMES).indexOf(tokens.get(0));
+            if(type < 1)
+                throw new IOException("Line " + lineNo + ": unknown rule type \"" + tokens.get(0) + "\"");
+            if(tokens.size() < 2 || tokens.get(1).isEmpty())
+                throw new IOException("Line " + lineNo + ": missing marker string");
+            byte[][] rule = new byte[4][];
+            rule[0] = tokens.get(1).getBytes(StandardCharsets.UTF_8);
+            for(int i = 2; i < tokens.size(); i++)
+            {
+                String t = tokens.get(i);
+                int eq = t.indexOf('=');
+                int field = eq == -1 ? -1 : Arrays.asList("ip-after", "ip-until", "time-after").indexOf(t.substring(0, eq));
+                if(field == -1 || eq == t.length() - 1)
+                    throw new IOException("Line " + lineNo + ": invalid extractor \"" + t + "\"");
+                if(type != XrdpLogParser.CONNECTION && type != XrdpLogParser.FAIL)
+                    throw new IOException("Line " + lineNo + ": extractors are only allowed for connection and fail rules");
+                rule[field + 1] = t.substring(eq + 1).getBytes(StandardCharsets.UTF_8);
+            }
+            typeList.add(type);
+            ruleList.add(rule);
+        }
+        if(ruleList.isEmpty())
+            throw new IOException("No rules defined");
+        return new LogRules(typeList, ruleList);
+    }
+
+    /**
+     * 拆分一行规则。以空白分隔，双引号内的空白不分隔，等号之后可以紧跟带引号的字符串。
+     */
+    private static List<String> tokenize(String line, int lineNo) throws IOException
+    {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false, inToken = false;
+        for(int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if(quoted)
+            {
+                if(c == '\\' && i + 1 < line.length())
+                    sb.append(line.charAt(++i));
+                else if(c == '"')
+                    quoted = false;
+                else
+                    sb.append(c);
+            }
+            else if(c == '"')
+                quoted = inToken = true;
+            else if(Character.isWhitespace(c))
+            {
+                if(inToken)
+                    tokens.add(sb.toString());
+                sb.setLength(0);
+                inToken = false;
+            }
+            else
+            {
+                sb.append(c);
+                inToken = true;
+            }
+        }
+        if(quoted)
+            throw new IOException("Line " + lineNo + ": unterminated string");
+        if(inToken)
+            tokens.add(sb.toString());
+        return tokens;
+    }
+
+    /**
+     * 获取指定类型的所有规则的匹配字符串。
+     * @param type XrdpLogParser中的类型常量。
+     */
+    public List<byte[]> getMarkers(int type)
+    {
+        List<byte[]> list = new ArrayList<>();
+        for(int i = 0; i < types.length; i++)
+            if(types[i] == type)
+                list.add(markers[i]);
+        return list;
+    }
+
+    /**
+     * 获取规则的数量。
+     */
+    public int size()
+    {
+        return types.length;
+    }
+}
@@ -0,0 +1,214 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 按条件筛选登录记录，并以指定的格式逐条写出，不在内存中保存已写出的记录。
+ * 支持的格式：
+ * <ul>
+ * <li>tsv：每行一条记录，时间、IP和结果（FAIL/SUCCESS）以制表符分隔</li>
+ * <li>csv：第一行为表头"time,ip,outcome"，之后每行一条记录</li>
+ * <li>json：一个JSON数组，每条记录为一个包含time、timestamp（毫秒时间戳）、ip和outcome的对象</li>
+ * </ul>
+ * 筛选条件为时间范围、IP或地址段（可以指定多个，满足任意一个即可）和登录结果，未指定的条件不筛选。
+ */
+public class LoginExporter
+{
+    public static final String[] FORMATS = {"tsv", "csv", "json"};
+
+    private final Writer out;
+    private final String format;
+    private long fromMs = Long.MIN_VALUE;
+    private long toMs = Long.MAX_VALUE;
+    private IpPrefixTrie addrs; // 为null时不按IP筛选
+    private final List<long[]> ranges = new ArrayList<>(); // 筛选的地址段的起始和结束地址（IPv4地址段按IPv4映射地址段保存）
+    private Boolean fail; // 为null时不按登录结果筛选
+    private long count = 0;
+
+    /**
+     * @param out 输出。
+     * @param format 格式（tsv、csv或json）。
+     */
+    public LoginExporter(Writer out, String format)
+    {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * 只导出指定时间范围内的记录。
+     * @param fromMs 开始时间（含）。
+     * @param toMs 结束时间（不含）。
+     */
+    public void setTimeRange(long fromMs, long toMs)
+    {
+        this.fromMs = fromMs;
+        this.toMs = toMs;
+    }
+
+    /**
+     * 只导出来自指定IP或地址段的记录。可以多次调用，满足任意一个即可。
+     * @param cidr IP地址或CIDR地址段。
+     * @return 如果格式正确，返回true，否则返回false。
+     */
+    public boolean addAddress(String cidr)
+    {
+        long[] range = new long[4];
+        if(!parseRange(cidr, range))
+            return false;
+        if(addrs == null)
+            addrs = new IpPrefixTrie();
+        addrs.add(cidr);
+        ranges.add(range);
+        return true;
+    }
+
+    /**
+     * 只导出指定结果的记录。
+     * @param fail 为true时只导出登录失败的记录，为false时只导出登录成功的记录。
+     */
+    public void setOutcome(boolean fail)
+    {
+        this.fail = fail;
+    }
+
+    public long getFromMs()
+    {
+        return fromMs;
+    }
+
+    public long getToMs()
+    {
+        return toMs;
+    }
+
+    /**
+     * 获取筛选的地址段的起始和结束地址。
+     * @return 每个元素依次为起始地址的高、低64位和结束地址的高、低64位；不按IP筛选时为空列表。
+     */
+    public List<long[]> getRanges()
+    {
+        return ranges;
+    }
+
+    /**
+     * 获取已写出的记录数量。
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * 写出格式的开头（如CSV的表头）。
+     */
+    public void begin() throws IOException
+    {
+        if(format.equals("csv"))
+            out.write("time,ip,outcome\n");
+        else if(format.equals("json"))
+            out.write("[\n");
+    }
+
+    /**
+     * 写出格式的结尾并刷新输出。
+     */
+    public void end() throws IOException
+    {
+        if(format.equals("json"))
+            out.write(count == 0 ? "]\n" : "\n]\n");
+        out.flush();
+    }
+
+    /**
+     * 如果记录满足筛选条件，将其写出。
+     * @param timeMs 登录时间。
+     * @param addr IP地址。
+     * @param fail 登录是否失败。
+     */
+    public void accept(long timeMs, String addr, boolean fail) throws IOException
+    {
+        if(timeMs < fromMs || timeMs >= toMs || this.fail != null && this.fail != fail || addrs != null && !addrs.contains(addr))
+            return;
+        write(timeMs, addr, fail);
+    }
+
+    /**
+     * 如果以数值表示地址的记录满足筛选条件，将其写出。地址只在需要写出时才转换为文本。
+     * @param timeMs 登录时间。
+     * @param hi 地址的高64位（IPv4地址按IPv4映射地址表示）。
+     * @param lo 地址的低64位。
+     * @param ipv4 是否是IPv4地址。
+     * @param fail 登录是否失败。
+     */
+    public void accept(long timeMs, long hi, long lo, boolean ipv4, boolean fail) throws IOException
+    {
+        if(timeMs < fromMs || timeMs >= toMs || this.fail != null && this.fail != fail || addrs != null && !addrs.contains(hi, lo))
+            return;
+        write(timeMs, ipv4 ? ipv4ToString((int) lo) : ipv6ToString(hi, lo), fail);
+    }
+
+    private void write(long timeMs, String addr, boolean fail) throws IOException
+    {
+        String outcome = fail ? "FAIL" : "SUCCESS";
+        switch(format)
+        {
+            case "csv":
+                out.write(toXGTime(timeMs) + "," + addr + "," + outcome + "\n");
+                break;
+            case "json":
+                // IP地址和格式化后的时间不包含需要转义的字符（无法解析的地址除外，其中的引号和反斜杠被转义）
+                out.write((count == 0 ? "" : ",\n") + "{\"time\":\"" + toXGTime(timeMs) + "\",\"timestamp\":" + timeMs +
+                        ",\"ip\":\"" + addr.replace("\\", "\\\\").replace("\"", "\\\"") + "\",\"outcome\":\"" + outcome + "\"}");
+                break;
+            default:
+                out.write(toXGTime(timeMs) + "\t" + addr + "\t" + outcome + "\n");
+        }
+        count++;
+    }
+
+    /**
+     * 将IP地址或CIDR地址段解析为起始和结束地址。IPv4地址段转换为对应的IPv4映射地址段。
+     */
+    private static boolean parseRange(String cidr, long[] out)
+    {
+        int slash = cidr.indexOf('/');
+        String addr = slash == -1 ? cidr : cidr.substring(0, slash);
+        long v4 = parseIpv4(addr, 0, addr.length());
+        long[] a = new long[2];
+        int maxLen = v4 >= 0 ? 32 : 128;
+        int prefixLen = maxLen;
+        if(slash != -1)
+        {
+            try
+            {
+                prefixLen = Integer.parseInt(cidr.substring(slash + 1));
+            }
+            catch(NumberFormatException e)
+            {
+                return false;
+            }
+            if(prefixLen < 0 || prefixLen > maxLen)
+                return false;
+        }
+        if(v4 >= 0)
+        {
+            a[1] = 0xffff00000000L | v4;
+            prefixLen += 96;
+        }
+        else if(!parseIpv6(addr, a))
+            return false;
+        long maskHi = prefixLen == 0 ? 0 : prefixLen >= 64 ? -1 : -1L << (64 - prefixLen);
+        long maskLo = prefixLen <= 64 ? 0 : prefixLen == 128 ? -1 : -1L << (128 - prefixLen);
+        out[0] = a[0] & maskHi;
+        out[1] = a[1] & maskLo;
+        out[2] = out[0] | ~maskHi;
+        out[3] = out[1] | ~maskLo;
+        return true;
+    }
+}
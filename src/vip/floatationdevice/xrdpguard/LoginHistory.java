@@ -0,0 +1,415 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 保存在磁盘上的登录历史，只追加不修改，不受XRDP重新启动和日志轮转的影响。
+ * 登录记录按UTC日期分段保存，每天一个段文件（yyyyMMdd.seg），每条记录占用固定的25字节：
+ * <pre>
+ * 登录时间（毫秒时间戳，8字节）	地址的高64位（8字节）	地址的低64位（8字节）	标志（1字节：登录失败、IPv4）
+ * </pre>
+ * IPv4地址按IPv4映射地址（::ffff:a.b.c.d）保存。开始写入新的一天时，前一天的段不再改变，为其生成按IP排序的索引文件（yyyyMMdd.idx）：
+ * <pre>
+ * 魔数 "XGHI"	版本	段中的记录数	地址数
+ * 地址（16字节）	第一条记录在记录号列表中的位置	记录数 ...
+ * 记录号列表（按地址分组，组内按时间排序）
+ * </pre>
+ * 按IP或地址段查询时，在索引上二分查找后只读取相关的记录；没有索引的段（当天的段）按时间二分查找后顺序扫描。
+ * 段文件和索引文件都以内存映射的方式读取。
+ * 重新读取已记录过的日志内容时（如每次检查都从头读取日志，或没有状态快照时重新启动），
+ * 早于最后一条已保存的记录的记录会被跳过，因此同一条记录不会被重复保存。
+ * 只能有一个进程写入，但其他进程可以同时查询（只读取完整的记录）。
+ */
+public class LoginHistory
+{
+    private static final int RECORD_SIZE = 25;
+    private static final int INDEX_MAGIC = 0x58474849; // "XGHI"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 16;
+    private static final int INDEX_KEY_SIZE = 24;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+    private static final byte FLAG_FAIL = 1;
+    private static final byte FLAG_IPV4 = 2;
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final Path dir;
+    private final boolean writable;
+    private OutputStream out; // 当前段的输出流
+    private long currentDay = Long.MIN_VALUE; // 当前段的日期（自1970-01-01起的天数）
+    private long lastTime = Long.MIN_VALUE; // 最后一条已保存的记录的时间
+    private int lastTimeCount = 0; // 时间等于lastTime的已保存的记录数
+    private int skipCount = 0; // 本轮读取中还需跳过的时间等于lastTime的记录数
+    private final ByteBuffer recordBuf = ByteBuffer.allocate(RECORD_SIZE);
+    private final long[] ipv6Buf = new long[2];
+
+    /**
+     * @param dir 保存登录历史的目录。
+     * @param writable 是否写入。只写入时会创建目录、截掉写入中途退出留下的不完整的记录，并为缺少索引的段生成索引。
+     * @throws IOException 读取或写入文件失败时抛出。
+     */
+    public LoginHistory(String dir, boolean writable) throws IOException
+    {
+        this.dir = Paths.get(dir);
+        this.writable = writable;
+        if(!writable)
+            return;
+        Files.createDirectories(this.dir);
+        List<Long> days = listDays();
+        for(int i = 0; i < days.size() - 1; i++)
+            if(!Files.exists(indexPath(days.get(i))))
+                buildIndex(days.get(i));
+        if(days.isEmpty())
+            return;
+        // 从最后一个段的末尾恢复最后一条记录的时间
+        long day = days.get(days.size() - 1);
+        Path seg = segmentPath(day);
+        try(FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            long n = ch.size() / RECORD_SIZE;
+            if(ch.size() != n * RECORD_SIZE)
+            {
+                l.warning("Truncating incomplete record at the end of " + seg);
+                ch.truncate(n * RECORD_SIZE);
+            }
+            ByteBuffer b = ByteBuffer.allocate(8);
+            for(long i = n - 1; i >= 0; i--)
+            {
+                b.clear();
+                ch.read(b, i * RECORD_SIZE);
+                long t = b.getLong(0);
+                if(lastTimeCount == 0)
+                    lastTime = t;
+                else if(t != lastTime)
+                    break;
+                lastTimeCount++;
+            }
+        }
+        currentDay = day;
+        skipCount = lastTimeCount;
+    }
+
+    /**
+     * 开始新一轮从头读取日志。本轮中早于最后一条已保存的记录的记录会被跳过。
+     */
+    public void beginPass()
+    {
+        skipCount = lastTimeCount;
+    }
+
+    /**
+     * 追加一条登录记录。记录先写入缓冲区，调用flush()后写入文件。
+     * 早于最后一条已保存的记录的记录会被跳过；时间相同的记录，跳过本轮中与已保存数量相同的前几条。
+     * @param timeMs 登录时间。
+     * @param addr IP地址。无法解析的地址不会被保存。
+     * @param fail 登录是否失败。
+     * @throws IOException 写入文件失败时抛出。
+     */
+    public void append(long timeMs, String addr, boolean fail) throws IOException
+    {
+        if(timeMs < lastTime)
+            return;
+        if(timeMs == lastTime && skipCount > 0)
+        {
+            skipCount--;
+            return;
+        }
+        long hi, lo;
+        byte flags = fail ? FLAG_FAIL : 0;
+        long v4 = parseIpv4(addr, 0, addr.length());
+        if(v4 >= 0)
+        {
+            hi = 0;
+            lo = 0xffff00000000L | v4;
+            flags |= FLAG_IPV4;
+        }
+        else if(parseIpv6(addr, ipv6Buf))
+        {
+            hi = ipv6Buf[0];
+            lo = ipv6Buf[1];
+        }
+        else
+            return;
+        long day = Math.floorDiv(timeMs, DAY_MS);
+        if(day != currentDay || out == null)
+        {
+            if(out != null)
+            {
+                out.close();
+                out = null;
+            }
+            // 前一天的段不再改变，为其生成索引
+            if(currentDay != Long.MIN_VALUE && day != currentDay && Files.exists(segmentPath(currentDay)))
+                buildIndex(currentDay);
+            currentDay = day;
+            out = new BufferedOutputStream(new FileOutputStream(segmentPath(day).toFile(), true), 64 * 1024);
+        }
+        recordBuf.clear();
+        recordBuf.putLong(timeMs).putLong(hi).putLong(lo).put(flags);
+        out.write(recordBuf.array());
+        if(timeMs == lastTime)
+            lastTimeCount++;
+        else
+        {
+            lastTime = timeMs;
+            lastTimeCount = 1;
+            skipCount = 0;
+        }
+    }
+
+    /**
+     * 将缓冲区中的记录写入文件。
+     * @throws IOException 写入文件失败时抛出。
+     */
+    public void flush() throws IOException
+    {
+        if(out != null)
+            out.flush();
+    }
+
+    /**
+     * 按筛选条件导出登录记录，按时间顺序逐条写出。
+     * @param exporter 筛选条件和输出。
+     * @throws IOException 读取文件或写出失败时抛出。
+     */
+    public void export(LoginExporter exporter) throws IOException
+    {
+        long fromDay = exporter.getFromMs() == Long.MIN_VALUE ? Long.MIN_VALUE : Math.floorDiv(exporter.getFromMs(), DAY_MS);
+        long toDay = exporter.getToMs() == Long.MAX_VALUE ? Long.MAX_VALUE : Math.floorDiv(exporter.getToMs() - 1, DAY_MS);
+        for(long day : listDays())
+        {
+            if(day < fromDay || day > toDay)
+                continue;
+            long t = System.currentTimeMillis();
+            ByteBuffer seg = map(segmentPath(day));
+            int n = seg.limit() / RECORD_SIZE;
+            int[] recs = exporter.getRanges().isEmpty() ? null : lookup(day, n, exporter.getRanges());
+            if(recs != null)
+                for(int r : recs)
+                    emit(seg, r, exporter);
+            else
+                for(int r = firstAtOrAfter(seg, n, exporter.getFromMs()); r < n && seg.getLong(r * RECORD_SIZE) < exporter.getToMs(); r++)
+                    emit(seg, r, exporter);
+            long ms = System.currentTimeMillis() - t;
+            l.fine(() -> "Searched " + n + " records of " + toDayName(day) + (recs == null ? " by scanning" : " with index") + " in " + ms + " ms");
+        }
+    }
+
+    private static void emit(ByteBuffer seg, int r, LoginExporter exporter) throws IOException
+    {
+        int p = r * RECORD_SIZE;
+        byte flags = seg.get(p + 24);
+        exporter.accept(seg.getLong(p), seg.getLong(p + 8), seg.getLong(p + 16), (flags & FLAG_IPV4) != 0, (flags & FLAG_FAIL) != 0);
+    }
+
+    /**
+     * 二分查找第一条时间不早于指定时间的记录。段中的记录按时间排序。
+     */
+    private static int firstAtOrAfter(ByteBuffer seg, int n, long timeMs)
+    {
+        int lo = 0, hi = n;
+        while(lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(seg.getLong(mid * RECORD_SIZE) < timeMs)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * 通过索引查找段中来自指定地址段的记录。
+     * @return 按时间排序的记录号；如果段没有可用的索引，返回null。
+     */
+    private int[] lookup(long day, int n, List<long[]> ranges) throws IOException
+    {
+        Path idx = indexPath(day);
+        if(!Files.exists(idx))
+            return null;
+        ByteBuffer b = map(idx);
+        if(b.limit() < INDEX_HEADER_SIZE || b.getInt(0) != INDEX_MAGIC || b.getInt(4) != INDEX_VERSION || b.getInt(8) != n)
+            return null;
+        int keys = b.getInt(12);
+        int postings = INDEX_HEADER_SIZE + keys * INDEX_KEY_SIZE;
+        int[] recs = new int[16];
+        int count = 0;
+        for(long[] range : ranges)
+        {
+            // 找到第一个不小于起始地址的地址，之后的地址依次比较直到超过结束地址
+            int lo = 0, hi = keys;
+            while(lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                int p = INDEX_HEADER_SIZE + mid * INDEX_KEY_SIZE;
+                if(compare(b.getLong(p), b.getLong(p + 8), range[0], range[1]) < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            for(int k = lo; k < keys; k++)
+            {
+                int p = INDEX_HEADER_SIZE + k * INDEX_KEY_SIZE;
+                if(compare(b.getLong(p), b.getLong(p + 8), range[2], range[3]) > 0)
+                    break;
+                int first = b.getInt(p + 16), size = b.getInt(p + 20);
+                if(count + size > recs.length)
+                    recs = Arrays.copyOf(recs, Math.max(recs.length * 2, count + size));
+                for(int i = 0; i < size; i++)
+                    recs[count++] = b.getInt(postings + (first + i) * 4);
+            }
+        }
+        // 多个地址的记录合并后按记录号（即时间顺序）排序，重叠的地址段可能导致重复
+        Arrays.sort(recs, 0, count);
+        int m = 0;
+        for(int i = 0; i < count; i++)
+            if(m == 0 || recs[i] != recs[m - 1])
+                recs[m++] = recs[i];
+        return Arrays.copyOf(recs, m);
+    }
+
+    /**
+     * 为不再改变的段生成索引。索引先写入临时文件再替换，写入中途退出不会留下不完整的索引。
+     */
+    private void buildIndex(long day) throws IOException
+    {
+        long t = System.currentTimeMillis();
+        ByteBuffer seg = map(segmentPath(day));
+        int n = seg.limit() / RECORD_SIZE;
+        // 按地址排序记录号，相同地址的记录保持时间顺序（稳定排序）
+        Integer[] order = new Integer[n];
+        for(int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> compare(seg.getLong(x * RECORD_SIZE + 8), seg.getLong(x * RECORD_SIZE + 16),
+                seg.getLong(y * RECORD_SIZE + 8), seg.getLong(y * RECORD_SIZE + 16)));
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        DataOutputStream k = new DataOutputStream(keys);
+        int keyCount = 0;
+        for(int i = 0; i < n; )
+        {
+            int p = order[i] * RECORD_SIZE;
+            long hi = seg.getLong(p + 8), lo = seg.getLong(p + 16);
+            int j = i + 1;
+            while(j < n && seg.getLong(order[j] * RECORD_SIZE + 8) == hi && seg.getLong(order[j] * RECORD_SIZE + 16) == lo)
+                j++;
+            k.writeLong(hi);
+            k.writeLong(lo);
+            k.writeInt(i);
+            k.writeInt(j - i);
+            keyCount++;
+            i = j;
+        }
+        Path idx = indexPath(day);
+        Path tmp = dir.resolve(idx.getFileName() + ".tmp");
+        try(DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile()), 64 * 1024)))
+        {
+            o.writeInt(INDEX_MAGIC);
+            o.writeInt(INDEX_VERSION);
+            o.writeInt(n);
+            o.writeInt(keyCount);
+            keys.writeTo(o);
+            for(int i = 0; i < n; i++)
+                o.writeInt(order[i]);
+        }
+        try
+        {
+            Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING);
+        }
+        int addrs = keyCount;
+        long ms = System.currentTimeMillis() - t;
+        l.fine(() -> "Indexed " + n + " login records (" + addrs + " IPs) of " + toDayName(day) + " in " + ms + " ms");
+    }
+
+    /**
+     * 以只读方式映射文件中完整的部分（段文件末尾正在写入的不完整记录不包含在内）。
+     */
+    private static ByteBuffer map(Path p) throws IOException
+    {
+        try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ))
+        {
+            long size = ch.size();
+            if(p.getFileName().toString().endsWith(".seg"))
+                size -= size % RECORD_SIZE;
+            if(size > Integer.MAX_VALUE)
+                throw new IOException(p + " is too large");
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return b;
+        }
+    }
+
+    /**
+     * 列出所有段的日期，按时间排序。
+     */
+    private List<Long> listDays() throws IOException
+    {
+        List<Long> days = new ArrayList<>();
+        if(!Files.isDirectory(dir))
+            return days;
+        try(Stream<Path> s = Files.list(dir))
+        {
+            s.forEach(p ->
+            {
+                String name = p.getFileName().toString();
+                if(name.length() == 12 && name.endsWith(".seg"))
+                {
+                    try
+                    {
+                        days.add(Math.floorDiv(dayFormat().parse(name.substring(0, 8)).getTime(), DAY_MS));
+                    }
+                    catch(java.text.ParseException e)
+                    {
+                        l.warning("Ignoring unknown file in login history: " + p);
+                    }
+                }
+            });
+        }
+        Collections.sort(days);
+        return days;
+    }
+
+    private Path segmentPath(long day)
+    {
+        return dir.resolve(toDayName(day) + ".seg");
+    }
+
+    private Path indexPath(long day)
+    {
+        return dir.resolve(toDayName(day) + ".idx");
+    }
+
+    private static String toDayName(long day)
+    {
+        return dayFormat().format(new Date(day * DAY_MS));
+    }
+
+    private static SimpleDateFormat dayFormat()
+    {
+        SimpleDateFormat f = new SimpleDateFormat("yyyyMMdd");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        f.setLenient(false);
+        return f;
+    }
+
+    /**
+     * 按无符号数比较两个128位地址。
+     */
+    private static int compare(long ah, long al, long bh, long bl)
+    {
+        int c = Long.compareUnsigned(ah, bh);
+        return c != 0 ? c : Long.compareUnsigned(al, bl);
+    }
+}
@@ -0,0 +1,138 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.util.*;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 以列存储方式保存登录记录，每条记录只占用十几个字节。
+ * 登录时间保存为毫秒时间戳，IPv4地址保存为int，IPv6地址保存为两个long，登录是否失败等标志保存在位集中。
+ * 使用者通过getTime()、getAddr()等按下标逐条读取，不为每条记录创建对象。
+ * IPv6地址会被转换为标准文本形式，与日志中的原始写法可能不完全相同。
+ */
+public class LoginRecordStore
+{
+    private long[] times = new long[1024];
+    // IPv4记录中为地址本身，IPv6记录中为ipv6Hi/ipv6Lo的下标，无法解析的地址为rawAddrs的下标
+    private int[] addrs = new int[1024];
+    private final BitSet fail = new BitSet();
+    private final BitSet ipv6 = new BitSet();
+    private final BitSet raw = new BitSet();
+    private long[] ipv6Hi = new long[64];
+    private long[] ipv6Lo = new long[64];
+    private int ipv6Count = 0;
+    private final List<String> rawAddrs = new ArrayList<>(); // 无法解析为IP的地址（如带区域标识的IPv6地址）
+    private final long[] ipv6Buf = new long[2];
+    private int size = 0;
+
+    /**
+     * 添加一条登录记录。
+     * @param timeMs 登录时间。
+     * @param addr IP地址。
+     * @param fail 登录是否失败。
+     */
+    public void add(long timeMs, String addr, boolean fail)
+    {
+        if(size == times.length)
+        {
+            int newLength = size + (size >> 1);
+            times = Arrays.copyOf(times, newLength);
+            addrs = Arrays.copyOf(addrs, newLength);
+        }
+        long v4 = parseIpv4(addr, 0, addr.length());
+        if(v4 >= 0)
+            addrs[size] = (int) v4;
+        else if(parseIpv6(addr, ipv6Buf))
+        {
+            if(ipv6Count == ipv6Hi.length)
+            {
+                int newLength = ipv6Count + (ipv6Count >> 1);
+                ipv6Hi = Arrays.copyOf(ipv6Hi, newLength);
+                ipv6Lo = Arrays.copyOf(ipv6Lo, newLength);
+            }
+            ipv6Hi[ipv6Count] = ipv6Buf[0];
+            ipv6Lo[ipv6Count] = ipv6Buf[1];
+            addrs[size] = ipv6Count++;
+            ipv6.set(size);
+        }
+        else
+        {
+            addrs[size] = rawAddrs.size();
+            rawAddrs.add(addr);
+            raw.set(size);
+        }
+        times[size] = timeMs;
+        this.fail.set(size, fail);
+        size++;
+    }
+
+    /**
+     * 清除所有登录记录。
+     */
+    public void clear()
+    {
+        size = 0;
+        ipv6Count = 0;
+        fail.clear();
+        ipv6.clear();
+        raw.clear();
+        rawAddrs.clear();
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long getTime(int i)
+    {
+        return times[i];
+    }
+
+    public boolean isFail(int i)
+    {
+        return fail.get(i);
+    }
+
+    public boolean isIpv6(int i)
+    {
+        return ipv6.get(i);
+    }
+
+    /**
+     * 获取IPv4记录的地址。
+     * @return 地址对应的整数。对于非IPv4记录，返回值没有意义。
+     */
+    public int getIpv4(int i)
+    {
+        return addrs[i];
+    }
+
+    /**
+     * 获取IPv6记录的地址的高64位。对于非IPv6记录，返回值没有意义。
+     */
+    public long getIpv6Hi(int i)
+    {
+        return ipv6Hi[addrs[i]];
+    }
+
+    /**
+     * 获取IPv6记录的地址的低64位。对于非IPv6记录，返回值没有意义。
+     */
+    public long getIpv6Lo(int i)
+    {
+        return ipv6Lo[addrs[i]];
+    }
+
+    /**
+     * 获取记录的地址的文本形式。
+     */
+    public String getAddr(int i)
+    {
+        if(raw.get(i))
+            return rawAddrs.get(addrs[i]);
+        if(ipv6.get(i))
+            return ipv6ToString(ipv6Hi[addrs[i]], ipv6Lo[addrs[i]]);
+        return ipv4ToString(addrs[i]);
+    }
+}
@@ -0,0 +1,347 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 冷启动时并行扫描大型XRDP日志。
+ * 首先通过内存映射从文件末尾向前查找最后一个日志开始标志（LogRules中start规则的匹配字符串），之前的内容不需要读取；
+ * 然后将标志所在行到最后一个换行符之间的区域按行对齐地拆分为若干块，使用fork/join并行解析。
+ * 每一块的解析结果记录块内第一个连入记录之前是否有登录成功记录，以及块末尾未匹配的连入记录，
+ * 合并相邻两块时据此将跨越块边界的连入/登录成功记录重新配对，结果与从头按顺序读取完全相同。
+ */
+public class MappedLogScanner
+{
+    private static final int SEARCH_WINDOW = 64 * 1024 * 1024; // 向前查找时每次映射的大小
+    private static final int LEAF_SIZE = 4 * 1024 * 1024; // 小于此大小的块不再拆分
+
+    private MappedLogScanner()
+    {
+    }
+
+    /**
+     * 扫描日志从最后一个日志开始标志到最后一个换行符之间的内容。
+     * @param channel 已打开的日志文件。
+     * @param size 要扫描的文件大小。
+     * @return 扫描结果。
+     * @throws IOException 读取文件失败时抛出。
+     */
+    public static Result scan(FileChannel channel, long size) throws IOException
+    {
+        // 末尾不完整的行留给增量读取处理
+        long end = lineStart(channel, size);
+        long start = 0;
+        boolean restarted = false;
+        long marker = -1;
+        for(byte[] startMarker : LogRules.getDefault().getMarkers(XrdpLogParser.START))
+            marker = Math.max(marker, lastIndexOf(channel, end, startMarker));
+        if(marker != -1)
+        {
+            start = lineStart(channel, marker);
+            restarted = true;
+        }
+        Result r;
+        try
+        {
+            r = start == end ? new Result() : ForkJoinPool.commonPool().invoke(new ScanTask(channel, start, end));
+        }
+        catch(UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        r.start = start;
+        r.end = end;
+        r.restarted = restarted;
+        return r;
+    }
+
+    /**
+     * 获取指定位置所在行的起始位置。
+     */
+    private static long lineStart(FileChannel channel, long pos) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long p = pos;
+        while(p > 0)
+        {
+            int n = (int) Math.min(buf.capacity(), p);
+            buf.clear();
+            buf.limit(n);
+            readFully(channel, buf, p - n);
+            for(int i = n - 1; i >= 0; i--)
+                if(buf.get(i) == '\n')
+                    return p - n + i + 1;
+            p -= n;
+        }
+        return 0;
+    }
+
+    /**
+     * 获取指定位置之后（含）的下一行的起始位置。
+     */
+    private static long nextLineStart(FileChannel channel, long pos, long end) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long p = pos;
+        while(p < end)
+        {
+            int n = (int) Math.min(buf.capacity(), end - p);
+            buf.clear();
+            buf.limit(n);
+            readFully(channel, buf, p);
+            for(int i = 0; i < n; i++)
+                if(buf.get(i) == '\n')
+                    return p + i + 1;
+            p += n;
+        }
+        return end;
+    }
+
+    /**
+     * 通过内存映射从后向前查找字节序列最后一次出现的位置。
+     * @return 字节序列的起始位置，找不到时返回-1。
+     */
+    private static long lastIndexOf(FileChannel channel, long end, byte[] pattern) throws IOException
+    {
+        long windowEnd = end;
+        while(windowEnd >= pattern.length)
+        {
+            long windowStart = Math.max(0, windowEnd - SEARCH_WINDOW);
+            MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+            byte last = pattern[pattern.length - 1];
+            for(int i = (int) (windowEnd - windowStart) - 1; i >= pattern.length - 1; i--)
+            {
+                if(mb.get(i) != last)
+                    continue;
+                int j = pattern.length - 2;
+                while(j >= 0 && mb.get(i - (pattern.length - 1 - j)) == pattern[j])
+                    j--;
+                if(j < 0)
+                    return windowStart + i - (pattern.length - 1);
+            }
+            if(windowStart == 0)
+                break;
+            // 相邻的窗口重叠pattern.length - 1个字节，避免漏掉跨越窗口边界的匹配
+            windowEnd = windowStart + pattern.length - 1;
+        }
+        return -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException
+    {
+        while(buf.hasRemaining())
+        {
+            int n = channel.read(buf, pos + buf.position());
+            if(n < 0)
+                throw new IOException("Unexpected end of file at " + (pos + buf.position()));
+        }
+    }
+
+    /**
+     * 扫描结果。登录记录按时间顺序分为若干段保存。
+     */
+    public static final class Result
+    {
+        private final List<LoginRecordStore> segments = new ArrayList<>();
+        private boolean hasConnection = false; // 扫描区域内是否有连入记录
+        private boolean leadingSuccess = false; // 第一个连入记录之前是否有登录成功记录
+        private long pendingTime = 0;
+        private String pendingAddr = null;
+        private long start, end;
+        private boolean restarted;
+
+        /**
+         * 获取登录记录的段数。
+         */
+        public int getSegmentCount()
+        {
+            return segments.size();
+        }
+
+        /**
+         * 获取一段登录记录。
+         */
+        public LoginRecordStore getSegment(int i)
+        {
+            return segments.get(i);
+        }
+
+        /**
+         * 获取扫描区域末尾还没有匹配到登录成功记录的连入记录的IP。
+         * @return IP地址，如果没有则返回null。
+         */
+        public String getPendingAddr()
+        {
+            return pendingAddr;
+        }
+
+        /**
+         * 获取扫描区域末尾还没有匹配到登录成功记录的连入记录的时间。
+         */
+        public long getPendingTime()
+        {
+            return pendingTime;
+        }
+
+        /**
+         * 获取扫描区域的起始位置（最后一个日志开始标志所在行的起始位置，没有标志时为0）。
+         */
+        public long getStart()
+        {
+            return start;
+        }
+
+        /**
+         * 获取扫描区域的结束位置（最后一个换行符之后的位置）。
+         */
+        public long getEnd()
+        {
+            return end;
+        }
+
+        /**
+         * 是否找到了日志开始标志。
+         */
+        public boolean isRestarted()
+        {
+            return restarted;
+        }
+
+        /**
+         * 将后一块的结果合并到此结果之后。此块末尾未匹配的连入记录根据后一块的开头判断登录是否成功。
+         */
+        private Result append(Result next)
+        {
+            if(pendingAddr != null)
+            {
+                if(next.leadingSuccess)
+                {
+                    lastSegment().add(pendingTime, pendingAddr, false);
+                    pendingAddr = null;
+                }
+                else if(next.hasConnection)
+                {
+                    lastSegment().add(pendingTime, pendingAddr, true);
+                    pendingAddr = null;
+                }
+            }
+            if(!hasConnection)
+                leadingSuccess |= next.leadingSuccess;
+            if(next.hasConnection)
+            {
+                hasConnection = true;
+                pendingTime = next.pendingTime;
+                pendingAddr = next.pendingAddr;
+            }
+            segments.addAll(next.segments);
+            return this;
+        }
+
+        private LoginRecordStore lastSegment()
+        {
+            if(segments.isEmpty())
+                segments.add(new LoginRecordStore());
+            return segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * 扫描一个按行对齐的区域。区域较大时拆分为两半并行扫描，再按顺序合并结果。
+     */
+    private static final class ScanTask extends RecursiveTask<Result>
+    {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long start, end;
+
+        ScanTask(FileChannel channel, long start, long end)
+        {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Result compute()
+        {
+            try
+            {
+                if(end - start > LEAF_SIZE)
+                {
+                    long mid = nextLineStart(channel, start + (end - start) / 2, end);
+                    if(mid < end)
+                    {
+                        ScanTask right = new ScanTask(channel, mid, end);
+                        right.fork();
+                        Result left = new ScanTask(channel, start, mid).compute();
+                        return left.append(right.join());
+                    }
+                }
+                return scanLeaf();
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Result scanLeaf() throws IOException
+        {
+            int len = (int) (end - start);
+            // 每块使用自己的缓冲区，扫描结束后即可回收，不会在公共线程池的线程中一直占用内存
+            byte[] b = new byte[len];
+            MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+            mb.get(b, 0, len);
+            XrdpLogParser parser = new XrdpLogParser();
+            Result r = new Result();
+            LoginRecordStore records = r.lastSegment();
+            int lineStart = 0;
+            int lines = 0;
+            for(int i = 0; i < len; i++)
+            {
+                if(b[i] != '\n')
+                    continue;
+                lines++;
+                int lineLen = i - lineStart;
+                if(lineLen > 0 && b[lineStart + lineLen - 1] == '\r')
+                    lineLen--;
+                switch(parser.parse(b, lineStart, lineLen))
+                {
+                    // 扫描区域从最后一个日志开始标志开始，只可能出现在第一行
+                    case XrdpLogParser.START:
+                        r.pendingAddr = null;
+                        break;
+                    case XrdpLogParser.CONNECTION:
+                        if(r.pendingAddr != null)
+                            records.add(r.pendingTime, r.pendingAddr, true);
+                        r.hasConnection = true;
+                        r.pendingTime = parser.getTimeMs();
+                        r.pendingAddr = parser.getAddr();
+                        break;
+                    case XrdpLogParser.FAIL:
+                        records.add(parser.getTimeMs(), parser.getAddr(), true);
+                        break;
+                    case XrdpLogParser.LOGIN_SUCCESS:
+                        if(!r.hasConnection)
+                            r.leadingSuccess = true;
+                        else if(r.pendingAddr != null)
+                        {
+                            records.add(r.pendingTime, r.pendingAddr, false);
+                            r.pendingAddr = null;
+                        }
+                        break;
+                }
+                lineStart = i + 1;
+            }
+            Metrics.LOG_LINES.add(lines);
+            return r;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package vip.floatationdevice.xrdpguard;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * XRDPGuard的运行指标。
+ * 计数器和直方图使用LongAdder/DoubleAdder实现，可以在读取日志的线程池和主线程中同时更新而不需要加锁。
+ * 所有指标可以通过JMX（MBean名称为vip.floatationdevice.xrdpguard:type=Metrics）读取，
+ * 也可以通过只监听本机回环地址的HTTP端点以Prometheus文本格式读取。
+ */
+public final class Metrics
+{
+    private static final List<Metric> METRICS = new CopyOnWriteArrayList<>();
+    private static final double[] SECONDS_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30};
+
+    public static final Counter LOG_LINES = new Counter("xrdpguard_log_lines_total", "XRDP log lines parsed");
+    public static final Counter LOG_BYTES = new Counter("xrdpguard_log_bytes_total", "XRDP log bytes read");
+    public static final Counter LOGIN_RECORDS = new Counter("xrdpguard_login_records_total", "Login records parsed from XRDP logs");
+    public static final Histogram READ_SECONDS = new Histogram("xrdpguard_read_seconds", "Time spent reading and parsing XRDP logs per check", SECONDS_BUCKETS);
+    public static final Histogram RECORDS_PER_IP = new Histogram("xrdpguard_records_per_ip", "Login records per IP read in one check", 1, 2, 3, 5, 10, 20, 50, 100, 1000);
+    public static final Gauge TRACKED_IPS = new Gauge("xrdpguard_tracked_ips", "IPs with login failures in the time period");
+    public static final Histogram BAN_LATENCY_SECONDS = new Histogram("xrdpguard_ban_latency_seconds", "Time from starting to read the log records that triggered a ban to applying the ban", SECONDS_BUCKETS);
+    public static final Counter BANS = new Counter("xrdpguard_bans_total", "IPs and subnets banned");
+    public static final Counter BAN_FAILURES = new Counter("xrdpguard_ban_failures_total", "IPs and subnets that failed to be banned");
+    public static final Counter UNBANS = new Counter("xrdpguard_unbans_total", "Expired bans removed");
+    public static final Gauge ACTIVE_BANS = new Gauge("xrdpguard_active_bans", "IPs and subnets currently banned");
+    public static final Histogram FIREWALL_COMMAND_SECONDS = new Histogram("xrdpguard_firewall_command_seconds", "Execution time of firewall commands", SECONDS_BUCKETS);
+    public static final Counter FIREWALL_COMMAND_FAILURES = new Counter("xrdpguard_firewall_command_failures_total", "Firewall commands that failed or exited with a non-zero code");
+    public static final Counter BLOCKLIST_HITS = new Counter("xrdpguard_blocklist_hits_total", "Connections from blocklisted IPs");
+    public static final Counter CLUSTER_EVENTS_SENT = new Counter("xrdpguard_cluster_events_sent_total", "Ban and unban events sent to peers");
+    public static final Counter CLUSTER_EVENTS_RECEIVED = new Counter("xrdpguard_cluster_events_received_total", "Ban and unban events accepted from peers");
+    public static final Counter CLUSTER_EVENTS_DROPPED = new Counter("xrdpguard_cluster_events_dropped_total", "Events from peers dropped as duplicate, outdated, too old or invalid");
+    public static final Counter CLUSTER_PACKETS_REJECTED = new Counter("xrdpguard_cluster_packets_rejected_total", "Packets from peers rejected for a bad signature or format");
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * 指标的公共部分。
+     */
+    public abstract static class Metric
+    {
+        final String name;
+        final String help;
+
+        Metric(String name, String help)
+        {
+            this.name = name;
+            this.help = help;
+            METRICS.add(this);
+        }
+
+        abstract String type();
+
+        abstract void writeSamples(StringBuilder sb);
+    }
+
+    /**
+     * 只有一个数值的指标。
+     */
+    public abstract static class Scalar extends Metric
+    {
+        Scalar(String name, String help)
+        {
+            super(name, help);
+        }
+
+        public abstract long get();
+
+        @Override
+        void writeSamples(StringBuilder sb)
+        {
+            sb.append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * 只增不减的计数器。
+     */
+    public static final class Counter extends Scalar
+    {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help)
+        {
+            super(name, help);
+        }
+
+        public void inc()
+        {
+            value.increment();
+        }
+
+        public void add(long n)
+        {
+            value.add(n);
+        }
+
+        @Override
+        public long get()
+        {
+            return value.sum();
+        }
+
+        @Override
+        String type()
+        {
+            return "counter";
+        }
+    }
+
+    /**
+     * 表示当前状态的即时值。
+     */
+    public static final class Gauge extends Scalar
+    {
+        private volatile long value = 0;
+
+        Gauge(String name, String help)
+        {
+            super(name, help);
+        }
+
+        public void set(long value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public long get()
+        {
+            return value;
+        }
+
+        @Override
+        String type()
+        {
+            return "gauge";
+        }
+    }
+
+    /**
+     * 读取时才从其他对象获取值的指标，用于已经在别处统计的数值（如封禁状态缓存的命中次数）。
+     */
+    private static final class FunctionMetric extends Scalar
+    {
+        private final String type;
+        private final LongSupplier f;
+
+        FunctionMetric(String name, String type, String help, LongSupplier f)
+        {
+            super(name, help);
+            this.type = type;
+            this.f = f;
+        }
+
+        @Override
+        public long get()
+        {
+            return f.getAsLong();
+        }
+
+        @Override
+        String type()
+        {
+            return type;
+        }
+    }
+
+    /**
+     * 固定桶边界的直方图。每个桶只统计落在其中的观测值，输出时再累加为Prometheus要求的累积计数。
+     */
+    public static final class Histogram extends Metric
+    {
+        private final double[] bounds; // 各个桶的上界（包含），最后还有一个+Inf桶
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(String name, String help, double... bounds)
+        {
+            super(name, help);
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for(int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        public void observe(double v)
+        {
+            int i = 0;
+            while(i < bounds.length && v > bounds[i])
+                i++;
+            buckets[i].increment();
+            count.increment();
+            sum.add(v);
+        }
+
+        /**
+         * 记录一段以纳秒计的耗时，以秒为单位统计。
+         */
+        public void observeNanos(long nanos)
+        {
+            observe(nanos / 1e9);
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        public double getSum()
+        {
+            return sum.sum();
+        }
+
+        @Override
+        String type()
+        {
+            return "histogram";
+        }
+
+        @Override
+        void writeSamples(StringBuilder sb)
+        {
+            long cumulative = 0;
+            for(int i = 0; i < buckets.length; i++)
+            {
+                cumulative += buckets[i].sum();
+                sb.append(name).append("_bucket{le=\"").append(i < bounds.length ? Double.toString(bounds[i]) : "+Inf").append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum ").append(getSum()).append('\n');
+            sb.append(name).append("_count ").append(getCount()).append('\n');
+        }
+    }
+
+    /**
+     * 注册一个读取时从函数获取值的计数器。
+     */
+    public static void counter(String name, String help, LongSupplier f)
+    {
+        new FunctionMetric(name, "counter", help, f);
+    }
+
+    /**
+     * 注册一个读取时从函数获取值的即时值。
+     */
+    public static void gauge(String name, String help, LongSupplier f)
+    {
+        new FunctionMetric(name, "gauge", help, f);
+    }
+
+    /**
+     * 以Prometheus文本格式（0.0.4）输出所有指标。
+     */
+    public static String toPrometheus()
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Metric m : METRICS)
+        {
+            sb.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+            sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+            m.writeSamples(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 启动只监听本机回环地址的HTTP服务器，在/metrics路径下提供Prometheus文本格式的指标。
+     * @param port 监听的端口。
+     * @return 已启动的HTTP服务器。服务器的线程不是守护线程，不再需要时应调用stop()。
+     * @throws IOException 无法监听端口时抛出。
+     */
+    public static HttpServer startHttpServer(int port) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange ->
+        {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * 将所有指标注册为平台MBean服务器中的一个MBean。
+     * 计数器和即时值的属性名与指标名相同，直方图提供名称后加"_count"和"_sum"的两个属性。
+     * @throws JMException 注册失败时抛出。
+     */
+    public static void registerMBean() throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("vip.floatationdevice.xrdpguard:type=Metrics"));
+    }
+
+    /**
+     * 将指标列表映射为只读属性的动态MBean。
+     */
+    private static final class MetricsMBean implements DynamicMBean
+    {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            for(Metric m : METRICS)
+            {
+                if(m instanceof Histogram)
+                {
+                    Histogram h = (Histogram) m;
+                    if(attribute.equals(m.name + "_count"))
+                        return h.getCount();
+                    if(attribute.equals(m.name + "_sum"))
+                        return h.getSum();
+                }
+                else if(attribute.equals(m.name))
+                    return ((Scalar) m).get();
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes)
+        {
+            AttributeList list = new AttributeList();
+            for(String a : attributes)
+            {
+                try
+                {
+                    list.add(new Attribute(a, getAttribute(a)));
+                }
+                catch(AttributeNotFoundException ignored)
+                {
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+        {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for(Metric m : METRICS)
+            {
+                if(m instanceof Histogram)
+                {
+                    attrs.add(new MBeanAttributeInfo(m.name + "_count", "long", m.help + " (count)", true, false, false));
+                    attrs.add(new MBeanAttributeInfo(m.name + "_sum", "double", m.help + " (sum)", true, false, false));
+                }
+                else
+                    attrs.add(new MBeanAttributeInfo(m.name, "long", m.help, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "XRDPGuard metrics", attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 连接处理流程中相邻两个阶段的有界无锁队列，只允许一个生产者线程和一个消费者线程。
+ * 元素保存在容量为2的幂的环形数组中，生产者和消费者各自只写入自己的位置，不需要加锁。
+ * 队列满时生产者等待消费者取出元素（背压），不会丢弃元素；队列空时消费者等待生产者放入元素。
+ * 等待的一方被另一方唤醒，同时设有较短的超时，因此不会因为错过唤醒而一直等待。
+ * 队列记录当前深度、最大深度、生产者因队列满而等待的次数和时间，用于判断哪个阶段是瓶颈。
+ */
+public final class SpscQueue<E>
+{
+    private static final long PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Object[] buf;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // 下一个取出的位置，只由消费者写入
+    private final AtomicLong tail = new AtomicLong(); // 下一个放入的位置，只由生产者写入
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+    private volatile int maxDepth = 0;
+    private volatile long fullCount = 0; // 生产者因队列满而等待的次数
+    private volatile long fullNs = 0; // 生产者因队列满而等待的总时间
+
+    /**
+     * @param capacity 容量，会被向上取整为2的幂。
+     */
+    public SpscQueue(int capacity)
+    {
+        int c = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buf = new Object[c];
+        mask = c - 1;
+    }
+
+    /**
+     * 放入一个元素。队列满时等待，直到消费者取出元素。只能在生产者线程中调用。
+     * @param e 元素，不能为null。
+     */
+    public void put(E e)
+    {
+        long t = tail.get();
+        if(t - head.get() == buf.length)
+        {
+            long start = System.nanoTime();
+            waitingProducer = Thread.currentThread();
+            while(t - head.get() == buf.length)
+                LockSupport.parkNanos(this, PARK_NS);
+            waitingProducer = null;
+            fullCount++;
+            fullNs += System.nanoTime() - start;
+        }
+        buf[(int) t & mask] = e;
+        // 使用volatile写入，保证之后读取waitingConsumer时不会错过正要开始等待的消费者
+        tail.set(t + 1);
+        int depth = (int) (t + 1 - head.get());
+        if(depth > maxDepth)
+            maxDepth = depth;
+        Thread c = waitingConsumer;
+        if(c != null)
+            LockSupport.unpark(c);
+    }
+
+    /**
+     * 放入一个元素，队列满时立即返回。只能在生产者线程中调用。
+     * @param e 元素，不能为null。
+     * @return 如果已放入，返回true；如果队列已满，返回false。
+     */
+    public boolean offer(E e)
+    {
+        if(tail.get() - head.get() == buf.length)
+            return false;
+        put(e);
+        return true;
+    }
+
+    /**
+     * 取出一个元素，队列空时立即返回。只能在消费者线程中调用。
+     * @return 元素，队列空时返回null。
+     */
+    @SuppressWarnings("unchecked")
+    public E poll()
+    {
+        long h = head.get();
+        if(h == tail.get())
+            return null;
+        int i = (int) h & mask;
+        E e = (E) buf[i];
+        buf[i] = null;
+        head.set(h + 1);
+        Thread p = waitingProducer;
+        if(p != null)
+            LockSupport.unpark(p);
+        return e;
+    }
+
+    /**
+     * 取出一个元素，队列空时等待生产者放入元素。只能在消费者线程中调用。
+     * @param timeoutNs 最长等待时间（纳秒）。
+     * @return 元素，超时时返回null。
+     * @throws InterruptedException 等待时被中断时抛出。
+     */
+    public E take(long timeoutNs) throws InterruptedException
+    {
+        E e = poll();
+        if(e != null)
+            return e;
+        long deadline = System.nanoTime() + timeoutNs;
+        waitingConsumer = Thread.currentThread();
+        try
+        {
+            while((e = poll()) == null)
+            {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0)
+                    return null;
+                LockSupport.parkNanos(this, Math.min(remaining, PARK_NS * 100));
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return e;
+        }
+        finally
+        {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * 获取当前队列中的元素数量。
+     */
+    public int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * 检查队列是否为空。
+     */
+    public boolean isEmpty()
+    {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * 获取队列的容量。
+     */
+    public int capacity()
+    {
+        return buf.length;
+    }
+
+    /**
+     * 获取队列曾经达到的最大元素数量。
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * 获取生产者因队列满而等待的次数。
+     */
+    public long getFullCount()
+    {
+        return fullCount;
+    }
+
+    /**
+     * 获取生产者因队列满而等待的总时间（纳秒）。
+     */
+    public long getFullNanos()
+    {
+        return fullNs;
+    }
+}
@@ -0,0 +1,127 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 检测状态的快照，用于重新启动后快速恢复。
+ * 快照以二进制格式保存每个XRDP日志的读取位置（文件标识、字节偏移量等）、每个IP最近的登录失败时间和地址段的统计数据：
+ * <pre>
+ * 魔数 "XGSS"	版本	保存时间	配置
+ * 日志读取位置（XrdpLogSources）
+ * 登录失败时间（FailureTracker）
+ * 是否有地址段统计数据	地址段统计数据（SubnetAggregator）
+ * CRC32校验值
+ * </pre>
+ * 快照先写入临时文件并同步到磁盘，再替换原文件，因此写入中途退出不会破坏已有的快照。
+ * 恢复快照后只需读取快照之后新增的日志内容，重新启动所需的时间与日志的大小无关。
+ * 封禁状态已由封禁日志在每次变化时保存，不包含在快照中。
+ * 影响检测状态的配置（时间跨度、失败次数、地址段设置和日志路径）改变后，之前的快照会被忽略。
+ */
+public class StateSnapshot
+{
+    private static final int MAGIC = 0x58475353; // "XGSS"
+    private static final int VERSION = 1;
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final Path path;
+
+    public StateSnapshot(String path)
+    {
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * 保存快照。应在两次检查之间调用，此时日志读取位置与检测状态一致。
+     * @param config 影响检测状态的配置，恢复时用于判断快照是否仍然适用。
+     * @param sources 日志读取器。
+     * @param tracker 失败计数器。
+     * @param aggregator 地址段统计，不封禁地址段时为null。
+     * @throws IOException 写入文件失败时抛出。
+     */
+    public void save(String config, XrdpLogSources sources, FailureTracker tracker, SubnetAggregator aggregator) throws IOException
+    {
+        long t = System.currentTimeMillis();
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tmp = path.toAbsolutePath().getParent().resolve(path.getFileName() + ".tmp");
+        long size;
+        try(FileOutputStream fos = new FileOutputStream(tmp.toFile()))
+        {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(t);
+            out.writeUTF(config);
+            sources.saveState(out);
+            tracker.saveState(out);
+            out.writeBoolean(aggregator != null);
+            if(aggregator != null)
+                aggregator.saveState(out);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+            size = out.size();
+        }
+        try
+        {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        long ms = System.currentTimeMillis() - t;
+        l.fine(() -> "Saved state snapshot (" + size + " bytes) in " + ms + " ms");
+    }
+
+    /**
+     * 恢复快照。恢复失败时传入的对象可能处于部分恢复的状态，调用者应重新创建它们。
+     * @param config 当前影响检测状态的配置。与保存时不同时不恢复。
+     * @param sources 尚未读取过的日志读取器。
+     * @param tracker 失败计数器。
+     * @param aggregator 地址段统计，不封禁地址段时为null。应已恢复被单独封禁的IP。
+     * @return 如果快照已恢复，返回true；如果快照不存在或配置已改变，返回false。
+     * @throws IOException 读取文件失败或快照已损坏时抛出。
+     */
+    public boolean load(String config, XrdpLogSources sources, FailureTracker tracker, SubnetAggregator aggregator) throws IOException
+    {
+        if(!Files.exists(path))
+            return false;
+        byte[] b = Files.readAllBytes(path);
+        if(b.length < 8)
+            throw new IOException("State snapshot is truncated");
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, b.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+        in.skipBytes(b.length - 8);
+        if(in.readLong() != crc.getValue())
+            throw new IOException("State snapshot checksum mismatch");
+        in = new DataInputStream(new ByteArrayInputStream(b, 0, b.length - 8));
+        if(in.readInt() != MAGIC)
+            throw new IOException("Not a state snapshot");
+        int version = in.readInt();
+        if(version != VERSION)
+            throw new IOException("Unsupported state snapshot version " + version);
+        long savedAt = in.readLong();
+        if(!in.readUTF().equals(config))
+        {
+            l.info("Configuration has changed since the state snapshot was saved, ignoring it");
+            return false;
+        }
+        int restored = sources.restoreState(in);
+        tracker.restoreState(in);
+        if(in.readBoolean())
+        {
+            if(aggregator == null)
+                throw new IOException("State snapshot contains subnet statistics but subnet ban is off");
+            aggregator.restoreState(in);
+        }
+        l.info("Restored state snapshot saved at " + XrdpGuardCommons.toXGTime(savedAt) + " (" + tracker.size() + " IPs tracked, " +
+                restored + " logs resumed)");
+        return true;
+    }
+}
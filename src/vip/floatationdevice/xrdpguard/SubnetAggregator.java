@@ -0,0 +1,322 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 按地址段统计登录失败的主机，将同一地址段中大量轮换地址的攻击者合并为一个地址段封禁。
+ * 每个IP按前缀长度（IPv4默认/24，IPv6默认/48）归入一个地址段，地址段内在时间跨度内登录失败次数达到每个主机的阈值的主机
+ * 与已被单独封禁的主机合计达到阈值时，该地址段被视为可疑。
+ * 只失败过一两次的主机不计入，因此同一个NAT地址段后面的几个用户各自输错一次密码，不会导致整个地址段被封禁。
+ * 地址段被封禁后，其中已被单独封禁的IP可以解除封禁，使防火墙规则的数量不随攻击范围的扩大而增长。
+ * 地址段以CIDR形式（如"1.2.3.0/24"、"2001:db8:1::/48"）表示，IPv4映射地址按IPv4地址处理。
+ * 注意：登录记录需要按时间顺序送入。此类不是线程安全的。
+ */
+public class SubnetAggregator
+{
+    private final int prefixLen4;
+    private final int prefixLen6;
+    private final long periodMs;
+    private final int minHosts;
+    private final int hostFails;
+    // 地址段 -> 地址段内主机的登录失败时间，按最后一次登录失败的先后排序，过期的地址段总是在前面
+    private final LinkedHashMap<String, Subnet> subnets = new LinkedHashMap<>();
+    // 地址段 -> 地址段内已被单独封禁的IP
+    private final Map<String, Set<String>> bannedHosts = new HashMap<>();
+    // 自上次检查以来主机数量达到阈值的地址段
+    private final Set<String> crossed = new LinkedHashSet<>();
+    private final long[] ipv6Buf = new long[2];
+
+    /**
+     * @param prefixLen4 IPv4地址段的前缀长度（0~32）。
+     * @param prefixLen6 IPv6地址段的前缀长度（0~128）。
+     * @param periodMs 统计登录失败的时间跨度。
+     * @param minHosts 地址段被视为可疑所需的主机数量。
+     * @param hostFails 主机在时间跨度内至少登录失败多少次才计入地址段的主机数量。
+     */
+    public SubnetAggregator(int prefixLen4, int prefixLen6, long periodMs, int minHosts, int hostFails)
+    {
+        if(prefixLen4 < 0 || prefixLen4 > 32 || prefixLen6 < 0 || prefixLen6 > 128)
+            throw new IllegalArgumentException("Invalid prefix length: /" + prefixLen4 + ", /" + prefixLen6);
+        this.prefixLen4 = prefixLen4;
+        this.prefixLen6 = prefixLen6;
+        this.periodMs = periodMs;
+        this.minHosts = Math.max(minHosts, 2);
+        this.hostFails = Math.max(hostFails, 1);
+    }
+
+    /**
+     * 获取IP所属的地址段。
+     * @param ip IP地址。
+     * @return CIDR形式的地址段；如果不是合法的IP地址，返回null。
+     */
+    public String subnetOf(String ip)
+    {
+        long v4 = parseIpv4(ip, 0, ip.length());
+        if(v4 < 0)
+        {
+            if(!parseIpv6(ip, ipv6Buf))
+                return null;
+            if(ipv6Buf[0] != 0 || ipv6Buf[1] >>> 32 != 0xffffL)
+            {
+                long hi = ipv6Buf[0], lo = ipv6Buf[1];
+                if(prefixLen6 <= 64)
+                {
+                    hi = prefixLen6 == 0 ? 0 : hi & -1L << (64 - prefixLen6);
+                    lo = 0;
+                }
+                else
+                    lo = prefixLen6 == 128 ? lo : lo & -1L << (128 - prefixLen6);
+                return ipv6ToString(hi, lo) + "/" + prefixLen6;
+            }
+            v4 = ipv6Buf[1] & 0xffffffffL;
+        }
+        int masked = prefixLen4 == 0 ? 0 : (int) v4 & -1 << (32 - prefixLen4);
+        return ipv4ToString(masked) + "/" + prefixLen4;
+    }
+
+    /**
+     * 送入一条登录记录。
+     * @param timeMs 登录时间。
+     * @param addr IP地址。
+     * @param fail 登录是否失败。
+     */
+    public void record(long timeMs, String addr, boolean fail)
+    {
+        if(!fail)
+            return;
+        String subnet = subnetOf(addr);
+        if(subnet == null)
+            return;
+        Subnet s = subnets.remove(subnet);
+        if(s == null)
+            s = new Subnet();
+        subnets.put(subnet, s);
+        s.record(addr, timeMs, hostFails);
+        long since = timeMs - periodMs;
+        s.expire(since);
+        if(countHosts(subnet, s, since) >= minHosts)
+            crossed.add(subnet);
+    }
+
+    /**
+     * 记录一个被单独封禁的IP。
+     * @param ip IP地址。
+     */
+    public void addBanned(String ip)
+    {
+        String subnet = subnetOf(ip);
+        if(subnet == null)
+            return;
+        Set<String> hosts = bannedHosts.get(subnet);
+        if(hosts == null)
+            bannedHosts.put(subnet, hosts = new HashSet<>());
+        hosts.add(ip);
+        Subnet s = subnets.get(subnet);
+        if(countHosts(subnet, s, s == null ? 0 : s.newest - periodMs) >= minHosts)
+            crossed.add(subnet);
+    }
+
+    /**
+     * 移除一个被单独封禁的IP。在IP被解除封禁后调用。
+     * @param ip IP地址。
+     */
+    public void removeBanned(String ip)
+    {
+        String subnet = subnetOf(ip);
+        if(subnet == null)
+            return;
+        Set<String> hosts = bannedHosts.get(subnet);
+        if(hosts != null && hosts.remove(ip) && hosts.isEmpty())
+            bannedHosts.remove(subnet);
+    }
+
+    /**
+     * 获取地址段内被单独封禁的IP。
+     * @param subnet CIDR形式的地址段。
+     * @return IP列表。
+     */
+    public List<String> getBanned(String subnet)
+    {
+        Set<String> hosts = bannedHosts.get(subnet);
+        return hosts == null ? new ArrayList<>() : new ArrayList<>(hosts);
+    }
+
+    /**
+     * 清除一个地址段的统计数据。在地址段被封禁后调用。
+     * @param subnet CIDR形式的地址段。
+     */
+    public void forget(String subnet)
+    {
+        subnets.remove(subnet);
+        crossed.remove(subnet);
+    }
+
+    /**
+     * 清除所有登录失败的统计数据。被单独封禁的IP不受影响。
+     */
+    public void reset()
+    {
+        subnets.clear();
+        crossed.clear();
+    }
+
+    /**
+     * 获取自上次调用以来主机数量达到阈值，并且在当前时间看来仍然达到阈值的地址段，同时清除过期的统计数据。
+     * @param nowMs 当前时间。
+     * @return 可疑地址段列表。
+     */
+    public List<String> poll(long nowMs)
+    {
+        long since = nowMs - periodMs;
+        Iterator<Subnet> it = subnets.values().iterator();
+        while(it.hasNext())
+        {
+            Subnet s = it.next();
+            if(s.newest >= since)
+                break;
+            it.remove();
+        }
+        List<String> suspiciousSubnets = new ArrayList<>(crossed.size());
+        for(String subnet : crossed)
+        {
+            Subnet s = subnets.get(subnet);
+            if(s != null)
+                s.expire(since);
+            if(countHosts(subnet, s, since) >= minHosts)
+                suspiciousSubnets.add(subnet);
+        }
+        crossed.clear();
+        return suspiciousSubnets;
+    }
+
+    /**
+     * 保存所有地址段内主机最近的登录失败时间。被单独封禁的IP由封禁状态恢复，不会被保存。
+     * @param out 输出。
+     * @throws IOException 写入失败时抛出。
+     */
+    public void saveState(DataOutput out) throws IOException
+    {
+        out.writeInt(subnets.size());
+        for(Map.Entry<String, Subnet> e : subnets.entrySet())
+        {
+            Subnet s = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeLong(s.newest);
+            out.writeInt(s.hosts.size());
+            for(Map.Entry<String, Host> h : s.hosts.entrySet())
+            {
+                Host host = h.getValue();
+                int kept = (int) Math.min(host.count, host.times.length);
+                out.writeUTF(h.getKey());
+                out.writeInt(kept);
+                for(long i = host.count - kept; i < host.count; i++)
+                    out.writeLong(host.times[(int) (i % host.times.length)]);
+            }
+        }
+    }
+
+    /**
+     * 恢复saveState()保存的登录失败统计数据，原有的统计数据会被清除。应在addBanned()恢复被单独封禁的IP之后调用。
+     * @param in 输入。
+     * @throws IOException 读取失败时抛出。
+     */
+    public void restoreState(DataInput in) throws IOException
+    {
+        reset();
+        int n = in.readInt();
+        for(int i = 0; i < n; i++)
+        {
+            String subnet = in.readUTF();
+            Subnet s = new Subnet();
+            s.newest = in.readLong();
+            int hosts = in.readInt();
+            for(int j = 0; j < hosts; j++)
+            {
+                String host = in.readUTF();
+                int kept = in.readInt();
+                for(int k = 0; k < kept; k++)
+                    s.record(host, in.readLong(), hostFails);
+            }
+            subnets.put(subnet, s);
+            if(countHosts(subnet, s, s.newest - periodMs) >= minHosts)
+                crossed.add(subnet);
+        }
+    }
+
+    /**
+     * 获取当前有统计数据的地址段数量。
+     */
+    public int size()
+    {
+        return subnets.size();
+    }
+
+    /**
+     * 统计地址段内被单独封禁的主机和自since以来登录失败次数达到阈值的主机的数量。
+     */
+    private int countHosts(String subnet, Subnet s, long since)
+    {
+        Set<String> banned = bannedHosts.get(subnet);
+        int n = banned == null ? 0 : banned.size();
+        if(s != null)
+            for(Map.Entry<String, Host> e : s.hosts.entrySet())
+                if(e.getValue().failedSince(since) && (banned == null || !banned.contains(e.getKey())))
+                    n++;
+        return n;
+    }
+
+    /**
+     * 一个地址段内主机的登录失败时间，按最后一次登录失败的先后排序。
+     */
+    private static final class Subnet
+    {
+        final LinkedHashMap<String, Host> hosts = new LinkedHashMap<>();
+        long newest; // 最后一次登录失败的时间
+
+        void record(String addr, long timeMs, int hostFails)
+        {
+            Host h = hosts.remove(addr);
+            if(h == null)
+                h = new Host(hostFails);
+            hosts.put(addr, h);
+            h.times[(int) (h.count++ % h.times.length)] = timeMs;
+            h.last = timeMs;
+            newest = timeMs;
+        }
+
+        void expire(long since)
+        {
+            Iterator<Host> it = hosts.values().iterator();
+            while(it.hasNext() && it.next().last < since)
+                it.remove();
+        }
+    }
+
+    /**
+     * 一个主机最近的登录失败时间，只保留阈值所需的次数。
+     */
+    private static final class Host
+    {
+        final long[] times; // 环形数组
+        long count = 0; // 登录失败的总次数
+        long last; // 最后一次登录失败的时间
+
+        Host(int hostFails)
+        {
+            times = new long[hostFails];
+        }
+
+        /**
+         * 检查自since以来的登录失败次数是否达到阈值，即最近的阈值次失败中最早的一次不早于since。
+         */
+        boolean failedSince(long since)
+        {
+            return count >= times.length && times[(int) (count % times.length)] >= since;
+        }
+    }
+}
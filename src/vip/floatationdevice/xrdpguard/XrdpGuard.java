@@ -1,9 +1,27 @@
 package vip.floatationdevice.xrdpguard;
 
+import com.sun.net.httpserver.HttpServer;
+import vip.floatationdevice.xrdpguard.firewall.CachingFirewallManager;
+import vip.floatationdevice.xrdpguard.firewall.FirewallExecutor;
 import vip.floatationdevice.xrdpguard.firewall.FirewallManager;
+import vip.floatationdevice.xrdpguard.firewall.SystemCommandRunner;
 
+import javax.management.JMException;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Formatter;
 import java.util.logging.*;
 
@@ -11,19 +29,77 @@ import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
 
 public class XrdpGuard
 {
-    private static String xrdpLogPath = "/var/log/xrdp.log"; // 默认XRDP日志路径
+    private static final List<String> xrdpLogPaths = new ArrayList<>(); // XRDP日志路径，未指定时为/var/log/xrdp.log
+    private static final List<String> backfillPaths = new ArrayList<>(); // 只在开始时读取一次的历史日志路径
     private static String banLogPath = "xrdpguard/ban.log"; // 默认封禁记录路径
+    private static String rulesPath = null; // 默认日志识别规则文件路径：无（使用内置规则）
     private static String whitelistPath = "xrdpguard/whitelist.txt"; // 默认IP白名单路径
+    private static final List<String> blocklistPaths = new ArrayList<>(); // 连入时立即封禁的IP黑名单路径
+    private static String blocklistIndexPath = "xrdpguard/blocklist.idx"; // 默认黑名单索引文件路径
+    private static String snapshotPath = null; // 默认状态快照路径：无（不保存快照）
+    private static long snapshotIntervalMs = 60 * 1000; // 默认保存状态快照的间隔：1分钟
+    private static String historyPath = null; // 默认登录历史目录：无（不保存登录历史）
+    private static String exportFormat = "tsv"; // 默认导出格式：tsv
+    private static long exportFromMs = Long.MIN_VALUE; // 导出的开始时间：无
+    private static long exportToMs = Long.MAX_VALUE; // 导出的结束时间：无
+    private static final List<String> exportAddrs = new ArrayList<>(); // 只导出这些IP或地址段的记录
+    private static Boolean exportFail = null; // 只导出指定结果的记录：无（全部导出）
     private static long periodMs = 10 * 60 * 1000; // 默认时间跨度：10分钟
     private static int maxFails = 3; // 默认最多失败次数：3次
     private static String fwClassPath = "vip.floatationdevice.xrdpguard.firewall.Firewalld"; // 默认防火墙管理器类路径
     private static long loopMs = -1; // 默认循环检查间隔：关（>=5000ms时为开）
+    private static long fwCacheRefreshMs = 60 * 60 * 1000; // 默认封禁状态缓存刷新间隔：1小时（<0时不使用缓存）
+    private static long fwTimeoutMs = 60 * 1000; // 默认防火墙命令超时时间：1分钟（<=0时不限制）
+    private static int fwRetries = 2; // 默认封禁失败后的重试次数：2次
+    private static long banTimeMs = -1; // 默认封禁时长：永久
+    private static double banTimeFactor = 1; // 默认再次封禁时的时长倍数：1（不递增）
+    private static long maxBanTimeMs = -1; // 默认封禁时长上限：无
+    private static int subnetPrefix4 = 24; // 默认IPv4地址段前缀长度：/24
+    private static int subnetPrefix6 = 48; // 默认IPv6地址段前缀长度：/48
+    private static int subnetHosts = 0; // 默认封禁地址段所需的主机数量：关（>=2时为开）
+    private static int subnetHostFails = 2; // 默认主机计入地址段所需的登录失败次数：2次
+    private static int metricsPort = 0; // 默认Prometheus指标端点的端口：关（>0时为开）
+    private static int controlPort = 0; // 默认守护进程模式控制端口：关（>0时为开）
+    private static String controlTokenPath = null; // 保存控制令牌的文件路径：无（只能执行只读的控制命令）
+    private static String controlToken = null;
+    private static String clusterAddr = null; // 默认接收其他实例封禁事件的地址：无（不传播封禁）
+    private static final List<String> clusterPeers = new ArrayList<>(); // 其他实例的地址
+    private static String clusterKeyPath = null; // 保存共享密钥的文件路径
     private static boolean flDebug = false; // 调试输出：关
     private static boolean flDryRun = false; // 演练模式：关
     private static boolean flExportMode = false; // 导出模式：关
     private static boolean flNoBanLog = false; // 禁用保存封禁记录：关
+    private static boolean flFollow = false; // 增量读取XRDP日志：关
+    private static boolean flWatch = false; // XRDP日志变化时立即检查：关
     private static Logger l;
     private static FirewallManager fw;
+    private static FirewallExecutor fwExecutor; // 在后台执行防火墙操作，主线程不直接调用防火墙管理器
+    private static XrdpLogSources logSources; // 增量读取模式下在多次检查之间保留的日志读取器
+    private static LogIngestStage ingest; // 读取阶段，在单独的线程中读取和解析日志
+    private static LoginRecordStore exportLogins; // 导出模式下保存的登录记录
+    private static LoginHistory history; // 不保存登录历史时为null
+    private static ExecutorService logPool; // 并行读取多个日志的线程池
+    private static FailureTracker failureTracker; // 增量读取模式下在多次检查之间保留的失败计数器
+    private static IpWhitelist whitelist;
+    private static IpBlocklist blocklist; // 未指定黑名单时为null
+    private static final Set<String> blockedIPs = new LinkedHashSet<>(); // 本次检查中连入的黑名单中的IP
+    private static BanStore banStore;
+    private static BanJournal banJournal; // 不保存封禁记录时为null
+    private static SubnetAggregator subnetAggregator; // 不封禁地址段时为null
+    private static StateSnapshot stateSnapshot; // 不保存状态快照时为null
+    private static long lastSnapshotMs = 0; // 上次保存状态快照的时间
+    private static HttpServer metricsServer; // 未开启指标端点时为null
+    private static ControlServer controlServer; // 未开启守护进程模式时为null
+    private static ClusterSync cluster; // 不传播封禁时为null
+    private static final List<ControlServer.Reply> rescanReplies = new ArrayList<>(); // 等待重新扫描完成的控制命令
+    private static Map<String, Integer> checkRecords; // 本次检查读取到的每个IP的登录记录数，未开启指标端点时为null
+    private static long readStartNs; // 本次检查开始读取日志的时间，用于统计封禁延迟
+    private static final long UNBAN_RETRY_MS = 60 * 1000; // 到期解封失败后重试的间隔
+    private static final long BAN_RETRY_MS = 1000; // 封禁失败后第一次重试前的等待时间，之后每次加倍
+    private static final long FW_RESULT_POLL_MS = 100; // 监视模式下有防火墙操作未完成时，处理其结果的最长间隔
+    private static final int INGEST_QUEUE_CAPACITY = 64; // 读取阶段和检测阶段之间的队列最多容纳的批次数量（每批最多1024条登录记录）
+    private static final long INGEST_CHECK_MS = 200; // 读取大量日志时，不等读取完成就检查可疑IP的间隔
+    private static final long JOURNAL_FLUSH_TIMEOUT_MS = 5000; // 退出时等待封禁日志写入完成的最长时间
 
     public static void main(String[] args)
     {
@@ -33,15 +109,103 @@ public class XrdpGuard
         l.info("XRDPGuard version " + getVersion());
         l.config("Enabled debug output");
         l.config("Configurations:" +
-                "\n\tXRDP log: " + xrdpLogPath +
+                "\n\tXRDP log: " + String.join(", ", xrdpLogPaths) +
+                "\n\tBackfill logs: " + (backfillPaths.isEmpty() ? "NONE" : String.join(", ", backfillPaths)) +
+                "\n\tLog rules: " + (rulesPath == null ? "BUILT-IN" : rulesPath) +
                 "\n\tBan log: " + banLogPath +
                 "\n\tWhitelist: " + whitelistPath +
+                "\n\tBlocklists: " + (blocklistPaths.isEmpty() ? "NONE" : String.join(", ", blocklistPaths) + " (index: " + blocklistIndexPath + ")") +
+                "\n\tLogin history: " + (historyPath == null ? "OFF" : historyPath) +
+                "\n\tState snapshot: " + (snapshotPath == null || !flFollow ? "OFF" : snapshotPath + " (every " + snapshotIntervalMs + " ms)") +
                 "\n\tTime period (ms): " + periodMs +
                 "\n\tMax fail count: " + maxFails +
                 "\n\tFirewall manager: " + fwClassPath +
-                "\n\tLoop check interval: " + (loopMs < 5000 ? "OFF" : loopMs)
+                "\n\tBan time (ms): " + (banTimeMs < 0 ? "PERMANENT" : banTimeMs) +
+                "\n\tBan time factor: " + banTimeFactor +
+                "\n\tMax ban time (ms): " + (maxBanTimeMs < 0 ? "UNLIMITED" : maxBanTimeMs) +
+                "\n\tSubnet ban: " + (subnetHosts < 2 ? "OFF" : subnetHosts + " hosts in /" + subnetPrefix4 + " (IPv4) or /" + subnetPrefix6 + " (IPv6) with at least " + subnetHostFails + " failures each") +
+                "\n\tBan state cache refresh interval: " + (fwCacheRefreshMs < 0 ? "OFF" : fwCacheRefreshMs) +
+                "\n\tFirewall command timeout (ms): " + (fwTimeoutMs <= 0 ? "UNLIMITED" : fwTimeoutMs) +
+                "\n\tBan retries: " + fwRetries +
+                "\n\tLoop check interval: " + (loopMs < 5000 ? "OFF" : loopMs) +
+                "\n\tMetrics endpoint: " + (metricsPort > 0 ? "http://127.0.0.1:" + metricsPort + "/metrics" : "OFF") +
+                "\n\tControl port: " + (controlPort > 0 ? "127.0.0.1:" + controlPort + (controlTokenPath == null ? " (read-only)" : " (token: " + controlTokenPath + ")") : "OFF") +
+                "\n\tCluster: " + (clusterAddr == null ? "OFF" : "listen on " + clusterAddr + ", peers: " + String.join(", ", clusterPeers)) +
+                "\n\tFollow mode: " + (flFollow ? "ON" : "OFF") +
+                "\n\tWatch mode: " + (flWatch ? "ON" : "OFF") +
+                (flExportMode ? "\n\tExport: " + exportFormat +
+                        (exportFromMs == Long.MIN_VALUE ? "" : ", from " + toXGTime(exportFromMs)) +
+                        (exportToMs == Long.MAX_VALUE ? "" : ", to " + toXGTime(exportToMs)) +
+                        (exportAddrs.isEmpty() ? "" : ", IPs: " + String.join(", ", exportAddrs)) +
+                        (exportFail == null ? "" : exportFail ? ", failed logins" : ", successful logins") : "")
         );
+        // 从登录历史导出时直接查询历史，不读取日志，也不修改防火墙
+        if(flExportMode && historyPath != null)
+        {
+            exportHistory();
+            return;
+        }
+        // 通过JMX和Prometheus文本格式的HTTP端点提供运行指标
+        try
+        {
+            Metrics.registerMBean();
+        }
+        catch(JMException e)
+        {
+            l.warning("Failed to register metrics MBean: " + e);
+        }
+        if(metricsPort > 0)
+        {
+            try
+            {
+                metricsServer = Metrics.startHttpServer(metricsPort);
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException("Failed to start metrics endpoint on port " + metricsPort + ": " + e, e);
+            }
+            checkRecords = new HashMap<>();
+        }
+        // 加载日志识别规则，之后创建的所有日志解析器都使用这些规则
+        if(rulesPath != null)
+        {
+            try
+            {
+                LogRules rules = LogRules.load(rulesPath);
+                LogRules.setDefault(rules);
+                l.fine(() -> "Loaded " + rules.size() + " log rules");
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException("Failed to load log rules from " + rulesPath + ": " + e, e);
+            }
+        }
+        // 打开登录历史，之后读取到的登录记录都会追加到历史中
+        if(historyPath != null && !flExportMode)
+        {
+            try
+            {
+                history = new LoginHistory(historyPath, true);
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException("Failed to open login history in " + historyPath + ": " + e, e);
+            }
+        }
+        // 在单独的线程中读取和解析日志，解析出的登录记录经有界队列交给主线程检测
+        ingest = new LogIngestStage(INGEST_QUEUE_CAPACITY);
+        registerQueueMetrics("ingest", ingest.getQueue());
+        // 有多个日志时在线程池中并行读取
+        int logCount = xrdpLogPaths.size() + backfillPaths.size();
+        if(logCount > 1)
+            logPool = Executors.newFixedThreadPool(Math.min(logCount, Runtime.getRuntime().availableProcessors()), r ->
+            {
+                Thread t = new Thread(r, "XrdpGuard-log-reader");
+                t.setDaemon(true);
+                return t;
+            });
         // 创建防火墙管理器类的实例
+        SystemCommandRunner.setDefaultTimeout(fwTimeoutMs);
         try
         {
             fw = (FirewallManager) Class.forName(fwClassPath).newInstance();
@@ -50,6 +214,90 @@ public class XrdpGuard
         {
             throw new RuntimeException("Failed to create instance of \"" + fwClassPath + "\": " + e, e);
         }
+        // 在内存中缓存封禁状态，避免每次检查都查询防火墙
+        if(fwCacheRefreshMs >= 0)
+        {
+            CachingFirewallManager cache = new CachingFirewallManager(fw, fwCacheRefreshMs);
+            Metrics.counter("xrdpguard_firewall_cache_hits_total", "Ban state lookups answered by the cache", cache::getHits);
+            Metrics.counter("xrdpguard_firewall_cache_misses_total", "Ban state lookups that queried the firewall", cache::getMisses);
+            fw = cache;
+        }
+        // 防火墙操作在后台线程中执行，检测不必等待防火墙命令执行完毕
+        fwExecutor = new FirewallExecutor(fw, fwRetries + 1, BAN_RETRY_MS);
+        fwExecutor.setBanListener(XrdpGuard::onBanResult);
+        Metrics.gauge("xrdpguard_firewall_queue", "Firewall operations and ban requests waiting to be executed", fwExecutor::getQueueSize);
+        // 重放封禁日志来恢复封禁状态，重启前未到期的封禁仍会按时解除
+        banStore = new BanStore(banTimeMs, banTimeFactor, maxBanTimeMs);
+        if(!flNoBanLog)
+        {
+            banJournal = new BanJournal(banLogPath);
+            registerQueueMetrics("journal", banJournal.getQueue());
+            // 退出前等待写入线程写完已提交的封禁记录
+            BanJournal journal = banJournal;
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+            {
+                if(!journal.flush(JOURNAL_FLUSH_TIMEOUT_MS))
+                    System.err.println("Timed out waiting for the ban log to be written");
+            }, "XrdpGuard-shutdown"));
+            try
+            {
+                banJournal.replay(banStore);
+            }
+            catch(IOException e)
+            {
+                l.warning("Failed to replay ban log: " + e);
+            }
+        }
+        // 按地址段统计登录失败，已被单独封禁的IP也计入所属地址段的主机数量
+        if(subnetHosts >= 2)
+        {
+            subnetAggregator = new SubnetAggregator(subnetPrefix4, subnetPrefix6, periodMs, subnetHosts, subnetHostFails);
+            for(BanStore.Ban b : banStore.getAll())
+                if(b.active && b.ip.indexOf('/') == -1)
+                    subnetAggregator.addBanned(b.ip);
+        }
+        // 与其他实例互相传播封禁事件
+        if(clusterAddr != null)
+            startCluster();
+        // 修改状态的控制命令需要令牌
+        if(controlPort > 0 && controlTokenPath != null)
+            controlToken = readControlToken();
+        // 恢复状态快照，只需读取快照之后新增的日志内容（只在增量读取模式下有效）
+        if(snapshotPath != null && flFollow)
+        {
+            stateSnapshot = new StateSnapshot(snapshotPath);
+            loadSnapshot();
+        }
+
+        // 监视模式：日志发生变化时立即检查，没有变化时最多等待一个检查间隔
+        if(flWatch)
+        {
+            long pollMs = loopMs < 5000 ? 5000 : loopMs;
+            try(XrdpLogWatcher watcher = new XrdpLogWatcher(xrdpLogPaths))
+            {
+                // 收到其他实例的封禁事件时立即处理
+                if(cluster != null)
+                    cluster.setWakeup(watcher::wakeup);
+                while(true)
+                {
+                    mainLoop();
+                    // 守护进程模式：第一次检查完成后开始接受控制命令，收到命令时唤醒主线程执行
+                    if(controlPort > 0 && controlServer == null)
+                        startControlServer(watcher::wakeup);
+                    // 如果有封禁即将到期，提前醒来解除封禁
+                    long nextExpiryMs = banStore.msUntilNextExpiry(System.currentTimeMillis());
+                    long maxWaitMs = nextExpiryMs < pollMs ? nextExpiryMs + 1 : pollMs;
+                    // 有防火墙操作未完成时缩短等待时间，尽快处理其结果
+                    long waitMs = fwExecutor.isBusy() ? Math.min(maxWaitMs, FW_RESULT_POLL_MS) : maxWaitMs;
+                    if(!watcher.await(waitMs))
+                        l.fine(() -> "No changes detected in " + waitMs + " ms");
+                }
+            }
+            catch(InterruptedException e)
+            {
+                throw new RuntimeException("Main loop interrupted: " + e, e);
+            }
+        }
 
         // 进入主循环
         try
@@ -60,9 +308,19 @@ public class XrdpGuard
                 loopStart = System.currentTimeMillis();
                 mainLoop();
                 if(loopMs < 5000) // 如果循环检查间隔小于5秒或未设置，只运行一次
+                {
+                    // 等待后台的防火墙操作完成后再退出
+                    fwExecutor.drain();
+                    if(metricsServer != null)
+                        metricsServer.stop(0);
                     return;
-                l.fine("Sleeping for " + loopMs + " ms");
-                Thread.sleep(loopMs - (System.currentTimeMillis() - loopStart));
+                }
+                l.fine(() -> "Sleeping for " + loopMs + " ms");
+                // 等待期间处理已完成的防火墙操作的结果
+                long remaining;
+                while((remaining = loopStart + loopMs - System.currentTimeMillis()) > 0)
+                    if(fwExecutor.awaitCompletion(remaining))
+                        fwExecutor.runCompletions();
             }
         }
         catch(InterruptedException e)
@@ -80,12 +338,45 @@ public class XrdpGuard
                 System.out.println(getHelpMessage());
                 System.exit(0);
             }
-            else if(a.startsWith("--log=")) // 指定XRDP日志的路径
-                xrdpLogPath = a.substring(6);
+            else if(a.startsWith("--log=")) // 指定XRDP日志的路径（可以多次指定）
+                xrdpLogPaths.add(a.substring(6));
+            else if(a.startsWith("--backfill=")) // 指定只在开始时读取一次的历史日志的路径（可以多次指定）
+                backfillPaths.add(a.substring(11));
+            else if(a.startsWith("--rules=")) // 指定日志识别规则文件的路径
+                rulesPath = a.substring(8);
             else if(a.startsWith("--banlog=")) // 指定封禁记录路径
                 banLogPath = a.substring(9);
             else if(a.startsWith("--whitelist=")) // 指定白名单路径
                 whitelistPath = a.substring(12);
+            else if(a.startsWith("--blocklist=")) // 指定黑名单路径，可以指定多个
+                blocklistPaths.add(a.substring(12));
+            else if(a.startsWith("--blocklistindex=")) // 指定黑名单索引文件路径
+                blocklistIndexPath = a.substring(17);
+            else if(a.startsWith("--history=")) // 指定保存登录历史的目录
+                historyPath = a.substring(10);
+            else if(a.startsWith("--format=")) // 设置导出格式
+            {
+                exportFormat = a.substring(9);
+                if(!Arrays.asList(LoginExporter.FORMATS).contains(exportFormat))
+                    throw new RuntimeException("Unknown export format: " + exportFormat);
+            }
+            else if(a.startsWith("--from=")) // 只导出此时间之后的记录
+                exportFromMs = parseExportTime(a.substring(7));
+            else if(a.startsWith("--to=")) // 只导出此时间之前的记录
+                exportToMs = parseExportTime(a.substring(5));
+            else if(a.startsWith("--ip=")) // 只导出指定IP或地址段的记录（可以多次指定）
+                exportAddrs.add(a.substring(5));
+            else if(a.startsWith("--outcome=")) // 只导出指定结果的记录
+            {
+                String outcome = a.substring(10);
+                if(!outcome.equals("fail") && !outcome.equals("success"))
+                    throw new RuntimeException("Unknown login outcome: " + outcome);
+                exportFail = outcome.equals("fail");
+            }
+            else if(a.startsWith("--snapshot=")) // 指定状态快照路径（需要增量读取）
+                snapshotPath = a.substring(11);
+            else if(a.startsWith("--snapshotinterval=")) // 设置保存状态快照的间隔（毫秒）
+                snapshotIntervalMs = Long.parseLong(a.substring(19));
             else if(a.startsWith("--period=")) // 设置时间范围（毫秒）
                 periodMs = Long.parseLong(a.substring(9));
             else if(a.startsWith("--maxfail=")) // 设置时间范围内允许的最大登录失败次数
@@ -94,6 +385,42 @@ public class XrdpGuard
                 fwClassPath = a.substring(11);
             else if(a.startsWith("--loop=")) // 两次检查的间隔（毫秒，少于5000则不进行循环）
                 loopMs = Long.parseLong(a.substring(7));
+            else if(a.startsWith("--fwcache=")) // 重新从防火墙读取封禁状态的间隔（毫秒，小于0则不缓存）
+                fwCacheRefreshMs = Long.parseLong(a.substring(10));
+            else if(a.startsWith("--fwtimeout=")) // 设置防火墙命令的超时时间（毫秒，小于等于0则不限制）
+                fwTimeoutMs = Long.parseLong(a.substring(12));
+            else if(a.startsWith("--fwretries=")) // 设置封禁失败后的重试次数
+                fwRetries = Integer.parseInt(a.substring(12));
+            else if(a.startsWith("--bantime=")) // 设置封禁时长（毫秒，小于0则永久封禁）
+                banTimeMs = Long.parseLong(a.substring(10));
+            else if(a.startsWith("--banfactor=")) // 设置同一IP再次被封禁时封禁时长的倍数
+                banTimeFactor = Double.parseDouble(a.substring(12));
+            else if(a.startsWith("--maxbantime=")) // 设置封禁时长的上限（毫秒，小于0则不设上限）
+                maxBanTimeMs = Long.parseLong(a.substring(13));
+            else if(a.startsWith("--subnet4=")) // 设置IPv4地址段的前缀长度
+                subnetPrefix4 = Integer.parseInt(a.substring(10));
+            else if(a.startsWith("--subnet6=")) // 设置IPv6地址段的前缀长度
+                subnetPrefix6 = Integer.parseInt(a.substring(10));
+            else if(a.startsWith("--subnethosts=")) // 设置地址段被封禁所需的可疑主机数量（小于2则不封禁地址段）
+                subnetHosts = Integer.parseInt(a.substring(14));
+            else if(a.startsWith("--subnethostfails=")) // 设置主机计入地址段的主机数量所需的登录失败次数
+                subnetHostFails = Integer.parseInt(a.substring(18));
+            else if(a.startsWith("--metrics=")) // 设置Prometheus指标端点监听的本机端口（小于等于0则不开启）
+                metricsPort = Integer.parseInt(a.substring(10));
+            else if(a.startsWith("--cluster=")) // 设置接收其他实例封禁事件的地址（[主机:]端口）
+                clusterAddr = a.substring(10);
+            else if(a.startsWith("--peer=")) // 指定其他实例的地址（主机:端口，可以多次指定）
+                clusterPeers.add(a.substring(7));
+            else if(a.startsWith("--clusterkey=")) // 指定保存共享密钥的文件路径
+                clusterKeyPath = a.substring(13);
+            else if(a.startsWith("--controltoken=")) // 指定保存控制令牌的文件路径
+                controlTokenPath = a.substring(15);
+            else if(a.startsWith("--daemon=")) // 开启守护进程模式并设置控制端口（需要监视日志变化）
+            {
+                controlPort = Integer.parseInt(a.substring(9));
+                if(controlPort > 0)
+                    flFollow = flWatch = true;
+            }
             else if(a.equals("--debug")) // 开启调试输出
                 flDebug = true;
             else if(a.startsWith("--dryrun")) // 开启演练模式
@@ -102,7 +429,66 @@ public class XrdpGuard
                 flExportMode = true;
             else if(a.equals("--nobanlog")) // 不写入封禁记录
                 flNoBanLog = true;
+            else if(a.equals("--follow")) // 每次检查只读取XRDP日志新增的内容
+                flFollow = true;
+            else if(a.equals("--watch")) // XRDP日志变化时立即检查（需要增量读取）
+                flFollow = flWatch = true;
         }
+        if(xrdpLogPaths.isEmpty())
+            xrdpLogPaths.add("/var/log/xrdp.log");
+    }
+
+    /**
+     * 解析导出时间范围的边界，格式为"yyyy-MM-dd"、"yyyy-MM-dd HH:mm:ss"或"yyyy-MM-dd HH:mm:ss.SSS"（本地时间）。
+     */
+    private static long parseExportTime(String s)
+    {
+        String pattern = s.length() == 10 ? "yyyy-MM-dd" : s.length() == 19 ? "yyyy-MM-dd HH:mm:ss" : "yyyy-MM-dd HH:mm:ss.SSS";
+        SimpleDateFormat f = new SimpleDateFormat(pattern);
+        f.setLenient(false);
+        try
+        {
+            return f.parse(s).getTime();
+        }
+        catch(ParseException e)
+        {
+            throw new RuntimeException("Invalid time \"" + s + "\", expected yyyy-MM-dd[ HH:mm:ss[.SSS]]", e);
+        }
+    }
+
+    /**
+     * 创建按命令行参数筛选登录记录并写到标准输出的导出器。
+     */
+    private static LoginExporter createExporter()
+    {
+        LoginExporter exporter = new LoginExporter(new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024), exportFormat);
+        exporter.setTimeRange(exportFromMs, exportToMs);
+        for(String addr : exportAddrs)
+            if(!exporter.addAddress(addr))
+                throw new RuntimeException("Invalid IP or CIDR range: " + addr);
+        if(exportFail != null)
+            exporter.setOutcome(exportFail);
+        return exporter;
+    }
+
+    /**
+     * 从登录历史中导出满足条件的登录记录。
+     */
+    private static void exportHistory()
+    {
+        l.info("Exporting login records from " + historyPath + " to stdout");
+        LoginExporter exporter = createExporter();
+        try
+        {
+            exporter.begin();
+            new LoginHistory(historyPath, false).export(exporter);
+            exporter.end();
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Failed to export login history: " + e, e);
+        }
+        l.info("Exported " + exporter.getCount() + " records");
     }
 
     private static Logger setupLogger()
@@ -127,154 +513,370 @@ public class XrdpGuard
         return l;
     }
 
-    private static Set<String> parseWhitelist(String path) throws IOException
+    private static void readXrdpLogs()
     {
-        Set<String> whitelist = new HashSet<>();
-        BufferedReader br = new BufferedReader(new FileReader(getFileOrCreate(path)));
-        String line;
-        while((line = br.readLine()) != null)
-            whitelist.add(line);
-        return whitelist;
-    }
-
-    private static List<LoginRecord> loadXrdpLog(String path)
-    {
-        List<LoginRecord> logins = new LinkedList<>();
-        BufferedReader br;
+        // 非增量读取模式下每次检查都从头读取日志
+        if(logSources == null || !flFollow)
+            createLogSources();
+        readStartNs = System.nanoTime();
+        // 读取阶段在后台读取和解析日志，主线程同时统计取出的登录记录
+        ingest.read(logSources);
         try
         {
-            br = new BufferedReader(new FileReader(path));
+            while(!ingest.drain(detector, TimeUnit.MILLISECONDS.toNanos(INGEST_CHECK_MS)))
+                checkWhileReading();
+            long read = ingest.getLastRead();
+            Metrics.READ_SECONDS.observeNanos(System.nanoTime() - readStartNs);
+            Metrics.LOG_BYTES.add(read);
+            l.fine(() -> "Read " + read + " new bytes");
+        }
+        catch(NoSuchFileException e)
+        {
+            throw new RuntimeException("XRDP log not found: " + e.getFile(), e);
         }
-        catch(FileNotFoundException e)
+        catch(IOException e)
+        {
+            throw new RuntimeException("XRDP log read failure: " + e, e);
+        }
+        catch(InterruptedException e)
         {
-            throw new RuntimeException("XRDP log not found: " + path, e);
+            throw new RuntimeException("Interrupted while reading XRDP logs: " + e, e);
         }
-        // xrdp.log中的客户端连入记录和登录成功记录不在同一行输出，所以需要至少两行才能判定登录是否成功
-        String line;
-        Date lastIncomingConnectionTime = null;
-        String lastIncomingConnectionIp = null;
-        while(true)
+        // 读取阶段已空闲，之后的登录记录（如下面标记为登录失败的连入记录）直接在主线程中处理
+        logSources.setListener(detector);
+        if(!flFollow)
+        {
+            // 文件末尾未匹配到登录成功记录的连入记录会被标记为登录失败
+            logSources.flushPending();
+            logSources.close();
+        }
+        if(history != null)
         {
             try
             {
-                line = br.readLine();
+                history.flush();
             }
             catch(IOException e)
             {
-                throw new RuntimeException("XRDP log read failure: " + e, e);
+                l.warning("Failed to write login history, no longer saving it: " + e);
+                history = null;
             }
-            if(line == null) // 检查是否读取到了文件末尾
-            {
-                // 如果到达了文件末尾，而且上条连入记录没有匹配到登录成功记录，将其标记为登录失败
-                if(lastIncomingConnectionIp != null)
-                    logins.add(LoginRecord.build(lastIncomingConnectionTime, lastIncomingConnectionIp, true));
-                break;
-            }
-            // 首先检测日志开始标志。程序将从最后遇到的日志开始标志处开始扫描
-            if(line.contains("starting xrdp"))
+        }
+        if(checkRecords != null)
+        {
+            for(int n : checkRecords.values())
+                Metrics.RECORDS_PER_IP.observe(n);
+            checkRecords.clear();
+        }
+    }
+
+    /**
+     * 检测阶段：统计登录记录。在主线程中被调用。
+     */
+    private static final XrdpLogReader.Listener detector = new XrdpLogReader.Listener()
+    {
+        @Override
+        public void onLogin(long timeMs, String addr, boolean fail)
+        {
+            Metrics.LOGIN_RECORDS.inc();
+            if(checkRecords != null)
+                checkRecords.merge(addr, 1, Integer::sum);
+            if(exportLogins != null)
+                exportLogins.add(timeMs, addr, fail);
+            if(history != null)
             {
-                // 检测到新的日志开头，前面的记录作废
-                logins.clear();
-                lastIncomingConnectionTime = null;
-                lastIncomingConnectionIp = null;
+                try
+                {
+                    history.append(timeMs, addr, fail);
+                }
+                catch(IOException e)
+                {
+                    l.warning("Failed to write login history, no longer saving it: " + e);
+                    history = null;
+                }
             }
-            // 检查客户端连入标志
-            else if(line.contains("connection received from"))
+            // 导致上次封禁的登录失败不再计入，避免封禁到期后因为同样的记录被再次封禁
+            if(isPunished(addr, timeMs))
+                return;
+            // 黑名单中的IP在时间跨度内连入过就立即封禁，无论登录是否成功
+            if(blocklist != null && blocklist.contains(addr) && timeMs >= System.currentTimeMillis() - periodMs)
             {
-                if(lastIncomingConnectionIp != null)
-                    // 上条连入记录没有匹配到登录成功记录，将其标记为登录失败
-                    logins.add(LoginRecord.build(lastIncomingConnectionTime, lastIncomingConnectionIp, true));
-                // 更新上条连入记录为此次记录
-                lastIncomingConnectionTime = XrdpGuardCommons.parseXRDPTime(line.substring(1, 18));
-                lastIncomingConnectionIp = line.substring(line.indexOf("from ") + 5, line.indexOf(" port"));
+                Metrics.BLOCKLIST_HITS.inc();
+                blockedIPs.add(addr);
             }
-            // 检查客户端登录成功标志
-            else if(line.contains("] login succ"))
+            failureTracker.record(timeMs, addr, fail);
+            if(subnetAggregator != null)
+                subnetAggregator.record(timeMs, addr, fail);
+        }
+
+        @Override
+        public void onRestart()
+        {
+            if(exportLogins != null)
+                exportLogins.clear();
+            failureTracker.reset();
+            if(subnetAggregator != null)
+                subnetAggregator.reset();
+        }
+    };
+
+    /**
+     * 创建从头读取日志的读取器，并清除之前的检测状态。
+     */
+    private static void createLogSources()
+    {
+        // 只有导出模式需要在内存中保存登录记录，检测时登录记录在解析时直接送入失败计数器
+        logSources = new XrdpLogSources(xrdpLogPaths, backfillPaths, logPool);
+        exportLogins = flExportMode ? new LoginRecordStore() : null;
+        failureTracker = new FailureTracker(periodMs, maxFails);
+        if(subnetAggregator != null)
+            subnetAggregator.reset();
+        // 从头读取时，已保存到登录历史中的记录不会被重复保存
+        if(history != null)
+            history.beginPass();
+        logSources.setListener(detector);
+    }
+
+    /**
+     * 影响检测状态的配置。与保存状态快照时不同时，快照不再适用。
+     */
+    private static String getSnapshotConfig()
+    {
+        return "period=" + periodMs + ",maxfail=" + maxFails +
+                ",subnet=" + (subnetHosts < 2 ? "off" : subnetHosts + "/" + subnetPrefix4 + "/" + subnetPrefix6 + "/" + subnetHostFails) +
+                ",rules=" + (rulesPath == null ? "" : rulesPath) + ",logs=" + String.join("\n", xrdpLogPaths);
+    }
+
+    private static void loadSnapshot()
+    {
+        createLogSources();
+        try
+        {
+            if(stateSnapshot.load(getSnapshotConfig(), logSources, failureTracker, subnetAggregator))
+                return;
+        }
+        catch(IOException e)
+        {
+            l.warning("Failed to load state snapshot, reading XRDP logs from the beginning: " + e);
+        }
+        // 部分恢复的状态不可用，重新开始
+        logSources.close();
+        logSources = null;
+    }
+
+    private static void saveSnapshotIfDue(long nowMs)
+    {
+        if(stateSnapshot == null || nowMs - lastSnapshotMs < snapshotIntervalMs)
+            return;
+        lastSnapshotMs = nowMs;
+        try
+        {
+            stateSnapshot.save(getSnapshotConfig(), logSources, failureTracker, subnetAggregator);
+        }
+        catch(IOException e)
+        {
+            l.warning("Failed to save state snapshot: " + e);
+        }
+    }
+
+    private static boolean isPunished(String addr, long timeMs)
+    {
+        BanStore.Ban b = banStore.get(addr);
+        if(b != null && timeMs <= b.bannedAt)
+            return true;
+        // 所属的地址段被封禁时，之前的登录失败同样不再计入
+        if(subnetAggregator == null)
+            return false;
+        String subnet = subnetAggregator.subnetOf(addr);
+        b = subnet == null ? null : banStore.get(subnet);
+        return b != null && timeMs <= b.bannedAt;
+    }
+
+    private static boolean isSubnetBanned(String ip)
+    {
+        if(subnetAggregator == null)
+            return false;
+        String subnet = subnetAggregator.subnetOf(ip);
+        if(subnet == null)
+            return false;
+        // 正在后台封禁的地址段也视为已被封禁
+        BanStore.Ban b = banStore.get(subnet);
+        return b != null && b.active || fwExecutor.isPending(subnet);
+    }
+
+    private static List<String> pollSuspiciousIps(long nowMs)
+    {
+        List<String> suspiciousIPs = failureTracker.poll(nowMs);
+        // 如果日志末尾的连入记录还没有匹配到登录成功记录，暂时将其视为登录失败
+        for(XrdpLogReader r : logSources.getPendingReaders())
+        {
+            String pendingIp = r.getPendingAddr();
+            if(suspiciousIPs.contains(pendingIp) || isPunished(pendingIp, r.getPendingTime()))
+                continue;
+            if(blocklist != null && blocklist.contains(pendingIp) && r.getPendingTime() >= nowMs - periodMs)
             {
-                if(lastIncomingConnectionIp == null)
-                    continue;
-                // 存在上条连入记录且匹配到了登录成功记录，将其标记为登录成功
-                logins.add(LoginRecord.build(lastIncomingConnectionTime, lastIncomingConnectionIp, false));
-                lastIncomingConnectionTime = null;
-                lastIncomingConnectionIp = null;
+                Metrics.BLOCKLIST_HITS.inc();
+                blockedIPs.add(pendingIp);
             }
+            else if(failureTracker.wouldCross(pendingIp, r.getPendingTime(), nowMs))
+                suspiciousIPs.add(pendingIp);
         }
-        return logins;
+        // 连入的黑名单中的IP
+        if(!blockedIPs.isEmpty())
+        {
+            l.info("Blocklisted IPs (" + blockedIPs.size() + "): " + blockedIPs);
+            for(String ip : blockedIPs)
+                if(!suspiciousIPs.contains(ip))
+                    suspiciousIPs.add(ip);
+            blockedIPs.clear();
+        }
+        return suspiciousIPs;
     }
 
-    private static List<String> checkSuspiciousIps(List<LoginRecord> logins, long nowMs, long periodMs)
+    private static void unbanExpired()
     {
-        List<String> suspiciousIPs = new LinkedList<>(); // 记录时间跨度内登录失败次数达到指定次数或更多的IP地址
-        HashMap<String, Integer> ipFailCounter = new HashMap<>(); // 每个IP地址的失败登录次数
-        // 遍历登录记录
-        for(LoginRecord login : logins)
+        long nowMs = System.currentTimeMillis();
+        List<String> expired = banStore.pollExpired(nowMs);
+        if(expired.isEmpty())
+            return;
+        l.fine(() -> "Unban expired " + expired);
+        fwExecutor.submit(expired, firewall ->
         {
-            // 计算登录记录的时间与当前时间的差距
-            long timeDiff = nowMs - login.time.getTime();
-            // 如果时间差在时间跨度内且登录失败，增加此IP地址的失败计数
-            if(timeDiff <= periodMs && login.fail)
-                ipFailCounter.put(login.addr, ipFailCounter.getOrDefault(login.addr, 0) + 1);
+            List<String> unbanned = firewall.unbanAll(expired);
+            if(!unbanned.isEmpty() && !firewall.apply())
+                l.severe("Failed to apply firewall rule changes. Run XRDPGuard with \"--debug\" argument to see more information");
+            return unbanned;
+        }, unbanned -> onUnbanResult(expired, unbanned), e -> onUnbanResult(expired, Collections.<String>emptyList()));
+    }
+
+    private static void onUnbanResult(List<String> expired, List<String> unbanned)
+    {
+        long nowMs = System.currentTimeMillis();
+        Set<String> unbannedSet = new HashSet<>(unbanned);
+        for(String ip : expired)
+        {
+            if(unbannedSet.contains(ip))
+            {
+                Metrics.UNBANS.inc();
+                banStore.unban(ip);
+                if(subnetAggregator != null)
+                    subnetAggregator.removeBanned(ip);
+                if(banJournal != null)
+                    banJournal.logUnban(nowMs, ip, true);
+                l.info("Unbanned " + (ip.indexOf(':') == -1 ? "IPv4" : "IPv6") + " address: " + ip);
+            }
+            else
+            {
+                // 稍后重试
+                banStore.postpone(ip, nowMs + UNBAN_RETRY_MS);
+                l.severe("Failed to unban " + (ip.indexOf(':') == -1 ? "IPv4" : "IPv6") + " address: " + ip);
+            }
         }
-        // 找到并记录登录失败次数达到指定次数或更多的IP地址
-        for(Map.Entry<String, Integer> entry : ipFailCounter.entrySet())
-            if(entry.getValue() >= maxFails)
-                suspiciousIPs.add(entry.getKey());
-        return suspiciousIPs;
+        commitBanLog();
+        Metrics.ACTIVE_BANS.set(banStore.getActiveCount());
     }
 
-    private static File getFileOrCreate(String path) throws IOException
+    private static void commitBanLog()
     {
-        File f = new File(path);
-        if(!f.exists())
+        if(banJournal == null)
         {
-            new File(f.getParent()).mkdirs();
-            f.createNewFile();
+            l.fine("Ban log will not be saved");
+            return;
         }
-        return f;
+        // 由封禁日志的写入线程写入并同步到磁盘，写入结果由写入线程输出
+        banJournal.commit();
+        banStore.forget(System.currentTimeMillis());
+        banJournal.compactIfNeeded(banStore.getAll());
     }
 
     private static void mainLoop()
     {
-        Set<String> whitelist = null;
-        List<LoginRecord> logins;
         List<String> suspiciousIPs;
-        List<String> bannedIPs;
 
-        // 读取IP白名单
-        l.fine("Reading whitelist");
+        // 处理上次检查以来在后台完成的防火墙操作的结果和收到的控制命令
+        fwExecutor.runCompletions();
+        if(controlServer != null)
+            controlServer.runRequests();
+
+        // 读取IP白名单（只在文件被修改过时重新读取）
+        if(whitelist == null)
+            whitelist = new IpWhitelist(whitelistPath);
         try
         {
-            whitelist = parseWhitelist(whitelistPath);
-            l.fine("Whitelist (" + whitelist.size() + "): " + whitelist);
+            if(whitelist.reloadIfChanged())
+                l.fine(() -> "Loaded whitelist (" + whitelist.size() + " entries)");
         }
         catch(Exception e)
         {
             l.warning("Failed to load whitelist: " + e);
         }
 
-        // 开始逐行读取日志
-        l.fine("Reading " + xrdpLogPath);
-        logins = loadXrdpLog(xrdpLogPath);
-        l.fine("Read " + logins.size() + " login records");
+        // 加载IP黑名单（只在文件被修改过时重新加载）
+        if(!blocklistPaths.isEmpty())
+        {
+            if(blocklist == null)
+                blocklist = new IpBlocklist(blocklistPaths, blocklistIndexPath);
+            try
+            {
+                if(blocklist.reloadIfChanged())
+                    l.info("Loaded blocklist (" + blocklist.size() + " ranges)");
+            }
+            catch(Exception e)
+            {
+                l.warning("Failed to load blocklist: " + e);
+            }
+        }
+
+        // 执行其他实例传播过来的封禁和解除封禁
+        if(cluster != null)
+            applyClusterEvents();
+
+        // 解除已到期的封禁
+        if(!flDryRun && !flExportMode)
+            unbanExpired();
+        Metrics.ACTIVE_BANS.set(banStore.getActiveCount());
+
+        // 开始读取日志。增量读取模式下只读取日志新增的内容
+        l.fine(() -> "Reading " + xrdpLogPaths);
+        readXrdpLogs();
+        l.fine(() -> "Tracking " + failureTracker.size() + " IPs");
+        Metrics.TRACKED_IPS.set(failureTracker.size());
 
         // 如果是导出模式，将日志中提取出的登录记录打印到标准输出后退出
         if(flExportMode)
         {
             l.info("Exporting login records to stdout");
-            StringBuilder sb = new StringBuilder();
-            for(LoginRecord login : logins)
-                sb.append(login.toString()).append('\n');
-            System.out.print(sb);
-            l.info("Exported " + logins.size() + " records");
+            LoginRecordStore logins = exportLogins;
+            LoginExporter exporter = createExporter();
+            try
+            {
+                exporter.begin();
+                for(int i = 0; i < logins.size(); i++)
+                    exporter.accept(logins.getTime(i), logins.getAddr(i), logins.isFail(i));
+                exporter.end();
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException("Failed to export login records: " + e, e);
+            }
+            l.info("Exported " + exporter.getCount() + " records");
             System.exit(0);
         }
 
         // 检查可疑IP并输出
         long nowMs = System.currentTimeMillis();
         l.fine("Checking suspicious IPs");
-        l.fine("Check from " + toXGTime(nowMs - periodMs) + " to " + toXGTime(nowMs));
-        suspiciousIPs = checkSuspiciousIps(logins, nowMs, periodMs);
+        l.fine(() -> "Check from " + toXGTime(nowMs - periodMs) + " to " + toXGTime(nowMs));
+        suspiciousIPs = pollSuspiciousIps(nowMs);
         l.info("Suspicious IPs (" + suspiciousIPs.size() + "): " + suspiciousIPs);
+        List<String> suspiciousSubnets = subnetAggregator == null ? Collections.<String>emptyList() : subnetAggregator.poll(nowMs);
+        if(!suspiciousSubnets.isEmpty())
+            l.info("Suspicious subnets (" + suspiciousSubnets.size() + "): " + suspiciousSubnets);
+        for(ControlServer.Reply reply : rescanReplies)
+            reply.line("Tracking " + failureTracker.size() + " IPs, " + suspiciousIPs.size() + " suspicious").ok();
+        rescanReplies.clear();
+        // 此时日志读取位置与检测状态一致，可以保存快照
+        saveSnapshotIfDue(nowMs);
 
         // 如果是演练模式，输出可疑IP后退出
         if(flDryRun)
@@ -283,76 +885,465 @@ public class XrdpGuard
             return;
         }
 
-        // 使用实现FirewallManager接口的类来封禁IP
-        // 注意：IP可能同时包含IPv4和IPv6，需要分别处理
-        bannedIPs = new LinkedList<>();
+        banSuspicious(suspiciousIPs, suspiciousSubnets);
+    }
+
+    /**
+     * 读取大量日志时，每隔一段时间在读取完成之前检查一次：处理已完成的防火墙操作的结果，并封禁已经达到失败次数上限的IP，
+     * 使封禁不必等到整个日志读取完成。日志末尾还没有登录结果的连入记录仍在读取完成后处理。
+     */
+    private static void checkWhileReading()
+    {
+        fwExecutor.runCompletions();
+        if(flDryRun || flExportMode)
+            return;
+        long nowMs = System.currentTimeMillis();
+        List<String> suspiciousIPs = failureTracker.poll(nowMs);
+        for(String ip : blockedIPs)
+            if(!suspiciousIPs.contains(ip))
+                suspiciousIPs.add(ip);
+        blockedIPs.clear();
+        List<String> suspiciousSubnets = subnetAggregator == null ? Collections.<String>emptyList() : subnetAggregator.poll(nowMs);
+        if(suspiciousIPs.isEmpty() && suspiciousSubnets.isEmpty())
+            return;
+        l.info("Suspicious IPs found while reading (" + suspiciousIPs.size() + "): " + suspiciousIPs);
+        if(!suspiciousSubnets.isEmpty())
+            l.info("Suspicious subnets found while reading (" + suspiciousSubnets.size() + "): " + suspiciousSubnets);
+        banSuspicious(suspiciousIPs, suspiciousSubnets);
+    }
+
+    /**
+     * 封禁可疑IP和地址段，跳过白名单中的、正在封禁的和已被所属地址段封禁的IP。
+     */
+    private static void banSuspicious(List<String> suspiciousIPs, List<String> suspiciousSubnets)
+    {
+        // 使用实现FirewallManager接口的类来批量封禁IP
+        // 注意：IP可能同时包含IPv4和IPv6，由防火墙管理器分别处理
+        List<String> toBan = new ArrayList<>(suspiciousIPs.size());
         for(String ip : suspiciousIPs)
         {
-            if(whitelist != null && whitelist.contains(ip))
+            if(fwExecutor.isPending(ip))
             {
-                l.fine(ip + " is in the whitelist, skip");
+                l.fine(() -> ip + " is being banned, skip");
                 continue;
             }
-            if(ip.indexOf(':') == -1) // IPv4
+            if(whitelist.contains(ip))
             {
-                if(fw.isBannedIpv4(ip))
-                    continue;
-                l.fine("Ban IPv4 " + ip);
-                if(fw.banIpv4(ip))
-                {
-                    l.info("Banned IPv4 address: " + ip);
-                    bannedIPs.add(ip);
-                }
-                else
-                    l.severe("Failed to ban IPv4 address: " + ip);
+                l.fine(() -> ip + " is in the whitelist, skip");
+                continue;
             }
-            else // IPv6
+            if(isSubnetBanned(ip))
             {
-                if(fw.isBannedIpv6(ip))
-                    continue;
-                l.fine("Ban IPv6 " + ip);
-                if(fw.banIpv6(ip))
+                l.fine(() -> ip + " is in a banned subnet, skip");
+                continue;
+            }
+            // 所属地址段将在本次检查中被封禁的IP不再单独封禁
+            if(!suspiciousSubnets.isEmpty())
+            {
+                String subnet = subnetAggregator.subnetOf(ip);
+                if(suspiciousSubnets.contains(subnet) && !whitelist.overlaps(subnet))
                 {
-                    l.info("Banned IPv6 address: " + ip);
-                    bannedIPs.add(ip);
+                    l.fine(() -> ip + " will be banned with subnet " + subnet + ", skip");
+                    continue;
                 }
-                else
-                    l.severe("Failed to ban IPv6 address: " + ip);
             }
+            toBan.add(ip);
         }
+        if(!toBan.isEmpty())
+            banIps(toBan);
+        if(!suspiciousSubnets.isEmpty())
+            banSubnets(suspiciousSubnets);
+        Metrics.ACTIVE_BANS.set(banStore.getActiveCount());
+    }
 
-        if(bannedIPs.size() != 0)
+    /**
+     * 注册连接处理流程中一个队列的深度和背压统计指标。
+     */
+    private static void registerQueueMetrics(String stage, SpscQueue<?> queue)
+    {
+        Metrics.gauge("xrdpguard_" + stage + "_queue_depth", "Items waiting in the " + stage + " queue", queue::size);
+        Metrics.gauge("xrdpguard_" + stage + "_queue_max_depth", "Most items ever waiting in the " + stage + " queue (capacity " + queue.capacity() + ")", queue::getMaxDepth);
+        Metrics.counter("xrdpguard_" + stage + "_queue_full_total", "Times the producer of the " + stage + " queue waited for free space", queue::getFullCount);
+        Metrics.counter("xrdpguard_" + stage + "_queue_full_milliseconds_total", "Time the producer of the " + stage + " queue spent waiting for free space",
+                () -> TimeUnit.NANOSECONDS.toMillis(queue.getFullNanos()));
+    }
+
+    private static void banIps(List<String> toBan)
+    {
+        // 已被封禁的IP由执行器在封禁前排除，结果在onBanResult()中处理
+        l.fine(() -> "Ban " + toBan);
+        fwExecutor.ban(toBan, readStartNs);
+    }
+
+    private static void onBanResult(List<String> bannedIPs, List<String> failedIPs)
+    {
+        for(String ip : bannedIPs)
+            l.info("Banned " + (ip.indexOf(':') == -1 ? "IPv4" : "IPv6") + " address: " + ip);
+        for(String ip : failedIPs)
         {
-            // 应用防火墙规则
-            if(fw.apply())
+            Metrics.BAN_FAILURES.inc();
+            l.severe("Failed to ban " + (ip.indexOf(':') == -1 ? "IPv4" : "IPv6") + " address: " + ip);
+        }
+        if(bannedIPs.isEmpty())
+            return;
+        l.info("Banned IPs (" + bannedIPs.size() + "): " + bannedIPs);
+        recordBans(bannedIPs);
+        if(cluster != null)
+            cluster.publish(ClusterSync.BAN, bannedIPs);
+    }
+
+    /**
+     * 记录已生效的封禁的状态和到期时间，并写入封禁日志。
+     */
+    private static void recordBans(List<String> bannedIPs)
+    {
+        Metrics.BANS.add(bannedIPs.size());
+        // 记录封禁状态和到期时间，并写入封禁日志
+        long banMs = System.currentTimeMillis();
+        for(String ip : bannedIPs)
+        {
+            BanStore.Ban b = banStore.ban(ip, banMs);
+            failureTracker.forget(ip);
+            if(subnetAggregator != null)
+                subnetAggregator.addBanned(ip);
+            if(banJournal != null)
+                banJournal.logBan(b);
+            if(b.expiresAt != 0)
+                l.fine(() -> ip + " will be unbanned at " + toXGTime(b.expiresAt) + " (ban #" + b.count + ")");
+        }
+        commitBanLog();
+        Metrics.ACTIVE_BANS.set(banStore.getActiveCount());
+        // 单个IP封禁后所属地址段可能达到阈值，立即一并处理
+        if(subnetAggregator != null)
+        {
+            List<String> subnets = subnetAggregator.poll(banMs);
+            if(!subnets.isEmpty())
+                banSubnets(subnets);
+        }
+    }
+
+    private static void banSubnets(List<String> subnets)
+    {
+        for(String subnet : subnets)
+        {
+            if(whitelist.overlaps(subnet))
             {
-                l.fine("Firewall rule changes applied");
-                l.info("Banned IPs (" + bannedIPs.size() + "): " + bannedIPs);
-                if(flNoBanLog)
-                {
-                    l.fine("Ban log will not be saved");
-                    return;
-                }
-                // 写入被封禁IP列表到日志文件
-                try
+                l.fine(() -> subnet + " contains whitelisted IPs, skip");
+                continue;
+            }
+            BanStore.Ban old = banStore.get(subnet);
+            if(old != null && old.active || fwExecutor.isPending(subnet))
+                continue;
+            List<String> covered = subnetAggregator.getBanned(subnet);
+            List<String> keys = new ArrayList<>(covered);
+            keys.add(subnet);
+            long sinceNs = readStartNs;
+            fwExecutor.submit(keys, firewall -> banSubnet(firewall, subnet, covered, sinceNs), unbanned -> onSubnetBanResult(subnet, unbanned),
+                    e -> onSubnetBanResult(subnet, null));
+        }
+    }
+
+    /**
+     * 在防火墙操作线程中封禁地址段。
+     * @return 被合并到地址段封禁中的单个IP。如果封禁失败，返回null。
+     */
+    private static List<String> banSubnet(FirewallManager firewall, String subnet, List<String> covered, long sinceNs)
+    {
+        // 先解除地址段内单个IP的封禁再封禁地址段：nftables的区间集合不允许元素之间有重叠
+        List<String> unbanned = covered.isEmpty() ? covered : firewall.unbanAll(covered);
+        if(firewall.banAll(Collections.singletonList(subnet)).isEmpty())
+        {
+            l.severe("Failed to ban " + (subnet.indexOf(':') == -1 ? "IPv4" : "IPv6") + " subnet: " + subnet);
+            if(!unbanned.isEmpty() && firewall.banAll(unbanned).size() != unbanned.size())
+                l.severe("Failed to restore bans of " + unbanned);
+            firewall.apply();
+            return null;
+        }
+        if(!firewall.apply())
+        {
+            l.severe("Failed to apply firewall rule changes. Run XRDPGuard with \"--debug\" argument to see more information");
+            return null;
+        }
+        Metrics.BAN_LATENCY_SECONDS.observeNanos(System.nanoTime() - sinceNs);
+        return unbanned;
+    }
+
+    private static void onSubnetBanResult(String subnet, List<String> unbanned)
+    {
+        if(unbanned == null)
+        {
+            Metrics.BAN_FAILURES.inc();
+            return;
+        }
+        Metrics.BANS.inc();
+        // 记录地址段的封禁状态，被合并的单个IP记为解除封禁
+        long banMs = System.currentTimeMillis();
+        BanStore.Ban b = banStore.ban(subnet, banMs);
+        subnetAggregator.forget(subnet);
+        if(banJournal != null)
+            banJournal.logBan(b);
+        for(String ip : unbanned)
+        {
+            banStore.unban(ip);
+            subnetAggregator.removeBanned(ip);
+            if(banJournal != null)
+                banJournal.logUnban(banMs, ip, false);
+        }
+        l.info("Banned " + (subnet.indexOf(':') == -1 ? "IPv4" : "IPv6") + " subnet: " + subnet +
+                (unbanned.isEmpty() ? "" : " (merged " + unbanned.size() + " banned IPs)"));
+        if(b.expiresAt != 0)
+            l.fine(() -> subnet + " will be unbanned at " + toXGTime(b.expiresAt) + " (ban #" + b.count + ")");
+        commitBanLog();
+        Metrics.ACTIVE_BANS.set(banStore.getActiveCount());
+        if(cluster != null)
+            cluster.publish(ClusterSync.BAN, Collections.singletonList(subnet));
+    }
+
+    private static void startControlServer(Runnable wakeup)
+    {
+        try
+        {
+            controlServer = new ControlServer(controlPort, controlToken, wakeup);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Failed to start control server on port " + controlPort + ": " + e, e);
+        }
+        controlServer.register("bans", "bans - List active bans (IP, banned at, expires at, ban count)", false, (args, reply) ->
+        {
+            List<BanStore.Ban> bans = new ArrayList<>();
+            for(BanStore.Ban b : banStore.getAll())
+                if(b.active)
+                    bans.add(b);
+            bans.sort(Comparator.comparingLong(b -> b.bannedAt));
+            for(BanStore.Ban b : bans)
+                reply.line(b.ip + "\t" + toXGTime(b.bannedAt) + "\t" + (b.expiresAt == 0 ? "never" : toXGTime(b.expiresAt)) + "\t" + b.count);
+            reply.ok();
+        });
+        controlServer.register("unban", "unban {ip|cidr} - Remove a ban made by XRDPGuard", true, (args, reply) ->
+        {
+            if(args.size() != 1)
+            {
+                reply.error("Usage: unban {ip|cidr}");
+                return;
+            }
+            // IPv4地址在XRDP日志中可能以IPv4映射地址的形式出现
+            String ip = banStore.get(args.get(0)) == null && isIpv4(args.get(0)) ? "::ffff:" + args.get(0) : args.get(0);
+            BanStore.Ban b = banStore.get(ip);
+            if(flDryRun)
+                reply.error("Firewall is not modified in dry run mode");
+            else if(fwExecutor.isPending(ip))
+                reply.error(ip + " has a firewall operation in progress, try again later");
+            else if(b == null || !b.active)
+                reply.error(ip + " is not banned by XRDPGuard");
+            else
+                submitUnban(ip, ok ->
                 {
-                    FileWriter banLogWriter;
-                    banLogWriter = new FileWriter(getFileOrCreate(banLogPath), true);
-                    banLogWriter.write(toXGTime(System.currentTimeMillis()));
-                    banLogWriter.write('\t');
-                    banLogWriter.write(bannedIPs.toString());
-                    banLogWriter.write('\n');
-                    banLogWriter.flush();
-                    banLogWriter.close();
-                    l.fine("Ban log write success");
-                }
-                catch(IOException e)
+                    if(ok)
+                    {
+                        onUnbanned(ip, "requested by control command");
+                        if(cluster != null)
+                            cluster.publish(ClusterSync.UNBAN, Collections.singletonList(ip));
+                        reply.ok();
+                    }
+                    else
+                        reply.error("Failed to unban " + ip + ". Run XRDPGuard with \"--debug\" argument to see more information");
+                });
+        });
+        controlServer.register("whitelist-add", "whitelist-add {ip|cidr} - Add an IP or CIDR range to the whitelist file", true, (args, reply) ->
+        {
+            if(args.size() != 1)
+            {
+                reply.error("Usage: whitelist-add {ip|cidr}");
+                return;
+            }
+            try
+            {
+                if(whitelist.add(args.get(0)))
                 {
-                    l.severe("Failed to write ban log: " + e);
+                    l.info("Added " + args.get(0) + " to the whitelist");
+                    reply.ok();
                 }
+                else
+                    reply.error("Invalid IP or CIDR range: " + args.get(0));
             }
-            else
-                l.severe("Failed to apply firewall rule changes. Run XRDPGuard with \"--debug\" argument to see more information");
+            catch(IOException e)
+            {
+                reply.error("Failed to write whitelist: " + e);
+            }
+        });
+        controlServer.register("counters", "counters - List login failures of each IP in the time period (IP, count)", false, (args, reply) ->
+        {
+            List<Map.Entry<String, Integer>> counts = new ArrayList<>(failureTracker.getFailCounts(System.currentTimeMillis()).entrySet());
+            counts.sort((a, b) -> b.getValue() - a.getValue());
+            for(Map.Entry<String, Integer> e : counts)
+                reply.line(e.getKey() + "\t" + e.getValue());
+            reply.ok();
+        });
+        controlServer.register("rescan", "rescan - Re-read the XRDP logs from the beginning and check again", true, (args, reply) ->
+        {
+            // 关闭日志读取器，本次检查会重新创建读取器并从头读取日志
+            if(logSources != null)
+            {
+                logSources.close();
+                logSources = null;
+            }
+            rescanReplies.add(reply);
+        });
+        l.info("Control server listening on 127.0.0.1:" + controlPort);
+    }
+
+    /**
+     * 在后台解除封禁。操作失败（包括抛出异常）时以false调用onDone。
+     */
+    private static void submitUnban(String ip, Consumer<Boolean> onDone)
+    {
+        fwExecutor.submit(Collections.singletonList(ip), firewall ->
+                firewall.unbanAll(Collections.singletonList(ip)).size() == 1 && firewall.apply(), onDone, e -> onDone.accept(false));
+    }
+
+    private static void onUnbanned(String ip, String reason)
+    {
+        Metrics.UNBANS.inc();
+        banStore.unban(ip);
+        if(subnetAggregator != null && ip.indexOf('/') == -1)
+            subnetAggregator.removeBanned(ip);
+        if(banJournal != null)
+            banJournal.logUnban(System.currentTimeMillis(), ip, false);
+        l.info("Unbanned " + (ip.indexOf(':') == -1 ? "IPv4" : "IPv6") + (ip.indexOf('/') == -1 ? " address: " : " subnet: ") + ip + " (" + reason + ")");
+        commitBanLog();
+        Metrics.ACTIVE_BANS.set(banStore.getActiveCount());
+    }
+
+    /**
+     * 读取控制令牌。令牌文件必须只有所有者可以访问，否则其他本机用户可以读取令牌后执行修改状态的控制命令。
+     */
+    private static String readControlToken()
+    {
+        Path path = Paths.get(controlTokenPath);
+        String token;
+        try
+        {
+            try
+            {
+                for(PosixFilePermission p : Files.getPosixFilePermissions(path))
+                    if(p != PosixFilePermission.OWNER_READ && p != PosixFilePermission.OWNER_WRITE && p != PosixFilePermission.OWNER_EXECUTE)
+                        throw new RuntimeException("Control token file " + controlTokenPath + " must not be accessible by group or others (chmod 600)");
+            }
+            catch(UnsupportedOperationException e)
+            {
+                l.warning("Cannot check the permissions of control token file " + controlTokenPath);
+            }
+            token = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Failed to read control token: " + e, e);
         }
+        if(token.isEmpty())
+            throw new RuntimeException("Control token file " + controlTokenPath + " is empty");
+        return token;
+    }
+
+    private static void startCluster()
+    {
+        if(clusterKeyPath == null)
+            throw new RuntimeException("\"--clusterkey={}\" is required when \"--cluster={}\" is specified");
+        String key;
+        try
+        {
+            key = new String(Files.readAllBytes(Paths.get(clusterKeyPath)), StandardCharsets.UTF_8).trim();
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Failed to read cluster key: " + e, e);
+        }
+        if(key.isEmpty())
+            throw new RuntimeException("Cluster key file " + clusterKeyPath + " is empty");
+        List<InetSocketAddress> peers = new ArrayList<>(clusterPeers.size());
+        for(String peer : clusterPeers)
+        {
+            InetSocketAddress addr = ClusterSync.parseAddress(peer, "127.0.0.1");
+            if(addr.isUnresolved())
+                throw new RuntimeException("Unknown peer host: " + peer);
+            peers.add(addr);
+        }
+        try
+        {
+            cluster = new ClusterSync(ClusterSync.parseAddress(clusterAddr, "0.0.0.0"), peers, key);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Failed to listen on " + clusterAddr + " for ban events: " + e, e);
+        }
+    }
+
+    private static void applyClusterEvents()
+    {
+        List<ClusterSync.Event> events = cluster.poll();
+        if(events.isEmpty())
+            return;
+        if(flDryRun)
+        {
+            l.info("Ignored " + events.size() + " ban events from peers in dry run mode");
+            return;
+        }
+        Set<String> toBan = new LinkedHashSet<>();
+        for(ClusterSync.Event e : events)
+        {
+            String ip = e.ip;
+            BanStore.Ban b = banStore.get(ip);
+            boolean active = b != null && b.active;
+            if(fwExecutor.isPending(ip))
+            {
+                l.fine(() -> ip + " has a firewall operation in progress, ignoring event from peer");
+                continue;
+            }
+            if(e.type == ClusterSync.UNBAN)
+            {
+                toBan.remove(ip);
+                if(active)
+                    submitUnban(ip, ok ->
+                    {
+                        if(ok)
+                            onUnbanned(ip, "requested by peer");
+                        else
+                            l.severe("Failed to unban " + ip + " as requested by peer");
+                    });
+                continue;
+            }
+            if(active || (ip.indexOf('/') == -1 ? whitelist.contains(ip) || isSubnetBanned(ip) : whitelist.overlaps(ip)))
+            {
+                l.fine(() -> ip + " is already banned or whitelisted, ignoring ban from peer");
+                continue;
+            }
+            toBan.add(ip);
+        }
+        if(toBan.isEmpty())
+            return;
+        List<String> ips = new ArrayList<>(toBan);
+        l.fine(() -> "Ban from peers " + ips);
+        fwExecutor.submit(ips, firewall ->
+        {
+            List<String> toAdd = new ArrayList<>(ips);
+            toAdd.removeAll(firewall.isBannedAll(toAdd));
+            List<String> added = toAdd.isEmpty() ? toAdd : firewall.banAll(toAdd);
+            if(!added.isEmpty() && !firewall.apply())
+            {
+                l.severe("Failed to apply firewall rule changes. Run XRDPGuard with \"--debug\" argument to see more information");
+                return Collections.<String>emptyList();
+            }
+            return added;
+        }, banned ->
+        {
+            if(banned.isEmpty())
+                return;
+            l.info("Banned IPs from peers (" + banned.size() + "): " + banned);
+            recordBans(banned);
+        }, e ->
+        {
+            Metrics.BAN_FAILURES.add(ips.size());
+            l.severe("Failed to ban IPs from peers: " + ips);
+        });
     }
 }
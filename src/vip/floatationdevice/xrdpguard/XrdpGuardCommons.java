@@ -12,27 +12,123 @@ public class XrdpGuardCommons
             "\nUsage: java -jar XrdpGuard.jar [options]\n" +
             "Options:\n" +
             "    --help          Show the help message and exit.\n" +
-            "    --log={}        Specify the path of XRDP log. (Default: /var/log/xrdp.log)\n" +
-            "    --banlog={}     Specify the path of the file to save ban records to.\n" +
+            "    --log={}        Specify the path of XRDP log. Can be specified multiple times\n" +
+            "                    to read the logs of multiple XRDP instances, which are\n" +
+            "                    parsed in parallel. (Default: /var/log/xrdp.log)\n" +
+            "    --backfill={}   Specify the path of a rotated XRDP log (e.g. xrdp.log.1 or\n" +
+            "                    xrdp.log.2.gz) to read once on startup. Can be specified\n" +
+            "                    multiple times. Files ending with \".gz\" are decompressed.\n" +
+            "    --rules={}      Specify the path of a file of rules that recognize log lines\n" +
+            "                    (see \"Log rules\" in README.md), e.g. for other XRDP versions\n" +
+            "                    or xrdp-sesman logs. (Default: built-in rules for xrdp.log)\n" +
+            "    --banlog={}     Specify the path of the file to save ban records to. Ban\n" +
+            "                    state is restored from this file on startup.\n" +
             "                    (Default: xrdpguard/ban.log)\n" +
-            "    --whitelist={}  Specify the path of the file to load IP whitelist.\n" +
+            "    --whitelist={}  Specify the path of the file to load IP whitelist. Each line\n" +
+            "                    is an IP address or a CIDR range (e.g. 10.0.0.0/8). The file\n" +
+            "                    is reloaded when it changes.\n" +
             "                    (Default: xrdpguard/whitelist.txt)\n" +
+            "    --blocklist={}  Specify the path of a list of IPs, CIDR ranges and IP ranges\n" +
+            "                    (e.g. a threat feed) to ban as soon as they connect, without\n" +
+            "                    waiting for failed logins. Can be specified multiple times.\n" +
+            "                    Lists are compiled to an index file and reloaded on change.\n" +
+            "    --blocklistindex={}\n" +
+            "                    Specify the path of the compiled blocklist index.\n" +
+            "                    (Default: xrdpguard/blocklist.idx)\n" +
+            "    --history={}    Append every login record read from the XRDP logs to a login\n" +
+            "                    history in this directory, kept across log rotation. With\n" +
+            "                    \"--export\", export from the history instead of the logs.\n" +
+            "                    (Default: none)\n" +
+            "    --snapshot={}   Periodically save the read position of each XRDP log and the\n" +
+            "                    login failure statistics to this file, and restore them on\n" +
+            "                    startup so that only the log lines appended since then are\n" +
+            "                    read. Requires \"--follow\". (Default: none)\n" +
+            "    --snapshotinterval={} Specify the interval (in milliseconds) between two\n" +
+            "                    snapshots. (Default: 60000)\n" +
+            "    --bantime={}    Specify how long (in milliseconds) an IP stays banned before\n" +
+            "                    it is unbanned automatically. A negative value means bans\n" +
+            "                    are permanent. (Default: -1)\n" +
+            "    --banfactor={}  Specify the factor by which the ban time grows each time the\n" +
+            "                    same IP is banned again. An IP that is not banned again\n" +
+            "                    within 10 times the max ban time (or the ban time if there\n" +
+            "                    is no limit) after its last ban ended starts over from the\n" +
+            "                    ban time. (Default: 1)\n" +
+            "    --maxbantime={} Specify the upper limit (in milliseconds) of the ban time. A\n" +
+            "                    negative value means no limit. (Default: -1)\n" +
             "    --period={}     Specify the time period (in milliseconds) to consider for\n" +
             "                    login failures. (Default: 10 minutes)\n" +
             "    --maxfail={}    Specify the maximum number of login failures allowed before\n" +
             "                    an IP address is considered suspicious. (Default: 3)\n" +
+            "    --subnethosts={} Specify the number of distinct hosts in the same subnet that\n" +
+            "                    must fail to log in repeatedly (or be banned) within the time\n" +
+            "                    period before the whole subnet is banned. Banned IPs in the\n" +
+            "                    subnet are merged into the subnet ban. A value less than 2\n" +
+            "                    disables subnet bans. (Default: 0)\n" +
+            "    --subnethostfails={} Specify how many login failures within the time period\n" +
+            "                    a host needs before it counts toward \"--subnethosts={}\", so\n" +
+            "                    that a few users behind one NAT who each mistype a password\n" +
+            "                    once do not get their subnet banned. (Default: 2)\n" +
+            "    --subnet4={}    Specify the prefix length of IPv4 subnets. (Default: 24)\n" +
+            "    --subnet6={}    Specify the prefix length of IPv6 subnets. (Default: 48)\n" +
             "    --firewall={}   Specify the firewall manager implementation class to use.\n" +
             "                    (Default: vip.floatationdevice.xrdpguard.firewall.Firewalld)\n" +
+            "    --fwcache={}    Specify the interval (in milliseconds) to re-read the list of\n" +
+            "                    banned IPs from the firewall. Between two reads, ban state is\n" +
+            "                    answered from memory. A negative value disables the cache.\n" +
+            "                    (Default: 3600000)\n" +
+            "    --fwtimeout={}  Specify the timeout (in milliseconds) of each firewall\n" +
+            "                    command. A command that does not finish in time is killed\n" +
+            "                    and treated as failed. A value less than or equal to 0\n" +
+            "                    means no timeout. (Default: 60000)\n" +
+            "    --fwretries={}  Specify how many times a failed ban is retried, with the\n" +
+            "                    delay doubling from 1 second. Firewall changes are applied\n" +
+            "                    in the background while XRDPGuard keeps reading logs.\n" +
+            "                    (Default: 2)\n" +
             "    --loop={}       Specify the interval (in milliseconds) between two checks.\n" +
             "                    A value less than 5000 means XRDPGaurd will check only once\n" +
             "                    and then exit. (Default: -1)\n" +
+            "    --metrics={}    Serve metrics in Prometheus text format at\n" +
+            "                    http://127.0.0.1:{}/metrics. Metrics are also available\n" +
+            "                    through JMX (vip.floatationdevice.xrdpguard:type=Metrics).\n" +
+            "                    A value less than or equal to 0 disables the endpoint.\n" +
+            "                    (Default: 0)\n" +
+            "    --cluster={}    Exchange ban and unban events with other XRDPGuard instances\n" +
+            "                    over UDP, listening on {} ([host:]port). Bans received from\n" +
+            "                    peers are applied with the local firewall manager and ban\n" +
+            "                    time settings. Requires \"--clusterkey={}\". (Default: none)\n" +
+            "    --peer={}       Specify the address (host:port) of another instance to send\n" +
+            "                    ban events to. Can be specified multiple times.\n" +
+            "    --clusterkey={} Specify the path of a file containing the secret shared by\n" +
+            "                    all instances, used to sign and verify ban events.\n" +
+            "    --daemon={}     Run as a daemon that keeps all state in memory and accepts\n" +
+            "                    commands on 127.0.0.1:{}, one per line: bans, unban {ip},\n" +
+            "                    whitelist-add {ip|cidr}, counters, rescan and help.\n" +
+            "                    Implies \"--watch\". (Default: 0)\n" +
+            "    --controltoken={} Specify the path of a file (readable only by its owner)\n" +
+            "                    containing the control token. Each control connection must\n" +
+            "                    send the token as its first line. Without a token, only\n" +
+            "                    bans, counters and help are allowed. (Default: none)\n" +
             "    --debug         Enable debug output.\n" +
             "    --dryrun        Perform a dry run: only show suspicious IP(s) and do not\n" +
             "                    modify the firewall.\n" +
             "    --export        Print the extracted login records to stdout and exit.\n" +
-            "    --nobanlog      Do not save ban records. Overrides \"--banlog={}\"";
-    private static final SimpleDateFormat XRDP_TIME_FMT = new SimpleDateFormat("yyyyMMdd-HH:mm:ss");
-    private static final SimpleDateFormat XG_TIME_FMT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            "    --format={}     Specify the export format: tsv, csv or json. (Default: tsv)\n" +
+            "    --from={}       Only export login records at or after this local time\n" +
+            "                    (yyyy-MM-dd, yyyy-MM-dd HH:mm:ss or yyyy-MM-dd HH:mm:ss.SSS).\n" +
+            "    --to={}         Only export login records before this local time.\n" +
+            "    --ip={}         Only export login records from this IP or CIDR range. Can be\n" +
+            "                    specified multiple times.\n" +
+            "    --outcome={}    Only export failed (fail) or successful (success) logins.\n" +
+            "    --nobanlog      Do not save ban records. Overrides \"--banlog={}\"\n" +
+            "    --follow        Keep the XRDP log open between checks and read only the\n" +
+            "                    newly appended lines. Log rotation and truncation are\n" +
+            "                    detected automatically.\n" +
+            "    --watch         Check as soon as the XRDP log changes instead of at fixed\n" +
+            "                    intervals. Implies \"--follow\". \"--loop={}\" becomes the\n" +
+            "                    longest time to wait between two checks (at least 5000).";
+    // SimpleDateFormat不是线程安全的，每个线程使用自己的实例
+    private static final ThreadLocal<SimpleDateFormat> XRDP_TIME_FMT = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyyMMdd-HH:mm:ss"));
+    private static final ThreadLocal<SimpleDateFormat> XG_TIME_FMT = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS"));
     private static final Pattern IPV4_PATTERN = Pattern.compile("^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$");
 
     public static String getVersion(){return VERSION;}
@@ -43,7 +139,7 @@ public class XrdpGuardCommons
     {
         try
         {
-            return XRDP_TIME_FMT.parse(s);
+            return XRDP_TIME_FMT.get().parse(s);
         }
         catch(ParseException e)
         {
@@ -55,7 +151,7 @@ public class XrdpGuardCommons
     {
         try
         {
-            return XG_TIME_FMT.parse(s);
+            return XG_TIME_FMT.get().parse(s);
         }
         catch(ParseException e)
         {
@@ -65,23 +161,216 @@ public class XrdpGuardCommons
 
     public static String toXRDPTime(Date d)
     {
-        return XRDP_TIME_FMT.format(d);
+        return XRDP_TIME_FMT.get().format(d);
     }
 
     public static String toXRDPTime(long ms)
     {
-        return XRDP_TIME_FMT.format(ms);
+        return XRDP_TIME_FMT.get().format(ms);
     }
 
     public static String toXGTime(Date d)
     {
-        return XG_TIME_FMT.format(d);
+        return XG_TIME_FMT.get().format(d);
     }
 
     public static String toXGTime(long ms)
     {
-        return XG_TIME_FMT.format(ms);
+        return XG_TIME_FMT.get().format(ms);
     }
 
     public static boolean isIpv4(String s){return IPV4_PATTERN.matcher(s).matches();}
+
+    /**
+     * 将IPv4地址解析为整数。
+     * @param s 包含IPv4地址的字符序列。
+     * @param from 地址的起始位置（含）。
+     * @param to 地址的结束位置（不含）。
+     * @return 地址对应的无符号32位整数，如果不是合法的IPv4地址，返回-1。
+     */
+    public static long parseIpv4(CharSequence s, int from, int to)
+    {
+        long v = 0;
+        int octets = 0;
+        int i = from;
+        while(i < to)
+        {
+            int start = i, octet = 0;
+            while(i < to && i - start < 4)
+            {
+                char c = s.charAt(i);
+                if(c < '0' || c > '9')
+                    break;
+                octet = octet * 10 + (c - '0');
+                i++;
+            }
+            if(i == start || i - start > 3 || octet > 255)
+                return -1;
+            v = v << 8 | octet;
+            if(++octets == 4)
+                return i == to ? v : -1;
+            if(i == to || s.charAt(i) != '.')
+                return -1;
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * 将IPv6地址解析为两个长整数。支持"::"缩写和末尾嵌入IPv4地址的写法（如"::ffff:1.2.3.4"），不支持带区域标识（"%"）的地址。
+     * @param s 包含IPv6地址的字符序列。
+     * @param out 长度至少为2的数组，解析成功时out[0]为地址的高64位，out[1]为低64位。
+     * @return 如果是合法的IPv6地址，返回true，否则返回false。
+     */
+    public static boolean parseIpv6(CharSequence s, long[] out)
+    {
+        int len = s.length();
+        if(len < 2)
+            return false;
+        // "::"之前的部分和之后的部分分别累加，最后再把前半部分移到高位
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int nHead = 0, nTail = 0;
+        boolean compressed = false;
+        int i = 0;
+        if(s.charAt(0) == ':')
+        {
+            if(s.charAt(1) != ':')
+                return false;
+            compressed = true;
+            i = 2;
+        }
+        while(i < len)
+        {
+            int start = i, g = 0;
+            while(i < len && i - start < 5)
+            {
+                int d = Character.digit(s.charAt(i), 16);
+                if(d < 0)
+                    break;
+                g = g << 4 | d;
+                i++;
+            }
+            int groups = 1;
+            long v = g;
+            if(i < len && s.charAt(i) == '.')
+            {
+                // 末尾嵌入的IPv4地址，占两组
+                v = parseIpv4(s, start, len);
+                if(v < 0)
+                    return false;
+                groups = 2;
+                i = len;
+            }
+            else if(i == start || i - start > 4)
+                return false;
+            for(int k = groups - 1; k >= 0; k--)
+            {
+                long part = v >>> (16 * k) & 0xffff;
+                if(compressed)
+                {
+                    tailHi = tailHi << 16 | tailLo >>> 48;
+                    tailLo = tailLo << 16 | part;
+                    nTail++;
+                }
+                else
+                {
+                    headHi = headHi << 16 | headLo >>> 48;
+                    headLo = headLo << 16 | part;
+                    nHead++;
+                }
+            }
+            if(i == len)
+                break;
+            if(s.charAt(i) != ':' || ++i == len)
+                return false;
+            if(s.charAt(i) == ':')
+            {
+                if(compressed)
+                    return false;
+                compressed = true;
+                i++;
+            }
+        }
+        int total = nHead + nTail;
+        if(compressed ? total > 7 : total != 8)
+            return false;
+        int shift = 16 * (8 - nHead);
+        long hi, lo;
+        if(shift == 0)
+        {
+            hi = headHi;
+            lo = headLo;
+        }
+        else if(shift < 64)
+        {
+            hi = headHi << shift | headLo >>> (64 - shift);
+            lo = headLo << shift;
+        }
+        else if(shift < 128)
+        {
+            hi = headLo << (shift - 64);
+            lo = 0;
+        }
+        else
+            hi = lo = 0;
+        out[0] = hi | tailHi;
+        out[1] = lo | tailLo;
+        return true;
+    }
+
+    /**
+     * 将整数形式的IPv4地址转换为点分十进制字符串。
+     */
+    public static String ipv4ToString(int v)
+    {
+        return (v >>> 24) + "." + (v >>> 16 & 0xff) + "." + (v >>> 8 & 0xff) + "." + (v & 0xff);
+    }
+
+    /**
+     * 将两个长整数形式的IPv6地址转换为RFC 5952规定的标准文本形式。
+     * IPv4映射地址会输出为"::ffff:a.b.c.d"的形式。
+     */
+    public static String ipv6ToString(long hi, long lo)
+    {
+        if(hi == 0 && lo >>> 32 == 0xffffL)
+            return "::ffff:" + ipv4ToString((int) lo);
+        // 找到最长的连续全零组（至少两组）用"::"代替
+        int bestStart = -1, bestLen = 1;
+        for(int i = 0; i < 8; )
+        {
+            if(group(hi, lo, i) != 0)
+            {
+                i++;
+                continue;
+            }
+            int j = i;
+            while(j < 8 && group(hi, lo, j) == 0)
+                j++;
+            if(j - i > bestLen)
+            {
+                bestStart = i;
+                bestLen = j - i;
+            }
+            i = j;
+        }
+        StringBuilder sb = new StringBuilder(39);
+        for(int i = 0; i < 8; i++)
+        {
+            if(i == bestStart)
+            {
+                sb.append("::");
+                i += bestLen - 1;
+                continue;
+            }
+            if(sb.length() != 0 && sb.charAt(sb.length() - 1) != ':')
+                sb.append(':');
+            sb.append(Integer.toHexString(group(hi, lo, i)));
+        }
+        return sb.toString();
+    }
+
+    private static int group(long hi, long lo, int i)
+    {
+        return (int) ((i < 4 ? hi >>> (16 * (3 - i)) : lo >>> (16 * (7 - i))) & 0xffff);
+    }
 }
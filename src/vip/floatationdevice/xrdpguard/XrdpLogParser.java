@@ -0,0 +1,265 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 直接在字节数组上工作的XRDP日志行解析器。
+ * 日志行按LogRules中的规则识别：规则的匹配字符串被编译为一个自动机，每个字节只需查一次状态转移表，
+ * 一次扫描即可判断一行日志属于哪种标志，匹配速度与规则的数量无关。
+ * 时间戳手动解码为毫秒时间戳，IP地址在行内直接解析为数值，解析过程不创建任何对象。
+ * IP地址只在需要时通过getAddr()转换为标准文本形式（与LoginRecordStore相同），因此同一个地址无论在日志中如何书写，
+ * 也无论经过哪条读取路径，得到的字符串都相同。
+ * 规则中的ip-after、ip-until和time-after可以由用户配置，截取出的内容不是合法的IPv4或IPv6地址或者时间格式不正确时，
+ * 整行被当作不包含标志的行忽略（在FINE级别记录），不会因为一行格式意外的日志而中断读取。
+ * 此类的实例不是线程安全的，每个线程应使用自己的实例。
+ */
+public class XrdpLogParser
+{
+    /** 不包含任何标志的行 */
+    public static final int NONE = 0;
+    /** 日志开始标志（默认为"starting xrdp"） */
+    public static final int START = 1;
+    /** 客户端连入标志（默认为"connection received from"） */
+    public static final int CONNECTION = 2;
+    /** 客户端登录成功标志（默认为"] login succ"） */
+    public static final int LOGIN_SUCCESS = 3;
+    /** 登录失败标志（默认没有） */
+    public static final int FAIL = 4;
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final LogRules rules;
+    private final int[] delta;
+    private final int[] output;
+    private final Calendar cal = Calendar.getInstance();
+    // 同一分钟内的日志行只需要计算秒，避免每行都经过Calendar计算
+    private long cachedMinuteKey = -1;
+    private long cachedMinuteMs;
+    private long timeMs;
+    private final ByteChars addr = new ByteChars(); // 用于解析IP地址，避免为每行创建字符串
+    private long addrV4; // 上一次解析到的IPv4地址，不是IPv4地址时为-1
+    private final long[] ipv6Buf = new long[2]; // 上一次解析到的IPv6地址
+
+    /**
+     * 使用默认的规则（LogRules.getDefault()）创建解析器。
+     */
+    public XrdpLogParser()
+    {
+        this(LogRules.getDefault());
+    }
+
+    public XrdpLogParser(LogRules rules)
+    {
+        this.rules = rules;
+        this.delta = rules.delta;
+        this.output = rules.output;
+    }
+
+    /**
+     * 解析一行日志。
+     * 如果是客户端连入标志或登录失败标志，可以通过getTimeMs()和getAddr()获取时间和IP地址。
+     * 这两种标志的行中截取不到合法的IP地址或时间时返回NONE。
+     * @param b 存放日志行的数组。
+     * @param off 日志行的起始位置。
+     * @param len 日志行的长度（不含换行符）。
+     * @return 日志行的类型：NONE、START、CONNECTION、LOGIN_SUCCESS或FAIL。
+     */
+    public int parse(byte[] b, int off, int len)
+    {
+        int end = off + len;
+        int[] delta = this.delta, output = this.output;
+        int state = 0;
+        int rule = Integer.MAX_VALUE; // 匹配到的优先级最高的规则
+        int markerEnd = -1;
+        for(int i = off; i < end; i++)
+        {
+            state = delta[state << 8 | b[i] & 0xff];
+            if(output[state] < rule)
+            {
+                rule = output[state];
+                markerEnd = i + 1;
+                // 优先级最高的规则，无需继续扫描
+                if(rule == 0)
+                    break;
+            }
+        }
+        if(rule == Integer.MAX_VALUE)
+            return NONE;
+        int type = rules.types[rule];
+        if(type == CONNECTION || type == FAIL)
+        {
+            int addrStart = markerEnd, addrEnd;
+            byte[] after = rules.ipAfter[rule];
+            if(after != null)
+            {
+                int p = indexOf(b, markerEnd, end, after);
+                if(p == -1)
+                    return NONE;
+                addrStart = p + after.length;
+            }
+            byte[] until = rules.ipUntil[rule];
+            if(until != null)
+            {
+                addrEnd = indexOf(b, addrStart, end, until);
+                if(addrEnd == -1)
+                    addrEnd = end;
+            }
+            else
+            {
+                addrEnd = addrStart;
+                while(addrEnd < end && b[addrEnd] != ' ' && b[addrEnd] != '\t')
+                    addrEnd++;
+            }
+            addr.set(b, addrStart, addrEnd - addrStart);
+            addrV4 = parseIpv4(addr, 0, addr.len);
+            if(addrV4 < 0 && !parseIpv6(addr, ipv6Buf))
+            {
+                skipped(b, off, len, "IP address");
+                return NONE;
+            }
+            byte[] timeAfter = rules.timeAfter[rule];
+            int timeStart = off + 1;
+            if(timeAfter != null)
+            {
+                int p = indexOf(b, off, end, timeAfter);
+                if(p == -1)
+                    return NONE;
+                timeStart = p + timeAfter.length;
+            }
+            timeMs = parseTime(b, timeStart, end);
+            if(timeMs == Long.MIN_VALUE)
+            {
+                skipped(b, off, len, "time");
+                return NONE;
+            }
+        }
+        return type;
+    }
+
+    private void skipped(byte[] b, int off, int len, String what)
+    {
+        if(l.isLoggable(Level.FINE))
+            l.fine("Skipped log line with invalid " + what + ": " + new String(b, off, len, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * 获取上一次解析到的客户端连入时间。
+     */
+    public long getTimeMs()
+    {
+        return timeMs;
+    }
+
+    /**
+     * 获取上一次解析到的IP地址的标准文本形式（由ipv4ToString()或ipv6ToString()生成）。
+     */
+    public String getAddr()
+    {
+        return addrV4 >= 0 ? ipv4ToString((int) addrV4) : ipv6ToString(ipv6Buf[0], ipv6Buf[1]);
+    }
+
+    /**
+     * 解码"yyyyMMdd-HH:mm:ss"格式的时间，结果与使用SimpleDateFormat解析相同（使用默认时区）。
+     * @param b 存放时间的数组。
+     * @param p 时间的起始位置。
+     * @param end 可读取的结束位置。
+     * @return 毫秒时间戳。如果格式不正确，返回Long.MIN_VALUE。
+     */
+    public long parseTime(byte[] b, int p, int end)
+    {
+        if(end - p < 17 || b[p + 8] != '-' || b[p + 11] != ':' || b[p + 14] != ':')
+            return Long.MIN_VALUE;
+        long date = digits(b, p, 8), hour = digits(b, p + 9, 2), minute = digits(b, p + 12, 2), second = digits(b, p + 15, 2);
+        if(date < 0 || hour < 0 || minute < 0 || second < 0)
+            return Long.MIN_VALUE;
+        long minuteKey = date * 10000 + hour * 100 + minute;
+        if(minuteKey != cachedMinuteKey)
+        {
+            cal.clear();
+            cal.set((int) (minuteKey / 100000000), (int) (minuteKey / 1000000 % 100) - 1, (int) (minuteKey / 10000 % 100),
+                    (int) (minuteKey / 100 % 100), (int) (minuteKey % 100), 0);
+            cachedMinuteMs = cal.getTimeInMillis();
+            cachedMinuteKey = minuteKey;
+        }
+        return cachedMinuteMs + second * 1000L;
+    }
+
+    /**
+     * @return 十进制数字的值。如果包含非数字的字符，返回-1。
+     */
+    private static long digits(byte[] b, int p, int n)
+    {
+        long v = 0;
+        for(int i = p; i < p + n; i++)
+        {
+            int d = b[i] - '0';
+            if(d < 0 || d > 9)
+                return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static boolean matches(byte[] b, int p, int end, byte[] marker)
+    {
+        if(end - p < marker.length)
+            return false;
+        for(int i = 1; i < marker.length; i++) // 第一个字节已经在调用前比较过
+            if(b[p + i] != marker[i])
+                return false;
+        return true;
+    }
+
+    private static int indexOf(byte[] b, int p, int end, byte[] marker)
+    {
+        for(int i = p; i <= end - marker.length; i++)
+            if(b[i] == marker[0] && matches(b, i, end, marker))
+                return i;
+        return -1;
+    }
+
+    /**
+     * 将字节数组的一段按ISO-8859-1当作字符序列读取，不复制数据。
+     */
+    private static final class ByteChars implements CharSequence
+    {
+        private byte[] b;
+        private int off;
+        private int len;
+
+        void set(byte[] b, int off, int len)
+        {
+            this.b = b;
+            this.off = off;
+            this.len = len;
+        }
+
+        @Override
+        public int length()
+        {
+            return len;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            return (char) (b[off + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return new String(b, off + start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString()
+        {
+            return new String(b, off, len, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * XRDP日志的增量读取器。
+ * 读取器会记住上次读取到的字节偏移量和文件标识（Linux下包含inode），每次只读取新追加到日志末尾的内容。
+ * 检测到日志被轮转（文件标识改变）时，先读完旧文件的剩余部分，再从头读取新文件；检测到日志被截断时，从头重新读取。
+ * 未匹配到登录成功记录的连入记录会在两次读取之间保留，因此被拆分到两次读取中的连入/登录成功记录仍能正确配对。
+ * 第一次打开较大的日志时，使用MappedLogScanner跳过最后一个日志开始标志之前的内容，并行解析之后的内容。
+ * 以".gz"结尾的文件（被压缩的轮转日志）不会再增长，第一次调用update()时解压读取全部内容，之后不再读取。
+ * 读取位置可以通过saveState()保存，重新启动后通过restoreState()恢复，从上次读取到的位置继续读取。
+ */
+public class XrdpLogReader
+{
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long COLD_START_MIN_SIZE = 16 * 1024 * 1024; // 第一次打开时大于此大小的日志使用并行扫描
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final Path path;
+    private final LoginRecordStore logins = new LoginRecordStore(); // 最后一个日志开始标志之后的登录记录
+    private final XrdpLogParser parser = new XrdpLogParser();
+    private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] lineBuf = new byte[256]; // 尚未读到换行符的行
+    private int lineLen = 0;
+    private FileChannel channel;
+    private Object fileKey; // 当前打开的文件的标识
+    private long offset = 0; // 当前文件已读取到的字节偏移量
+    private final boolean compressed; // 是否是gzip压缩的日志
+    private boolean compressedRead = false; // 压缩的日志是否已被读取
+    // xrdp.log中的客户端连入记录和登录成功记录不在同一行输出，所以需要至少两行才能判定登录是否成功
+    private long lastIncomingConnectionTime = 0;
+    private String lastIncomingConnectionIp = null;
+    private final boolean keepLogins; // 是否在内存中保存登录记录
+    private Listener listener;
+
+    public XrdpLogReader(String path)
+    {
+        this(path, true);
+    }
+
+    /**
+     * @param path XRDP日志路径。
+     * @param keepLogins 是否在内存中保存登录记录。如果只通过监听器处理登录记录，可以设为false以节省内存。
+     */
+    public XrdpLogReader(String path, boolean keepLogins)
+    {
+        this.path = Paths.get(path);
+        this.keepLogins = keepLogins;
+        this.compressed = path.endsWith(".gz");
+    }
+
+    /**
+     * 设置接收登录记录的监听器。每条登录记录在被解析出来时都会立即送给监听器。
+     * @param listener 监听器，为null时不通知。
+     */
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * 读取日志自上次读取以来新增的内容。
+     * @return 本次读取到的字节数。
+     * @throws IOException 读取日志失败时抛出。
+     */
+    public long update() throws IOException
+    {
+        if(compressed)
+            return compressedRead ? 0 : readCompressed();
+        long read = 0;
+        BasicFileAttributes attrs;
+        try
+        {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch(NoSuchFileException e)
+        {
+            // 日志轮转时文件可能短暂不存在，先读完旧文件，等待下次读取
+            if(channel == null)
+                throw e;
+            l.fine(() -> "XRDP log " + path + " does not exist, waiting for it to be recreated");
+            return readToEnd();
+        }
+        if(channel != null && !Objects.equals(fileKey, attrs.fileKey()))
+        {
+            // 文件标识改变，日志已被轮转。读完旧文件的剩余部分后切换到新文件
+            l.fine(() -> "XRDP log " + path + " has been rotated");
+            read += readToEnd();
+            if(lineLen != 0) // 旧文件末尾没有换行符的最后一行
+                parseLine(lineBuf, 0, lineLen);
+            close();
+        }
+        if(channel == null)
+        {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            fileKey = attrs.fileKey();
+            offset = 0;
+            lineLen = 0;
+            if(channel.size() >= COLD_START_MIN_SIZE)
+                read += coldStart();
+        }
+        else if(channel.size() < offset)
+        {
+            // 文件比上次读取时更小，日志已被截断
+            l.fine(() -> "XRDP log " + path + " has been truncated");
+            offset = 0;
+            lineLen = 0;
+        }
+        read += readToEnd();
+        return read;
+    }
+
+    /**
+     * 从当前偏移量读取到文件末尾，并逐行处理读取到的内容。
+     * 末尾不完整的行会被保留到下次读取。
+     */
+    private long readToEnd() throws IOException
+    {
+        long read = 0;
+        int n;
+        while((n = channel.read((ByteBuffer) readBuf.clear(), offset)) > 0)
+        {
+            offset += n;
+            read += n;
+            consume(readBuf.array(), n);
+        }
+        return read;
+    }
+
+    /**
+     * 使用MappedLogScanner并行扫描日志到最后一个换行符为止，之后的内容由readToEnd()继续读取。
+     */
+    private long coldStart() throws IOException
+    {
+        long t = System.currentTimeMillis();
+        MappedLogScanner.Result r = MappedLogScanner.scan(channel, channel.size());
+        if(r.isRestarted())
+        {
+            logins.clear();
+            if(listener != null)
+                listener.onRestart();
+        }
+        int n = 0;
+        for(int i = 0; i < r.getSegmentCount(); i++)
+        {
+            LoginRecordStore segment = r.getSegment(i);
+            for(int j = 0; j < segment.size(); j++)
+                addLogin(segment.getTime(j), segment.getAddr(j), segment.isFail(j));
+            n += segment.size();
+        }
+        lastIncomingConnectionTime = r.getPendingTime();
+        lastIncomingConnectionIp = r.getPendingAddr();
+        offset = r.getEnd();
+        long ms = System.currentTimeMillis() - t;
+        int records = n;
+        l.fine(() -> "Scanned " + (r.getEnd() - r.getStart()) + " bytes of " + path + " from offset " + r.getStart() +
+                " in " + ms + " ms, " + records + " login records");
+        return r.getEnd() - r.getStart();
+    }
+
+    /**
+     * 解压读取整个gzip压缩的日志。压缩的日志不会再增长，末尾没有换行符的最后一行也会被处理。
+     */
+    private long readCompressed() throws IOException
+    {
+        long read = 0;
+        try(InputStream in = new GZIPInputStream(Files.newInputStream(path), READ_BUFFER_SIZE))
+        {
+            byte[] b = readBuf.array();
+            int n;
+            while((n = in.read(b, 0, b.length)) != -1)
+            {
+                read += n;
+                consume(b, n);
+            }
+        }
+        if(lineLen != 0)
+        {
+            parseLine(lineBuf, 0, lineLen);
+            Metrics.LOG_LINES.inc();
+        }
+        lineLen = 0;
+        compressedRead = true;
+        return read;
+    }
+
+    /**
+     * 逐行处理读取到的内容。末尾不完整的行保存在lineBuf中，与下次读取到的内容拼接。
+     */
+    private void consume(byte[] b, int n)
+    {
+        int lineStart = 0;
+        int lines = 0;
+        for(int i = 0; i < n; i++)
+        {
+            if(b[i] != '\n')
+                continue;
+            lines++;
+            if(lineLen == 0)
+                parseLine(b, lineStart, i - lineStart);
+            else
+            {
+                appendLineBuf(b, lineStart, i - lineStart);
+                parseLine(lineBuf, 0, lineLen);
+                lineLen = 0;
+            }
+            lineStart = i + 1;
+        }
+        appendLineBuf(b, lineStart, n - lineStart);
+        Metrics.LOG_LINES.add(lines);
+    }
+
+    private void appendLineBuf(byte[] b, int off, int len)
+    {
+        if(lineLen + len > lineBuf.length)
+            lineBuf = Arrays.copyOf(lineBuf, Math.max(lineBuf.length * 2, lineLen + len));
+        System.arraycopy(b, off, lineBuf, lineLen, len);
+        lineLen += len;
+    }
+
+    private void parseLine(byte[] b, int off, int len)
+    {
+        if(len > 0 && b[off + len - 1] == '\r')
+            len--;
+        switch(parser.parse(b, off, len))
+        {
+            // 首先检测日志开始标志。程序将从最后遇到的日志开始标志处开始扫描
+            case XrdpLogParser.START:
+                // 检测到新的日志开头，前面的记录作废
+                logins.clear();
+                lastIncomingConnectionTime = 0;
+                lastIncomingConnectionIp = null;
+                if(listener != null)
+                    listener.onRestart();
+                break;
+            // 检查客户端连入标志
+            case XrdpLogParser.CONNECTION:
+                if(lastIncomingConnectionIp != null)
+                    // 上条连入记录没有匹配到登录成功记录，将其标记为登录失败
+                    addLogin(lastIncomingConnectionTime, lastIncomingConnectionIp, true);
+                // 更新上条连入记录为此次记录
+                lastIncomingConnectionTime = parser.getTimeMs();
+                lastIncomingConnectionIp = parser.getAddr();
+                break;
+            // 检查直接表示登录失败的标志（如xrdp-sesman的认证失败记录），不影响连入记录的配对
+            case XrdpLogParser.FAIL:
+                addLogin(parser.getTimeMs(), parser.getAddr(), true);
+                break;
+            // 检查客户端登录成功标志
+            case XrdpLogParser.LOGIN_SUCCESS:
+                if(lastIncomingConnectionIp == null)
+                    return;
+                // 存在上条连入记录且匹配到了登录成功记录，将其标记为登录成功
+                addLogin(lastIncomingConnectionTime, lastIncomingConnectionIp, false);
+                lastIncomingConnectionTime = 0;
+                lastIncomingConnectionIp = null;
+                break;
+        }
+    }
+
+    private void addLogin(long timeMs, String addr, boolean fail)
+    {
+        if(keepLogins)
+            logins.add(timeMs, addr, fail);
+        if(listener != null)
+            listener.onLogin(timeMs, addr, fail);
+    }
+
+    /**
+     * 获取最后一个日志开始标志之后的所有登录记录。
+     * 还没有匹配到登录成功记录的最后一条连入记录不包含在内，需要时可以先调用flushPending()。
+     * @return 登录记录。如果创建读取器时指定了不保存登录记录，返回的记录总是为空。
+     */
+    public LoginRecordStore getLogins()
+    {
+        return logins;
+    }
+
+    /**
+     * 将还没有匹配到登录成功记录的最后一条连入记录标记为登录失败。在读取到文件末尾且不再继续读取时调用。
+     */
+    public void flushPending()
+    {
+        if(lastIncomingConnectionIp == null)
+            return;
+        addLogin(lastIncomingConnectionTime, lastIncomingConnectionIp, true);
+        lastIncomingConnectionTime = 0;
+        lastIncomingConnectionIp = null;
+    }
+
+    /**
+     * 获取还没有匹配到登录成功记录的最后一条连入记录的IP。
+     * @return IP地址，如果没有则返回null。
+     */
+    public String getPendingAddr()
+    {
+        return lastIncomingConnectionIp;
+    }
+
+    /**
+     * 获取还没有匹配到登录成功记录的最后一条连入记录的时间。
+     * @return 连入时间（毫秒时间戳），如果没有则返回0。
+     */
+    public long getPendingTime()
+    {
+        return lastIncomingConnectionTime;
+    }
+
+    /**
+     * 保存读取位置：文件标识、字节偏移量、尚未读到换行符的行和还没有匹配到登录成功记录的连入记录。
+     * @param out 输出。
+     * @throws IOException 写入失败时抛出。
+     */
+    public void saveState(DataOutput out) throws IOException
+    {
+        out.writeUTF(fileKey == null ? "" : fileKey.toString());
+        out.writeLong(offset);
+        out.writeInt(lineLen);
+        out.write(lineBuf, 0, lineLen);
+        out.writeUTF(lastIncomingConnectionIp == null ? "" : lastIncomingConnectionIp);
+        out.writeLong(lastIncomingConnectionTime);
+        out.writeBoolean(compressedRead);
+    }
+
+    /**
+     * 恢复saveState()保存的读取位置，之后调用update()时只读取保存之后新增的内容。
+     * 如果日志在此期间被轮转或截断，读取位置不会被恢复，之后会从头读取新的日志。
+     * @param in 输入。
+     * @return 如果读取位置已恢复，返回true，否则返回false。
+     * @throws IOException 读取失败时抛出。
+     */
+    public boolean restoreState(DataInput in) throws IOException
+    {
+        close();
+        String key = in.readUTF();
+        long savedOffset = in.readLong();
+        byte[] line = new byte[in.readInt()];
+        in.readFully(line);
+        String pendingIp = in.readUTF();
+        long pendingTime = in.readLong();
+        boolean savedCompressedRead = in.readBoolean();
+        // 未匹配的连入记录确实存在过，即使日志已被轮转也保留
+        lastIncomingConnectionIp = pendingIp.isEmpty() ? null : pendingIp;
+        lastIncomingConnectionTime = pendingTime;
+        if(compressed)
+        {
+            compressedRead = savedCompressedRead;
+            return true;
+        }
+        BasicFileAttributes attrs;
+        try
+        {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch(NoSuchFileException e)
+        {
+            return false;
+        }
+        // 文件标识为空时（文件系统不支持）只能根据文件大小判断
+        Object currentKey = attrs.fileKey();
+        if(!key.equals(currentKey == null ? "" : currentKey.toString()) || attrs.size() < savedOffset)
+            return false;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileKey = currentKey;
+        offset = savedOffset;
+        lineLen = 0;
+        appendLineBuf(line, 0, line.length);
+        return true;
+    }
+
+    /**
+     * 关闭当前打开的日志文件。再次调用update()时会从头读取日志。
+     */
+    public void close()
+    {
+        compressedRead = false;
+        if(channel == null)
+            return;
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+            l.warning("Failed to close XRDP log: " + e);
+        }
+        channel = null;
+        fileKey = null;
+        offset = 0;
+        lineLen = 0;
+    }
+
+    /**
+     * 登录记录监听器。
+     */
+    public interface Listener
+    {
+        /**
+         * 解析出一条登录记录时调用。
+         * @param timeMs 登录时间。
+         * @param addr IP地址。
+         * @param fail 登录是否失败。
+         */
+        void onLogin(long timeMs, String addr, boolean fail);
+
+        /**
+         * 遇到日志开始标志（XRDP重新启动）时调用。
+         */
+        void onRestart();
+    }
+}
@@ -0,0 +1,290 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * 同时读取多个XRDP日志（如多个XRDP实例的日志，以及用于启动时补充历史记录的轮转日志xrdp.log.1、xrdp.log.2.gz等）。
+ * 只有一个日志时（包括历史日志读完之后只剩一个日志时），登录记录在解析时直接送给监听器，与直接使用XrdpLogReader相同。
+ * 有多个日志时，各个日志在线程池中并行读取和解析，登录记录先暂存在每个日志各自的LoginRecordStore中，
+ * 全部读取完成后按时间顺序归并为一个事件流送给监听器，因此失败计数器收到的登录记录仍然是按时间排序的。
+ * 两种方式送给监听器的IP地址都是XrdpLogParser.getAddr()生成的标准文本形式，与日志的数量无关。
+ * 多个日志时，某个日志中的日志开始标志只会作废该日志本次读取到的、位于标志之前的记录，
+ * 不会通知监听器：各个XRDP实例是独立的，一个实例重启不应影响其他实例的统计数据。
+ * 持续读取的日志的读取位置可以通过saveState()保存、通过restoreState()恢复；历史日志在第一次读取后就被丢弃，不会被保存。
+ * 注意：此类不是线程安全的，只能在一个线程中调用。
+ */
+public class XrdpLogSources
+{
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final List<Source> sources = new ArrayList<>();
+    private final ExecutorService pool; // 为null时在调用线程中依次读取
+    private XrdpLogReader.Listener listener;
+    private boolean direct; // 是否只有一个日志，登录记录直接送给监听器
+
+    /**
+     * @param logPaths 需要持续读取的XRDP日志。
+     * @param backfillPaths 只在第一次读取时读取一次的历史日志，以".gz"结尾的文件会被解压读取。
+     * @param pool 用于并行读取日志的线程池，为null时在调用线程中依次读取。
+     */
+    public XrdpLogSources(List<String> logPaths, List<String> backfillPaths, ExecutorService pool)
+    {
+        for(String path : backfillPaths)
+            sources.add(new Source(path, true));
+        for(String path : logPaths)
+            sources.add(new Source(path, false));
+        this.pool = sources.size() > 1 ? pool : null;
+        this.direct = sources.size() == 1;
+    }
+
+    /**
+     * 设置接收登录记录的监听器。
+     * @param listener 监听器，为null时不通知。
+     */
+    public void setListener(XrdpLogReader.Listener listener)
+    {
+        this.listener = listener;
+        if(direct)
+            sources.get(0).reader.setListener(listener);
+    }
+
+    /**
+     * 读取所有日志自上次读取以来新增的内容，并将登录记录按时间顺序送给监听器。
+     * 历史日志只在第一次调用时读取，读取后立即将末尾未匹配的连入记录标记为登录失败。
+     * @return 本次读取到的字节数。
+     * @throws IOException 读取任何一个日志失败时抛出。
+     */
+    public long update() throws IOException
+    {
+        if(direct)
+            return sources.get(0).update();
+        long read = 0;
+        if(pool == null)
+            for(Source s : sources)
+                read += s.update();
+        else
+        {
+            List<Future<Long>> futures = new ArrayList<>(sources.size());
+            for(Source s : sources)
+                futures.add(pool.submit(s::update));
+            for(Future<Long> f : futures)
+                read += await(f);
+        }
+        merge();
+        // 历史日志读完后就不再需要了
+        Iterator<Source> it = sources.iterator();
+        while(it.hasNext())
+        {
+            Source s = it.next();
+            if(s.backfill)
+            {
+                s.reader.close();
+                it.remove();
+            }
+        }
+        if(sources.size() == 1)
+        {
+            direct = true;
+            sources.get(0).reader.setListener(listener);
+        }
+        return read;
+    }
+
+    /**
+     * 将所有日志中还没有匹配到登录成功记录的最后一条连入记录标记为登录失败。在不再继续读取时调用。
+     */
+    public void flushPending()
+    {
+        for(Source s : sources)
+            s.reader.flushPending();
+        if(!direct)
+            merge();
+    }
+
+    /**
+     * 获取所有还没有匹配到登录成功记录的最后一条连入记录所在的日志读取器。
+     * @return 日志读取器列表。
+     */
+    public List<XrdpLogReader> getPendingReaders()
+    {
+        List<XrdpLogReader> pending = new ArrayList<>();
+        for(Source s : sources)
+            if(s.reader.getPendingAddr() != null)
+                pending.add(s.reader);
+        return pending;
+    }
+
+    /**
+     * 保存所有持续读取的日志的读取位置。应在两次update()之间调用，此时没有暂存的登录记录。
+     * @param out 输出。
+     * @throws IOException 写入失败时抛出。
+     */
+    public void saveState(DataOutput out) throws IOException
+    {
+        int n = 0;
+        for(Source s : sources)
+            if(!s.backfill)
+                n++;
+        out.writeInt(n);
+        for(Source s : sources)
+        {
+            if(s.backfill)
+                continue;
+            out.writeUTF(s.path);
+            s.reader.saveState(out);
+        }
+    }
+
+    /**
+     * 恢复saveState()保存的读取位置，应在第一次调用update()之前调用。
+     * 历史日志中的登录记录已包含在保存的检测状态中，因此不会再被读取。
+     * @param in 输入。
+     * @return 成功恢复读取位置的日志数量。没有恢复读取位置的日志（如在此期间被轮转）会从头读取。
+     * @throws IOException 读取失败，或保存的日志与当前的日志不一致时抛出。
+     */
+    public int restoreState(DataInput in) throws IOException
+    {
+        Iterator<Source> it = sources.iterator();
+        while(it.hasNext())
+        {
+            Source s = it.next();
+            if(s.backfill)
+            {
+                s.reader.close();
+                it.remove();
+            }
+        }
+        int count = in.readInt();
+        if(count != sources.size())
+            throw new IOException("Expected " + sources.size() + " logs, found " + count);
+        int restored = 0;
+        for(int i = 0; i < count; i++)
+        {
+            String path = in.readUTF();
+            Source source = null;
+            for(Source s : sources)
+                if(s.path.equals(path))
+                    source = s;
+            if(source == null)
+                throw new IOException("Unknown log: " + path);
+            if(source.reader.restoreState(in))
+                restored++;
+            else
+                l.fine(() -> "XRDP log " + path + " has been rotated or truncated, reading it from the beginning");
+        }
+        if(sources.size() == 1)
+        {
+            direct = true;
+            sources.get(0).reader.setListener(listener);
+        }
+        return restored;
+    }
+
+    /**
+     * 关闭所有日志。再次调用update()时会从头读取持续读取的日志。
+     */
+    public void close()
+    {
+        for(Source s : sources)
+            s.reader.close();
+    }
+
+    /**
+     * 按时间顺序归并各个日志暂存的登录记录并送给监听器，然后清空暂存的记录。
+     * 每个日志内部的记录已经按时间排序，只需每次取出各个日志当前记录中最早的一条。
+     */
+    private void merge()
+    {
+        PriorityQueue<Source> queue = new PriorityQueue<>(sources.size(), Comparator.comparingLong(s -> s.batch.getTime(s.cursor)));
+        int total = 0;
+        for(Source s : sources)
+        {
+            s.cursor = 0;
+            total += s.batch.size();
+            if(s.batch.size() != 0)
+                queue.add(s);
+        }
+        while(!queue.isEmpty())
+        {
+            Source s = queue.poll();
+            if(listener != null)
+                listener.onLogin(s.batch.getTime(s.cursor), s.batch.getAddr(s.cursor), s.batch.isFail(s.cursor));
+            if(++s.cursor < s.batch.size())
+                queue.add(s);
+        }
+        for(Source s : sources)
+            s.batch.clear();
+        if(total != 0)
+        {
+            int merged = total;
+            l.fine(() -> "Merged " + merged + " login records from " + sources.size() + " logs");
+        }
+    }
+
+    private static long await(Future<Long> f) throws IOException
+    {
+        try
+        {
+            return f.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading logs", e);
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException) cause;
+            throw new RuntimeException("Failed to read log: " + cause, cause);
+        }
+    }
+
+    /**
+     * 一个日志及其暂存的登录记录。
+     */
+    private static final class Source
+    {
+        final String path;
+        final XrdpLogReader reader;
+        final boolean backfill;
+        final LoginRecordStore batch = new LoginRecordStore(); // 本次读取到的、尚未送给监听器的登录记录
+        int cursor; // 归并时的当前位置
+
+        Source(String path, boolean backfill)
+        {
+            this.path = path;
+            this.reader = new XrdpLogReader(path, false);
+            this.backfill = backfill;
+            reader.setListener(new XrdpLogReader.Listener()
+            {
+                @Override
+                public void onLogin(long timeMs, String addr, boolean fail)
+                {
+                    batch.add(timeMs, addr, fail);
+                }
+
+                @Override
+                public void onRestart()
+                {
+                    batch.clear();
+                }
+            });
+        }
+
+        long update() throws IOException
+        {
+            long read = reader.update();
+            if(backfill)
+                reader.flushPending();
+            return read;
+        }
+    }
+}
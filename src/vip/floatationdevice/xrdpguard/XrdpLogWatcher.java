@@ -0,0 +1,151 @@
+package vip.floatationdevice.xrdpguard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 监视XRDP日志的变化。
+ * 使用WatchService监视日志所在的目录，后台线程在任何一个日志被修改或重新创建（轮转）时立即唤醒等待的线程。
+ * 其他线程也可以调用wakeup()提前唤醒等待的线程（如守护进程模式下收到控制命令时）。
+ * 如果文件系统不支持WatchService，退化为按固定间隔轮询。
+ */
+public class XrdpLogWatcher implements Closeable
+{
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final Set<Path> files = new HashSet<>(); // 被监视的日志（绝对路径）
+    private volatile WatchService ws;
+    private boolean changed = false; // 日志自上次等待以来是否发生了变化
+    private boolean woken = false; // 自上次等待以来是否调用过wakeup()
+
+    public XrdpLogWatcher(String path)
+    {
+        this(Collections.singletonList(path));
+    }
+
+    /**
+     * @param paths 需要监视的日志路径。
+     */
+    public XrdpLogWatcher(List<String> paths)
+    {
+        Set<Path> dirs = new HashSet<>();
+        for(String path : paths)
+        {
+            Path p = Paths.get(path).toAbsolutePath();
+            files.add(p);
+            dirs.add(p.getParent());
+        }
+        try
+        {
+            for(Path dir : dirs)
+            {
+                if(ws == null)
+                    ws = dir.getFileSystem().newWatchService();
+                dir.register(ws, ENTRY_CREATE, ENTRY_MODIFY);
+                l.fine(() -> "Watching " + dir + " for changes of XRDP logs");
+            }
+        }
+        catch(IOException | UnsupportedOperationException e)
+        {
+            l.warning("Failed to watch " + dirs + ", falling back to polling: " + e);
+            close();
+        }
+        if(ws != null)
+        {
+            Thread t = new Thread(this::watch, "XrdpGuard-log-watcher");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * 等待XRDP日志发生变化或被wakeup()唤醒。
+     * @param timeoutMs 最长等待时间（毫秒）。超时后即使日志没有变化也会返回。
+     * @return 如果日志发生了变化或被唤醒，返回true；如果等待超时，返回false。
+     * @throws InterruptedException 等待时线程被中断时抛出。
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while(!changed && !woken && remaining > 0)
+        {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        boolean result = changed || woken;
+        changed = woken = false;
+        return result;
+    }
+
+    /**
+     * 唤醒正在等待的线程。如果当前没有线程在等待，下次调用await()时会立即返回。
+     */
+    public synchronized void wakeup()
+    {
+        woken = true;
+        notifyAll();
+    }
+
+    private synchronized void onChange()
+    {
+        changed = true;
+        notifyAll();
+    }
+
+    /**
+     * 在后台线程中接收WatchService的事件，直到WatchService被关闭。
+     */
+    private void watch()
+    {
+        WatchService w = ws;
+        try
+        {
+            while(true)
+            {
+                WatchKey key = w.take();
+                boolean changed = false;
+                Path dir = (Path) key.watchable();
+                for(WatchEvent<?> e : key.pollEvents())
+                    // 事件溢出时无法确定是哪个文件发生了变化，当作日志已变化处理
+                    if(e.kind() == OVERFLOW || files.contains(dir.resolve((Path) e.context())))
+                        changed = true;
+                if(!key.reset())
+                {
+                    // 目录已不可访问，无法继续监视
+                    l.warning("Log directory is no longer accessible, falling back to polling");
+                    close();
+                }
+                if(changed)
+                    onChange();
+            }
+        }
+        catch(ClosedWatchServiceException | InterruptedException e)
+        {
+            // 已关闭，之后只按超时时间轮询
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if(ws == null)
+            return;
+        try
+        {
+            ws.close();
+        }
+        catch(IOException e)
+        {
+            l.warning("Failed to close watch service: " + e);
+        }
+        ws = null;
+    }
+}
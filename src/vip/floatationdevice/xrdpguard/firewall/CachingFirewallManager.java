@@ -0,0 +1,223 @@
+package vip.floatationdevice.xrdpguard.firewall;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.*;
+
+/**
+ * 在内存中缓存封禁状态的防火墙管理器包装。
+ * 启动时通过listBanned()一次性读取防火墙中已封禁的IP，之后封禁和解除封禁时同步更新缓存，检查IP是否已被封禁时不再调用防火墙。
+ * 为了发现在XRDPGuard之外对防火墙做出的修改，缓存会按指定的间隔重新从防火墙读取。
+ * 如果被包装的防火墙管理器不支持列出已封禁的IP，缓存只记录已确认被封禁的IP，未命中时仍然调用防火墙查询。
+ */
+public class CachingFirewallManager implements FirewallManager
+{
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final FirewallManager fw;
+    private final long refreshMs;
+    private final Set<String> banned = new HashSet<>(); // 已被封禁的IP（标准形式）
+    private boolean complete = false; // 缓存是否包含了防火墙中的所有封禁
+    private long lastRefresh = 0;
+    private long hits = 0, misses = 0;
+
+    /**
+     * @param fw 被包装的防火墙管理器。
+     * @param refreshMs 重新从防火墙读取封禁状态的间隔（毫秒）。
+     */
+    public CachingFirewallManager(FirewallManager fw, long refreshMs)
+    {
+        this.fw = fw;
+        this.refreshMs = refreshMs;
+        refresh();
+    }
+
+    /**
+     * 重新从防火墙读取封禁状态。
+     */
+    public synchronized void refresh()
+    {
+        lastRefresh = System.currentTimeMillis();
+        Set<String> list = fw.listBanned();
+        banned.clear();
+        if(list == null)
+        {
+            l.fine("Firewall manager does not support listing bans, ban state will be cached on demand");
+            complete = false;
+            return;
+        }
+        for(String ip : list)
+            banned.add(normalize(ip));
+        complete = true;
+        l.fine(() -> "Loaded " + banned.size() + " banned IPs from firewall");
+    }
+
+    private void refreshIfStale()
+    {
+        if(System.currentTimeMillis() - lastRefresh >= refreshMs)
+            refresh();
+    }
+
+    private boolean isBanned(String ip, boolean ipv4)
+    {
+        refreshIfStale();
+        String key = normalize(ip);
+        if(banned.contains(key))
+        {
+            hits++;
+            return true;
+        }
+        if(complete)
+        {
+            hits++;
+            return false;
+        }
+        misses++;
+        if(ipv4 ? fw.isBannedIpv4(ip) : fw.isBannedIpv6(ip))
+        {
+            banned.add(key);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean banIpv4(String ip)
+    {
+        if(!fw.banIpv4(ip))
+            return false;
+        banned.add(normalize(ip));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean banIpv6(String ip)
+    {
+        if(!fw.banIpv6(ip))
+            return false;
+        banned.add(normalize(ip));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean unbanIpv4(String ip)
+    {
+        if(!fw.unbanIpv4(ip))
+            return false;
+        banned.remove(normalize(ip));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean unbanIpv6(String ip)
+    {
+        if(!fw.unbanIpv6(ip))
+            return false;
+        banned.remove(normalize(ip));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isBannedIpv4(String ip)
+    {
+        return isBanned(ip, true);
+    }
+
+    @Override
+    public synchronized boolean isBannedIpv6(String ip)
+    {
+        return isBanned(ip, false);
+    }
+
+    @Override
+    public synchronized boolean apply()
+    {
+        return fw.apply();
+    }
+
+    @Override
+    public synchronized List<String> banAll(Collection<String> ips)
+    {
+        List<String> done = fw.banAll(ips);
+        for(String ip : done)
+            banned.add(normalize(ip));
+        return done;
+    }
+
+    @Override
+    public synchronized List<String> unbanAll(Collection<String> ips)
+    {
+        List<String> done = fw.unbanAll(ips);
+        for(String ip : done)
+            banned.remove(normalize(ip));
+        return done;
+    }
+
+    @Override
+    public synchronized Set<String> isBannedAll(Collection<String> ips)
+    {
+        refreshIfStale();
+        Set<String> result = new HashSet<>();
+        List<String> unknown = new ArrayList<>();
+        for(String ip : ips)
+        {
+            if(banned.contains(normalize(ip)))
+            {
+                hits++;
+                result.add(ip);
+            }
+            else if(complete)
+                hits++;
+            else
+                unknown.add(ip);
+        }
+        if(!unknown.isEmpty())
+        {
+            misses += unknown.size();
+            for(String ip : fw.isBannedAll(unknown))
+            {
+                banned.add(normalize(ip));
+                result.add(ip);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Set<String> listBanned()
+    {
+        refreshIfStale();
+        return complete ? new HashSet<>(banned) : fw.listBanned();
+    }
+
+    /**
+     * 获取缓存命中次数。
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * 获取缓存未命中（需要查询防火墙）的次数。
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * 将IP转换为标准形式作为缓存的键：嵌入IPv6的IPv4地址转换为IPv4地址，IPv6地址转换为RFC 5952形式。
+     */
+    private static String normalize(String ip)
+    {
+        if(ip.indexOf(':') == -1)
+            return ip;
+        long[] v6 = new long[2];
+        if(!parseIpv6(ip, v6))
+            return ip;
+        if(v6[0] == 0 && v6[1] >>> 32 == 0xffffL)
+            return ipv4ToString((int) v6[1]);
+        return ipv6ToString(v6[0], v6[1]);
+    }
+}
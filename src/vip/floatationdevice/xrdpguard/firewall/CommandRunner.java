@@ -0,0 +1,19 @@
+package vip.floatationdevice.xrdpguard.firewall;
+
+import java.util.List;
+
+/**
+ * 外部命令执行器。
+ * 防火墙管理器通过此接口执行防火墙命令，测试时可以替换为记录命令而不实际执行的实现。
+ */
+public interface CommandRunner
+{
+    /**
+     * 执行命令。
+     * @param cmd 命令及其参数（不经过shell）。
+     * @param input 写入命令标准输入的内容，为null时不写入。
+     * @param outputLines 用于保存命令输出的列表，为null时不保存。
+     * @return 命令的返回值。如果命令无法执行，返回-1。
+     */
+    int run(List<String> cmd, String input, List<String> outputLines);
+}
@@ -0,0 +1,388 @@
+package vip.floatationdevice.xrdpguard.firewall;
+
+import vip.floatationdevice.xrdpguard.Metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * 在后台线程中执行防火墙操作，使检测不必等待防火墙命令执行完毕。
+ * 防火墙管理器不是线程安全的，对防火墙的修改和应用也必须按顺序进行，因此所有操作都在同一个工作线程中依次执行。
+ * 封禁请求先进入等待队列，工作线程空闲时将队列中所有的IP合并为一批执行（先查询是否已被封禁，再批量封禁并应用）。
+ * 封禁失败的IP按指数退避的间隔重试，重试次数用完后才报告失败。
+ * 操作的结果不会在工作线程中处理，而是放入完成队列，由调用runCompletions()的线程（XRDPGuard的主线程）处理，
+ * 因此封禁状态、封禁日志等只在主线程中访问。从提交到结果被处理之前，相关的IP被视为等待中，重复的请求会被忽略。
+ * 等待执行的操作最多JOB_CAPACITY个，队列满时提交操作的线程等待工作线程取出操作（背压）；
+ * 封禁请求按IP合并，数量不会超过等待中的IP的数量。
+ */
+public class FirewallExecutor
+{
+    private static final int JOB_CAPACITY = 1024;
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final FirewallManager fw;
+    private final int maxAttempts;
+    private final long retryDelayMs;
+    private final Deque<Runnable> jobs = new ArrayDeque<>(); // 按提交顺序执行的操作，最多JOB_CAPACITY个
+    private final LinkedHashMap<String, PendingBan> bans = new LinkedHashMap<>(); // 等待合并执行的封禁
+    private final Set<String> pending = new HashSet<>(); // 已提交但结果尚未被处理的IP和地址段
+    private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+    private boolean working = false; // 工作线程是否正在执行操作
+    private BanListener banListener;
+
+    /**
+     * @param fw 防火墙管理器。创建执行器之后不应在其他线程中直接使用。
+     * @param maxAttempts 每个IP最多尝试封禁的次数。
+     * @param retryDelayMs 第一次重试前等待的时间（毫秒），之后每次重试的等待时间加倍。
+     */
+    public FirewallExecutor(FirewallManager fw, int maxAttempts, long retryDelayMs)
+    {
+        this.fw = fw;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMs = retryDelayMs;
+        Thread t = new Thread(this::work, "XrdpGuard-firewall");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 设置接收封禁结果的监听器。监听器在调用runCompletions()的线程中被调用。
+     */
+    public void setBanListener(BanListener banListener)
+    {
+        this.banListener = banListener;
+    }
+
+    /**
+     * 请求封禁IP。请求会与其他尚未执行的封禁请求合并，已在等待中的IP会被忽略。
+     * @param ips 需要封禁的IP。
+     * @param sinceNs 检测到这些IP的时间（System.nanoTime()），用于统计封禁延迟。
+     */
+    public synchronized void ban(Collection<String> ips, long sinceNs)
+    {
+        for(String ip : ips)
+            if(pending.add(ip))
+                bans.put(ip, new PendingBan(sinceNs));
+        notifyAll();
+    }
+
+    /**
+     * 提交一个在工作线程中执行的操作。操作按提交顺序执行，并且先于合并的封禁请求执行。
+     * 等待执行的操作已满时，等待工作线程取出操作。
+     * @param keys 操作涉及的IP或地址段，在结果被处理之前isPending()对它们返回true。
+     * @param job 在工作线程中执行的操作。
+     * @param onDone 处理操作结果的回调，在调用runCompletions()的线程中被调用。
+     * @param onError 操作抛出异常时代替onDone被调用的回调，同样在调用runCompletions()的线程中被调用。
+     */
+    public synchronized <T> void submit(Collection<String> keys, Function<FirewallManager, T> job, Consumer<T> onDone, Consumer<RuntimeException> onError)
+    {
+        while(jobs.size() >= JOB_CAPACITY)
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                // 不再等待，保留中断状态
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<String> jobKeys = new ArrayList<>(keys);
+        pending.addAll(jobKeys);
+        jobs.add(() ->
+        {
+            T result;
+            try
+            {
+                result = job.apply(fw);
+            }
+            catch(RuntimeException e)
+            {
+                l.severe("Firewall operation failed: " + e);
+                e.printStackTrace();
+                complete(jobKeys, () -> onError.accept(e));
+                return;
+            }
+            complete(jobKeys, () -> onDone.accept(result));
+        });
+        notifyAll();
+    }
+
+    /**
+     * 检查IP或地址段是否有已提交但结果尚未被处理的操作。
+     */
+    public synchronized boolean isPending(String key)
+    {
+        return pending.contains(key);
+    }
+
+    /**
+     * 获取等待执行的操作和封禁请求的数量。
+     */
+    public synchronized int getQueueSize()
+    {
+        return jobs.size() + bans.size();
+    }
+
+    /**
+     * 检查是否有正在执行或等待执行的操作，或者尚未被处理的结果。
+     */
+    public synchronized boolean isBusy()
+    {
+        return working || !jobs.isEmpty() || !bans.isEmpty() || !completions.isEmpty();
+    }
+
+    /**
+     * 在当前线程中处理所有已完成操作的结果。
+     * @return 处理的结果数量。
+     */
+    public int runCompletions()
+    {
+        int n = 0;
+        Completion c;
+        while((c = completions.poll()) != null)
+        {
+            synchronized(this)
+            {
+                pending.removeAll(c.keys);
+            }
+            if(c.action != null)
+                c.action.run();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 等待直到有操作完成或超时。
+     * @param timeoutMs 最长等待时间（毫秒）。
+     * @return 如果有尚未被处理的结果，返回true。
+     * @throws InterruptedException 等待时线程被中断时抛出。
+     */
+    public synchronized boolean awaitCompletion(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while(completions.isEmpty() && remaining > 0)
+        {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return !completions.isEmpty();
+    }
+
+    /**
+     * 等待所有已提交的操作和封禁请求（包括重试）执行完毕，然后处理它们的结果。用于只检查一次就退出的情况。
+     * 处理结果时提交的新操作（如单个IP封禁后达到阈值的地址段）也会被等待。
+     * @throws InterruptedException 等待时线程被中断时抛出。
+     */
+    public void drain() throws InterruptedException
+    {
+        do
+        {
+            synchronized(this)
+            {
+                while(working || !jobs.isEmpty() || !bans.isEmpty())
+                    wait();
+            }
+        }
+        while(runCompletions() != 0);
+    }
+
+    private synchronized void complete(Collection<String> keys, Runnable action)
+    {
+        completions.add(new Completion(keys, action));
+        notifyAll();
+    }
+
+    private void work()
+    {
+        while(true)
+        {
+            Runnable job = null;
+            Map<String, PendingBan> batch = new LinkedHashMap<>();
+            synchronized(this)
+            {
+                working = false;
+                notifyAll();
+                try
+                {
+                    while(true)
+                    {
+                        if(!jobs.isEmpty())
+                        {
+                            job = jobs.poll();
+                            // 唤醒等待队列空位的提交者
+                            notifyAll();
+                            break;
+                        }
+                        // 取出所有已到重试时间的封禁请求
+                        long now = System.currentTimeMillis();
+                        long next = Long.MAX_VALUE;
+                        for(Iterator<Map.Entry<String, PendingBan>> it = bans.entrySet().iterator(); it.hasNext(); )
+                        {
+                            Map.Entry<String, PendingBan> e = it.next();
+                            if(e.getValue().notBefore <= now)
+                            {
+                                batch.put(e.getKey(), e.getValue());
+                                it.remove();
+                            }
+                            else
+                                next = Math.min(next, e.getValue().notBefore);
+                        }
+                        if(!batch.isEmpty())
+                            break;
+                        wait(next == Long.MAX_VALUE ? 0 : next - now);
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+                working = true;
+            }
+            try
+            {
+                if(job != null)
+                    job.run();
+                else
+                    banBatch(batch);
+            }
+            catch(RuntimeException e)
+            {
+                l.severe("Firewall operation failed: " + e);
+                e.printStackTrace();
+                // 与应用失败相同，整批稍后重试，重试次数用完后报告失败
+                if(job == null)
+                {
+                    List<String> done = new ArrayList<>();
+                    List<String> failed = retryLater(batch, Collections.<String>emptySet(), done);
+                    report(done, Collections.<String>emptyList(), failed);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在工作线程中执行一批合并的封禁请求。
+     * 规则已添加但应用失败的IP在重试时只需要重新应用，不再查询和添加规则（查询结果可能已经包含这些规则）。
+     */
+    private void banBatch(Map<String, PendingBan> batch)
+    {
+        List<String> toAdd = new ArrayList<>(batch.size());
+        List<String> toApply = new ArrayList<>(batch.size());
+        for(Map.Entry<String, PendingBan> e : batch.entrySet())
+            (e.getValue().added ? toApply : toAdd).add(e.getKey());
+        // 已被封禁的IP（例如在XRDPGuard之外被封禁）不再重复封禁
+        Set<String> already = toAdd.isEmpty() ? Collections.<String>emptySet() : fw.isBannedAll(toAdd);
+        toAdd.removeAll(already);
+        List<String> added = toAdd.isEmpty() ? Collections.<String>emptyList() : fw.banAll(toAdd);
+        for(String ip : added)
+            batch.get(ip).added = true;
+        toApply.addAll(added);
+        List<String> banned = Collections.emptyList();
+        if(!toApply.isEmpty())
+        {
+            // 应用防火墙规则
+            if(fw.apply())
+            {
+                l.fine("Firewall rule changes applied");
+                banned = toApply;
+                long now = System.nanoTime();
+                for(String ip : banned)
+                    Metrics.BAN_LATENCY_SECONDS.observeNanos(now - batch.get(ip).sinceNs);
+            }
+            else
+                l.severe("Failed to apply firewall rule changes. Run XRDPGuard with \"--debug\" argument to see more information");
+        }
+        // 失败的IP稍后重试，重试次数用完后才报告失败
+        Set<String> succeeded = new HashSet<>(already);
+        succeeded.addAll(banned);
+        List<String> done = new ArrayList<>(succeeded);
+        List<String> failed = retryLater(batch, succeeded, done);
+        report(done, banned, failed);
+    }
+
+    /**
+     * 将一批封禁请求中没有成功的IP按指数退避的间隔放回等待队列。
+     * @param succeeded 已成功封禁（或已在防火墙中被封禁）的IP，不需要重试。
+     * @param done 重试次数用完的IP会被加入此列表。
+     * @return 重试次数用完、需要报告失败的IP。
+     */
+    private synchronized List<String> retryLater(Map<String, PendingBan> batch, Set<String> succeeded, List<String> done)
+    {
+        List<String> failed = new ArrayList<>();
+        for(Map.Entry<String, PendingBan> e : batch.entrySet())
+        {
+            String ip = e.getKey();
+            PendingBan b = e.getValue();
+            if(succeeded.contains(ip))
+                continue;
+            if(++b.attempts < maxAttempts)
+            {
+                long delayMs = retryDelayMs << Math.min(b.attempts - 1, 20);
+                b.notBefore = System.currentTimeMillis() + delayMs;
+                bans.put(ip, b);
+                l.warning("Failed to ban " + ip + ", retrying in " + delayMs + " ms");
+            }
+            else
+            {
+                failed.add(ip);
+                done.add(ip);
+            }
+        }
+        return failed;
+    }
+
+    private void report(List<String> done, List<String> banned, List<String> failed)
+    {
+        complete(done, () ->
+        {
+            if(banListener != null && (!banned.isEmpty() || !failed.isEmpty()))
+                banListener.onBanResult(banned, failed);
+        });
+    }
+
+    /**
+     * 封禁结果监听器。
+     */
+    public interface BanListener
+    {
+        /**
+         * 一批封禁请求执行完毕时调用。已在防火墙中被封禁的IP不会出现在结果中。
+         * @param banned 成功封禁并已应用的IP。
+         * @param failed 重试次数用完后仍然封禁失败的IP。
+         */
+        void onBanResult(List<String> banned, List<String> failed);
+    }
+
+    private static final class PendingBan
+    {
+        final long sinceNs;
+        int attempts = 0;
+        long notBefore = 0; // 下次尝试的最早时间
+        boolean added = false; // 规则是否已添加（只是尚未成功应用）
+
+        PendingBan(long sinceNs)
+        {
+            this.sinceNs = sinceNs;
+        }
+    }
+
+    private static final class Completion
+    {
+        final Collection<String> keys;
+        final Runnable action;
+
+        Completion(Collection<String> keys, Runnable action)
+        {
+            this.keys = keys;
+            this.action = action;
+        }
+    }
+}
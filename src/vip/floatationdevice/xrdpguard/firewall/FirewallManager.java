@@ -1,7 +1,10 @@
 package vip.floatationdevice.xrdpguard.firewall;
 
+import java.util.*;
+
 /**
  * 防火墙管理器接口，包含一系列IP封禁相关的函数。
+ * 启用地址段封禁时，传入的IP也可能是CIDR形式的地址段（如"1.2.3.0/24"），实现类需要按原样传给防火墙。
  */
 public interface FirewallManager
 {
@@ -54,4 +57,58 @@ public interface FirewallManager
      * @return 如果成功，返回true，否则返回false。
      */
     boolean apply();
+
+    /**
+     * 批量封禁IP地址，IPv4和IPv6地址可以混合在一起。
+     * 默认实现逐个调用banIpv4()或banIpv6()。需要执行外部命令的实现应该重写此函数，将整批地址合并为一次操作。
+     * @param ips 需要封禁的IP。
+     * @return 成功封禁的IP。
+     */
+    default List<String> banAll(Collection<String> ips)
+    {
+        List<String> banned = new ArrayList<>(ips.size());
+        for(String ip : ips)
+            if(ip.indexOf(':') == -1 ? banIpv4(ip) : banIpv6(ip))
+                banned.add(ip);
+        return banned;
+    }
+
+    /**
+     * 批量解除IP地址的封禁，IPv4和IPv6地址可以混合在一起。
+     * 默认实现逐个调用unbanIpv4()或unbanIpv6()。
+     * @param ips 要解除封禁的IP。
+     * @return 成功解除封禁的IP。
+     */
+    default List<String> unbanAll(Collection<String> ips)
+    {
+        List<String> unbanned = new ArrayList<>(ips.size());
+        for(String ip : ips)
+            if(ip.indexOf(':') == -1 ? unbanIpv4(ip) : unbanIpv6(ip))
+                unbanned.add(ip);
+        return unbanned;
+    }
+
+    /**
+     * 批量检查IP地址是否已被封禁，IPv4和IPv6地址可以混合在一起。
+     * 默认实现逐个调用isBannedIpv4()或isBannedIpv6()。
+     * @param ips 要检查的IP。
+     * @return 其中已被封禁的IP。
+     */
+    default Set<String> isBannedAll(Collection<String> ips)
+    {
+        Set<String> banned = new HashSet<>();
+        for(String ip : ips)
+            if(ip.indexOf(':') == -1 ? isBannedIpv4(ip) : isBannedIpv6(ip))
+                banned.add(ip);
+        return banned;
+    }
+
+    /**
+     * 列出所有已被封禁的IP地址。用于一次性获取防火墙中的封禁状态，避免逐个查询。
+     * @return 已被封禁的IP。如果不支持列出或列出失败，返回null。
+     */
+    default Set<String> listBanned()
+    {
+        return null;
+    }
 }
@@ -1,8 +1,6 @@
 package vip.floatationdevice.xrdpguard.firewall;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.*;
 import java.util.logging.Logger;
 
 import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.isIpv4;
@@ -13,11 +11,22 @@ import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.isIpv4;
  */
 public class Firewalld implements FirewallManager
 {
+    private static final int BATCH_SIZE = 100; // 一条命令中最多包含的规则数，避免命令行过长
     private final Logger l = Logger.getLogger("XrdpGuard");
+    private final CommandRunner runner;
 
     public Firewalld()
     {
-        l.fine(getClass().getName() + " initialized");
+        this(new SystemCommandRunner());
+    }
+
+    /**
+     * @param runner 用于执行firewall-cmd命令的命令执行器。
+     */
+    public Firewalld(CommandRunner runner)
+    {
+        this.runner = runner;
+        l.fine(() -> getClass().getName() + " initialized");
     }
 
     @Override
@@ -69,34 +78,134 @@ public class Firewalld implements FirewallManager
         return system("firewall-cmd --reload");
     }
 
+    @Override
+    public List<String> banAll(Collection<String> ips)
+    {
+        return batch("--add-rich-rule", ips);
+    }
+
+    @Override
+    public List<String> unbanAll(Collection<String> ips)
+    {
+        return batch("--remove-rich-rule", ips);
+    }
+
+    @Override
+    public Set<String> isBannedAll(Collection<String> ips)
+    {
+        // 一次列出所有富规则，而不是对每个IP执行一次查询
+        Set<String> droppedAddrs = listBanned();
+        if(droppedAddrs == null)
+        {
+            l.warning("Failed to list rich rules, querying IPs one by one");
+            return FirewallManager.super.isBannedAll(ips);
+        }
+        Set<String> banned = new HashSet<>();
+        for(String ip : ips)
+            if(droppedAddrs.contains(unmap(ip)))
+                banned.add(ip);
+        return banned;
+    }
+
+    @Override
+    public Set<String> listBanned()
+    {
+        List<String> rules = new ArrayList<>();
+        if(!system("firewall-cmd --list-rich-rules", rules))
+            return null;
+        Set<String> droppedAddrs = new HashSet<>();
+        for(String rule : rules)
+        {
+            // 规则格式：rule family="ipv4" source address="1.2.3.4" drop
+            int start = rule.indexOf("source address=\"");
+            if(start == -1 || !rule.endsWith(" drop"))
+                continue;
+            start += 16;
+            int end = rule.indexOf('"', start);
+            if(end != -1)
+                droppedAddrs.add(rule.substring(start, end));
+        }
+        return droppedAddrs;
+    }
+
     /**
-     * 使用系统默认的shell执行命令。
-     * @param cmd 需要执行的命令。
-     * @return 如果命令返回值为0，返回true，否则返回false。
+     * 将多条富规则操作合并为尽量少的firewall-cmd命令执行。
+     * @param option 富规则操作选项（如"--add-rich-rule"）。
+     * @param ips 要操作的IP。
+     * @return 操作成功的IP。
      */
-    private boolean system(String cmd)
+    private List<String> batch(String option, Collection<String> ips)
     {
-        try
+        List<String> done = new ArrayList<>(ips.size());
+        List<String> chunk = new ArrayList<>(Math.min(ips.size(), BATCH_SIZE));
+        for(String ip : ips)
         {
-            l.fine("[cmd] Executing: " + cmd);
-            Process proc = new ProcessBuilder("/bin/sh", "-c", cmd).start();
-            BufferedReader stdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            BufferedReader stderr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-            String output;
-            while((output = stdout.readLine()) != null)
-                l.fine("[cmd] [stdout] " + output);
-            while((output = stderr.readLine()) != null)
-                l.fine("[cmd] [stderr] " + output);
-            int exitCode = proc.waitFor();
-            l.fine("[cmd] Command exited with code " + exitCode);
-            return exitCode == 0;
+            chunk.add(ip);
+            if(chunk.size() == BATCH_SIZE)
+            {
+                batchChunk(option, chunk, done);
+                chunk.clear();
+            }
         }
-        catch(IOException | InterruptedException e)
+        if(!chunk.isEmpty())
+            batchChunk(option, chunk, done);
+        return done;
+    }
+
+    private void batchChunk(String option, List<String> chunk, List<String> done)
+    {
+        StringBuilder cmd = new StringBuilder("firewall-cmd --permanent");
+        for(String ip : chunk)
+            cmd.append(' ').append(option).append("='").append(richRule(ip)).append('\'');
+        if(system(cmd.toString()))
         {
-            l.severe("[cmd] Error occurred while executing " + cmd);
-            l.severe("[cmd] Cause: " + e);
-            e.printStackTrace();
-            return false;
+            done.addAll(chunk);
+            return;
         }
+        if(chunk.size() == 1)
+            return;
+        // 批量操作失败时无法确定是哪条规则出错，逐个重试
+        l.fine("Batch operation failed, retrying one by one");
+        for(String ip : chunk)
+            if(system("firewall-cmd --permanent " + option + "='" + richRule(ip) + "'"))
+                done.add(ip);
+    }
+
+    /**
+     * 如果是嵌入IPv6的IPv4地址（如::ffff:217.76.50.132），返回其中的IPv4地址，否则原样返回。
+     */
+    private static String unmap(String ip)
+    {
+        return ip.startsWith("::ffff:") && isIpv4(ip.substring(7)) ? ip.substring(7) : ip;
+    }
+
+    /**
+     * 生成丢弃指定IP数据包的富规则。
+     */
+    private static String richRule(String ip)
+    {
+        ip = unmap(ip);
+        return "rule family=" + (ip.indexOf(':') == -1 ? "ipv4" : "ipv6") + " source address=" + ip + " drop";
+    }
+
+    /**
+     * 使用系统默认的shell执行命令。
+     * @param cmd 需要执行的命令。
+     * @return 如果命令返回值为0，返回true，否则返回false。
+     */
+    private boolean system(String cmd)
+    {
+        return system(cmd, null);
+    }
+
+    /**
+     * 使用系统默认的shell执行命令。
+     * @param cmd 需要执行的命令。
+     * @param stdoutLines 用于保存命令标准输出的列表，为null时不保存。
+     * @return 如果命令返回值为0，返回true，否则返回false。
+     */
+    private boolean system(String cmd, List<String> stdoutLines)
+    {
+        return runner.run(Arrays.asList("/bin/sh", "-c", cmd), null, stdoutLines) == 0;
     }
 }
@@ -0,0 +1,210 @@
+package vip.floatationdevice.xrdpguard.firewall;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import static vip.floatationdevice.xrdpguard.XrdpGuardCommons.isIpv4;
+
+/**
+ * 基于nftables命名集合实现FirewallManager接口。
+ * 在独立的表（inet xrdpguard）中维护两个地址集合（IPv4和IPv6）和一条丢弃来自集合中地址的数据包的规则，
+ * 封禁和解除封禁只是向集合中添加或删除元素，立即生效，不需要重新加载规则，规则数量也不会随封禁的IP增加。
+ * 集合带有interval标志，因此也可以封禁CIDR地址段。
+ */
+public class Nftables implements FirewallManager
+{
+    private static final String TABLE_FAMILY = "inet";
+    private static final String TABLE_NAME = "xrdpguard";
+    private static final String TABLE = TABLE_FAMILY + " " + TABLE_NAME;
+    private static final String SET_V4 = "banned4";
+    private static final String SET_V6 = "banned6";
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final CommandRunner runner;
+
+    public Nftables()
+    {
+        this(new SystemCommandRunner());
+    }
+
+    /**
+     * @param runner 用于执行nft命令的命令执行器。
+     */
+    public Nftables(CommandRunner runner)
+    {
+        this.runner = runner;
+        // 创建表、集合和规则。重复执行时只会清空并重新添加链中的规则，不影响集合中已有的元素
+        String setup = "add table " + TABLE + "\n" +
+                "add set " + TABLE + " " + SET_V4 + " { type ipv4_addr; flags interval; }\n" +
+                "add set " + TABLE + " " + SET_V6 + " { type ipv6_addr; flags interval; }\n" +
+                "add chain " + TABLE + " input { type filter hook input priority -10; policy accept; }\n" +
+                "flush chain " + TABLE + " input\n" +
+                "add rule " + TABLE + " input ip saddr @" + SET_V4 + " drop\n" +
+                "add rule " + TABLE + " input ip6 saddr @" + SET_V6 + " drop\n";
+        if(nft(setup))
+            l.fine(() -> getClass().getName() + " initialized");
+        else
+            l.severe("Failed to set up nftables table " + TABLE);
+    }
+
+    @Override
+    public boolean banIpv4(String ip)
+    {
+        return element("add", Collections.singletonList(ip));
+    }
+
+    @Override
+    public boolean banIpv6(String ip)
+    {
+        return element("add", Collections.singletonList(ip));
+    }
+
+    @Override
+    public boolean unbanIpv4(String ip)
+    {
+        return element("delete", Collections.singletonList(ip));
+    }
+
+    @Override
+    public boolean unbanIpv6(String ip)
+    {
+        return element("delete", Collections.singletonList(ip));
+    }
+
+    @Override
+    public boolean isBannedIpv4(String ip)
+    {
+        return element("get", Collections.singletonList(ip));
+    }
+
+    @Override
+    public boolean isBannedIpv6(String ip)
+    {
+        return element("get", Collections.singletonList(ip));
+    }
+
+    @Override
+    public boolean apply()
+    {
+        // 对集合的修改是实时生效的
+        return true;
+    }
+
+    @Override
+    public List<String> banAll(Collection<String> ips)
+    {
+        // "add element"对已存在的元素不会报错，整批作为一个事务提交
+        if(element("add", ips))
+            return new ArrayList<>(ips);
+        return FirewallManager.super.banAll(ips);
+    }
+
+    @Override
+    public List<String> unbanAll(Collection<String> ips)
+    {
+        // 任何一个元素不存在都会导致整个事务失败，此时逐个删除
+        if(element("delete", ips))
+            return new ArrayList<>(ips);
+        return FirewallManager.super.unbanAll(ips);
+    }
+
+    @Override
+    public Set<String> isBannedAll(Collection<String> ips)
+    {
+        Set<String> elements = listBanned();
+        if(elements == null)
+            return FirewallManager.super.isBannedAll(ips);
+        Set<String> banned = new HashSet<>();
+        for(String ip : ips)
+            if(elements.contains(unmap(ip)))
+                banned.add(ip);
+        return banned;
+    }
+
+    @Override
+    public Set<String> listBanned()
+    {
+        Set<String> elements = new HashSet<>();
+        for(String set : new String[]{SET_V4, SET_V6})
+        {
+            List<String> output = new ArrayList<>();
+            if(runner.run(Arrays.asList("nft", "list", "set", TABLE_FAMILY, TABLE_NAME, set), null, output) != 0)
+                return null;
+            parseElements(output, elements);
+        }
+        return elements;
+    }
+
+    /**
+     * 从"nft list set"的输出中提取集合元素。
+     * 元素列表的格式为"elements = { 1.2.3.4, 5.6.7.0/24, ... }"，可能跨越多行。
+     */
+    static void parseElements(List<String> output, Set<String> elements)
+    {
+        boolean inElements = false;
+        for(String line : output)
+        {
+            int p = 0;
+            if(!inElements)
+            {
+                p = line.indexOf("elements = {");
+                if(p == -1)
+                    continue;
+                p += 12;
+                inElements = true;
+            }
+            int end = line.indexOf('}', p);
+            for(String e : line.substring(p, end == -1 ? line.length() : end).split(","))
+            {
+                e = e.trim();
+                if(e.isEmpty())
+                    continue;
+                int space = e.indexOf(' '); // 去掉元素后面可能附带的timeout、expires等属性
+                elements.add(space == -1 ? e : e.substring(0, space));
+            }
+            if(end != -1)
+                inElements = false;
+        }
+    }
+
+    /**
+     * 对集合元素执行操作。IPv4和IPv6地址分别放入对应的集合，所有操作作为一个事务提交。
+     * @param op 操作（add、delete或get）。
+     * @param ips 要操作的IP。
+     * @return 如果整个事务成功，返回true，否则返回false。
+     */
+    private boolean element(String op, Collection<String> ips)
+    {
+        StringBuilder v4 = new StringBuilder(), v6 = new StringBuilder();
+        for(String ip : ips)
+        {
+            ip = unmap(ip);
+            StringBuilder sb = ip.indexOf(':') == -1 ? v4 : v6;
+            if(sb.length() != 0)
+                sb.append(", ");
+            sb.append(ip);
+        }
+        StringBuilder script = new StringBuilder();
+        if(v4.length() != 0)
+            script.append(op).append(" element ").append(TABLE).append(' ').append(SET_V4).append(" { ").append(v4).append(" }\n");
+        if(v6.length() != 0)
+            script.append(op).append(" element ").append(TABLE).append(' ').append(SET_V6).append(" { ").append(v6).append(" }\n");
+        return script.length() == 0 || nft(script.toString());
+    }
+
+    /**
+     * 通过"nft -f -"以事务方式执行nft脚本。
+     */
+    private boolean nft(String script)
+    {
+        return runner.run(Arrays.asList("nft", "-f", "-"), script, null) == 0;
+    }
+
+    /**
+     * 如果是嵌入IPv6的IPv4地址（如::ffff:217.76.50.132），返回其中的IPv4地址，否则原样返回。
+     */
+    private static String unmap(String ip)
+    {
+        return ip.startsWith("::ffff:") && isIpv4(ip.substring(7)) ? ip.substring(7) : ip;
+    }
+}
@@ -1,5 +1,8 @@
 package vip.floatationdevice.xrdpguard.firewall;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * 不执行任何实际的防火墙操作的假防火墙管理器。
  */
@@ -46,4 +49,10 @@ public class NoFirewall implements FirewallManager
     {
         return true;
     }
+
+    @Override
+    public Set<String> listBanned()
+    {
+        return new HashSet<>();
+    }
 }
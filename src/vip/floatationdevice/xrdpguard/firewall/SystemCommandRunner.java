@@ -0,0 +1,166 @@
+package vip.floatationdevice.xrdpguard.firewall;
+
+import vip.floatationdevice.xrdpguard.Metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * 通过创建系统进程执行命令的命令执行器。
+ * 标准输出和标准错误分别在两个线程中同时读取，避免其中一个缓冲区写满后进程阻塞；标准错误的内容只输出到调试日志。
+ * 命令在超时时间内没有结束时会被强制终止，视为执行失败。
+ * 命令结束后，它启动的子进程可能仍持有输出的管道，此时不再等待读取输出，以命令的退出码为准；
+ * 只有调用者需要命令的输出而输出没有读完时才视为执行失败。
+ */
+public class SystemCommandRunner implements CommandRunner
+{
+    private static volatile long defaultTimeoutMs = 60 * 1000;
+    // 读取命令输出的线程。每个正在执行的命令占用两个线程，空闲的线程在一段时间后退出
+    private static final ExecutorService DRAINERS = Executors.newCachedThreadPool(r ->
+    {
+        Thread t = new Thread(r, "XrdpGuard-cmd-output");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Logger l = Logger.getLogger("XrdpGuard");
+    private final long timeoutMs;
+
+    /**
+     * 使用默认超时时间创建命令执行器。
+     */
+    public SystemCommandRunner()
+    {
+        this(defaultTimeoutMs);
+    }
+
+    /**
+     * @param timeoutMs 每条命令的超时时间（毫秒），小于等于0时不限制。
+     */
+    public SystemCommandRunner(long timeoutMs)
+    {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * 设置之后通过无参构造函数创建的命令执行器的超时时间。
+     * 防火墙管理器通过无参构造函数创建，因此由XRDPGuard在创建防火墙管理器之前调用此函数。
+     * @param timeoutMs 超时时间（毫秒），小于等于0时不限制。
+     */
+    public static void setDefaultTimeout(long timeoutMs)
+    {
+        defaultTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public int run(List<String> cmd, String input, List<String> outputLines)
+    {
+        long start = System.nanoTime();
+        Process proc = null;
+        try
+        {
+            l.fine(() -> "[cmd] Executing: " + cmd);
+            proc = new ProcessBuilder(cmd).start();
+            List<String> stdoutLines = new ArrayList<>();
+            Future<?> stdout = DRAINERS.submit(drain(proc.getInputStream(), "[cmd] [stdout] ", stdoutLines));
+            Future<?> stderr = DRAINERS.submit(drain(proc.getErrorStream(), "[cmd] [stderr] ", null));
+            try(OutputStream stdin = proc.getOutputStream())
+            {
+                if(input != null)
+                    stdin.write(input.getBytes(StandardCharsets.UTF_8));
+            }
+            boolean finished = true;
+            if(timeoutMs > 0)
+                finished = proc.waitFor(timeoutMs, TimeUnit.MILLISECONDS);
+            else
+                proc.waitFor();
+            if(!finished)
+            {
+                l.severe("[cmd] Command timed out after " + timeoutMs + " ms: " + cmd);
+                proc.destroyForcibly();
+                Metrics.FIREWALL_COMMAND_FAILURES.inc();
+                return -1;
+            }
+            // 进程已结束，输出很快就会被读完。子进程可能仍持有管道，因此不无限等待
+            boolean complete = awaitDrain(stdout, "stdout", cmd);
+            awaitDrain(stderr, "stderr", cmd);
+            int exitCode = proc.exitValue();
+            l.fine(() -> "[cmd] Command exited with code " + exitCode);
+            if(outputLines != null)
+            {
+                if(!complete)
+                {
+                    l.severe("[cmd] Output of the command is incomplete: " + cmd);
+                    Metrics.FIREWALL_COMMAND_FAILURES.inc();
+                    return -1;
+                }
+                outputLines.addAll(stdoutLines);
+            }
+            if(exitCode != 0)
+                Metrics.FIREWALL_COMMAND_FAILURES.inc();
+            return exitCode;
+        }
+        catch(IOException | InterruptedException | ExecutionException e)
+        {
+            l.severe("[cmd] Error occurred while executing " + cmd);
+            l.severe("[cmd] Cause: " + e);
+            e.printStackTrace();
+            if(proc != null)
+                proc.destroyForcibly();
+            Metrics.FIREWALL_COMMAND_FAILURES.inc();
+            return -1;
+        }
+        finally
+        {
+            Metrics.FIREWALL_COMMAND_SECONDS.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 等待读取输出的任务结束，最多等待1秒，超时后取消读取。
+     * @return 如果输出已读完，返回true。
+     */
+    private boolean awaitDrain(Future<?> drainer, String name, List<String> cmd) throws InterruptedException, ExecutionException
+    {
+        try
+        {
+            drainer.get(1, TimeUnit.SECONDS);
+            return true;
+        }
+        catch(TimeoutException e)
+        {
+            l.warning("[cmd] The " + name + " of the command is still open after it exited (held by a child process?), stopped reading: " + cmd);
+            drainer.cancel(true);
+            return false;
+        }
+    }
+
+    /**
+     * 创建逐行读取命令输出直到流结束的任务。
+     * @param in 命令的输出流。
+     * @param prefix 输出到调试日志时的前缀。
+     * @param lines 用于保存输出的列表，为null时不保存。
+     */
+    private Callable<Void> drain(InputStream in, String prefix, List<String> lines)
+    {
+        return () ->
+        {
+            try(BufferedReader r = new BufferedReader(new InputStreamReader(in)))
+            {
+                String output;
+                while((output = r.readLine()) != null)
+                {
+                    String line = output;
+                    l.fine(() -> prefix + line);
+                    if(lines != null)
+                        lines.add(output);
+                }
+            }
+            return null;
+        };
+    }
+}